@@ -0,0 +1,100 @@
+import java.util.*;
+
+
+/**
+ * Access predictor learns which file tends to be opened after which from the stream of
+ * opens. Two kinds of succession are counted: the next open overall, and the next open
+ * in the same directory, which still links sibling files when a job interleaves several
+ * directories. Predictions follow the most likely successor from the file just opened,
+ * as long as it followed often enough to be worth fetching.
+*/
+public class AccessPredictor {
+
+	//Bounds on what is remembered, the least recently opened paths are forgotten first
+	private static final int MAX_PATHS = 20000;
+	private static final int MAX_SUCCESSORS = 8;
+	private static final int MAX_DIRECTORIES = 4096;
+
+	//Successor counts of each path
+	private LinkedHashMap<String, HashMap<String, Integer>> successors =
+		new LinkedHashMap<String, HashMap<String, Integer>>(1024, 0.75f, true) {
+			protected boolean removeEldestEntry(Map.Entry<String, HashMap<String, Integer>> eldest) {
+				return size() > MAX_PATHS;
+			}
+		};
+
+	//Last path opened in each directory
+	private LinkedHashMap<String, String> lastInDirectory = new LinkedHashMap<String, String>(256, 0.75f, true) {
+		protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+			return size() > MAX_DIRECTORIES;
+		}
+	};
+
+	private String lastPath = null;
+
+
+	/**
+	 * Record an open and predict what comes after it
+	 *
+	 * @param path opened, how many files ahead to predict, share of the times a successor
+	 *        has to have followed to be predicted
+	 * @return Predicted paths, most likely first
+	*/
+	public synchronized List<String> recordOpen(String path, int depth, double minConfidence) {
+		if(lastPath != null && !lastPath.equals(path)) count(lastPath, path);
+		String sibling = lastInDirectory.put(directory(path), path);
+		if(sibling != null && !sibling.equals(path) && !sibling.equals(lastPath)) count(sibling, path);
+		lastPath = path;
+
+		ArrayList<String> predicted = new ArrayList<String>();
+		String from = path;
+		while(predicted.size() < depth) {
+			String next = likeliest(from, minConfidence);
+			if(next == null || next.equals(path) || predicted.contains(next)) break;
+			predicted.add(next);
+			from = next;
+		}
+		return predicted;
+	}
+
+
+	private void count(String from, String to) {
+		HashMap<String, Integer> counts = successors.get(from);
+		if(counts == null) {
+			counts = new HashMap<String, Integer>();
+			successors.put(from, counts);
+		}
+		Integer seen = counts.get(to);
+		counts.put(to, (seen == null) ? 1 : seen + 1);
+
+		//Make room by forgetting the least followed successor
+		if(counts.size() > MAX_SUCCESSORS) {
+			String weakest = null;
+			for(Map.Entry<String, Integer> entry : counts.entrySet()) {
+				if(entry.getKey().equals(to)) continue;
+				if(weakest == null || entry.getValue() < counts.get(weakest)) weakest = entry.getKey();
+			}
+			counts.remove(weakest);
+		}
+	}
+
+
+	private String likeliest(String from, double minConfidence) {
+		HashMap<String, Integer> counts = successors.get(from);
+		if(counts == null) return null;
+		String best = null;
+		int total = 0;
+		for(Map.Entry<String, Integer> entry : counts.entrySet()) {
+			total += entry.getValue();
+			if(best == null || entry.getValue() > counts.get(best)) best = entry.getKey();
+		}
+		if(best == null || counts.get(best) < minConfidence * total) return null;
+		return best;
+	}
+
+
+	private static String directory(String path) {
+		int slash = path.lastIndexOf('/');
+		return (slash < 0) ? "" : path.substring(0, slash);
+	}
+}
@@ -0,0 +1,149 @@
+
+import java.io.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+
+/**
+ * Block checksums hold a weak rolling checksum and a strong MD5 digest for every
+ * fixed size block of a file, the same pair rsync uses. The proxy rolls the weak sum over
+ * its stale copy to find blocks it already has and only fetches the rest.
+*/
+public class BlockChecksums implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	public static final int BLOCK_SIZE = 16384;
+
+	int blockSize;
+	long length;
+	int[] weak;
+	byte[][] strong;
+
+
+	/**
+	 * CONSTRUCTOR for an empty file
+	*/
+	public BlockChecksums(int blockSize) {
+		this.blockSize = blockSize;
+		this.length = 0;
+		this.weak = new int[0];
+		this.strong = new byte[0][];
+	}
+
+
+	/**
+	 * Compute checksums of every block of a file
+	 *
+	 * @param open file, block size
+	 * @return the checksums
+	*/
+	public static BlockChecksums compute(RandomAccessFile raf, int blockSize) throws IOException {
+		BlockChecksums sums = new BlockChecksums(blockSize);
+		sums.update(raf, 0, raf.length());
+		return sums;
+	}
+
+
+	/**
+	 * Update recomputes the blocks overlapping a written region and follows the file length
+	 *
+	 * @param open file after the write, offset and length of what was written
+	 * @return void.
+	*/
+	public void update(RandomAccessFile raf, long offset, long written) throws IOException {
+		long newLength = raf.length();
+		int blocks = (int)((newLength + blockSize - 1) / blockSize);
+		int oldBlocks = weak.length;
+		if(blocks != oldBlocks) {
+			weak = Arrays.copyOf(weak, blocks);
+			strong = Arrays.copyOf(strong, blocks);
+		}
+
+		//Blocks that changed, plus the old last block if the file grew past it
+		long firstDirty = Math.min(offset, length);
+		long endDirty = Math.max(offset + written, newLength == length ? 0 : newLength);
+		int first = (int)(firstDirty / blockSize);
+		if(oldBlocks > 0 && newLength != length) first = Math.min(first, oldBlocks - 1);
+		int last = (int)Math.min(blocks, (endDirty + blockSize - 1) / blockSize);
+
+		byte[] buf = new byte[blockSize];
+		for(int block = first; block < last; block++) {
+			long start = (long)block * blockSize;
+			int len = (int)Math.min(blockSize, newLength - start);
+			raf.seek(start);
+			raf.readFully(buf, 0, len);
+			weak[block] = weak(buf, 0, len);
+			strong[block] = strong(buf, 0, len);
+		}
+		length = newLength;
+	}
+
+
+	public int blockCount() {
+		return weak.length;
+	}
+
+
+	/**
+	 * Length of a block, only the last one can be short
+	 *
+	 * @param block index
+	 * @return length in bytes
+	*/
+	public int blockLength(int block) {
+		return (int)Math.min(blockSize, length - (long)block * blockSize);
+	}
+
+
+	/**
+	 * Weak checksum, rsync's Adler-32 style pair of 16 bit sums
+	 *
+	 * @param buffer, offset and length of data
+	 * @return checksum
+	*/
+	public static int weak(byte[] buf, int off, int len) {
+		int a = 0;
+		int b = 0;
+		for(int i = 0; i < len; i++) {
+			int x = buf[off + i] & 0xff;
+			a += x;
+			b += (len - i) * x;
+		}
+		return ((b & 0xffff) << 16) | (a & 0xffff);
+	}
+
+
+	/**
+	 * Roll a weak checksum one byte forward over a window of blockLen bytes
+	 *
+	 * @param current checksum, byte leaving the window, byte entering it, window length
+	 * @return checksum of the shifted window
+	*/
+	public static int roll(int sum, byte out, byte in, int blockLen) {
+		int a = sum & 0xffff;
+		int b = (sum >>> 16) & 0xffff;
+		int x = out & 0xff;
+		a = (a - x + (in & 0xff)) & 0xffff;
+		b = (b - blockLen * x + a) & 0xffff;
+		return (b << 16) | a;
+	}
+
+
+	/**
+	 * Strong checksum of a block
+	 *
+	 * @param buffer, offset and length of data
+	 * @return MD5 digest
+	*/
+	public static byte[] strong(byte[] buf, int off, int len) {
+		try {
+			MessageDigest md = MessageDigest.getInstance("MD5");
+			md.update(buf, off, len);
+			return md.digest();
+		} catch (NoSuchAlgorithmException nsae) {
+			throw new IllegalStateException(nsae);
+		}
+	}
+}
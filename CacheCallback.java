@@ -0,0 +1,16 @@
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+
+/**
+ * Remote interface a proxy exports so the server can push invalidations to it
+*/
+public interface CacheCallback extends Remote {
+
+	/**
+	 * The server copy of a path changed or went away, drop any lease on it
+	 *
+	 * @param path that changed
+	 * @return void.
+	*/
+	public void invalidate(String path) throws RemoteException;
+}
@@ -0,0 +1,242 @@
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.zip.CRC32;
+
+
+/**
+ * Cache journal keeps the proxy's cache index on disk so a restarted proxy can pick up the
+ * files already in its cache directory. Changes are appended to a journal as checksummed
+ * records, every so often the live entries are written out as a snapshot and the journal
+ * starts over. Loading replays the snapshot then the journal and stops at the first torn
+ * or corrupt record, which is all a crash in the middle of an append can leave behind.
+ *
+ * Records are written straight to the file without forcing them to the device, so they
+ * survive the proxy dying but the last few may be lost if the machine goes down. Snapshots
+ * are forced and renamed into place so there is always a complete one.
+*/
+public class CacheJournal {
+
+	public static final String SNAPSHOT_NAME = ".cacheindex";
+	public static final String JOURNAL_NAME = ".cachejournal";
+
+	private static final byte PUT = 1;
+	private static final byte REMOVE = 2;
+
+	//Compact once the journal holds this many more records than there are live entries
+	private static final int COMPACT_SLACK = 1024;
+
+	//Server version of a closed file the server never got, it has to be uploaded again
+	public static final long NOT_UPLOADED = -1;
+
+	/**
+	 * One cached file: which version of it is on disk, its size, the server version it
+	 * matches and when it was last closed, which is its position in LRU order
+	*/
+	public static class Entry {
+		public String path;
+		public int version;
+		public long size;
+		public long serverVersion;
+		public long sequence;
+
+		Entry(String path, int version, long size, long serverVersion, long sequence) {
+			this.path = path;
+			this.version = version;
+			this.size = size;
+			this.serverVersion = serverVersion;
+			this.sequence = sequence;
+		}
+	}
+
+	private File snapshotFile;
+	private File journalFile;
+	private FileChannel journal;
+	private HashMap<String, Entry> live = new HashMap<String, Entry>();
+	private long sequence = 0;
+	private long records = 0;
+
+
+	/**
+	 * CONSTRUCTOR, nothing is read until load
+	*/
+	public CacheJournal(String dir) {
+		snapshotFile = new File(dir, SNAPSHOT_NAME);
+		journalFile = new File(dir, JOURNAL_NAME);
+	}
+
+
+	/**
+	 * Load replays the snapshot and the journal and opens the journal for appending
+	 *
+	 * @param none
+	 * @return Live entries, least recently closed first
+	*/
+	public synchronized List<Entry> load() {
+		replay(snapshotFile);
+		records = 0;
+		long goodLength = replay(journalFile);
+		try {
+			journal = new RandomAccessFile(journalFile, "rw").getChannel();
+			//Cut off whatever a crash left after the last good record
+			journal.truncate(goodLength);
+			journal.position(goodLength);
+		} catch (IOException ie) {
+			System.err.println("PROXY: Cache journal unavailable, cache wont survive a restart");
+			journal = null;
+		}
+
+		ArrayList<Entry> entries = new ArrayList<Entry>(live.values());
+		Collections.sort(entries, new Comparator<Entry>() {
+			public int compare(Entry a, Entry b) {
+				return Long.compare(a.sequence, b.sequence);
+			}
+		});
+		return entries;
+	}
+
+
+	/**
+	 * Put records the cached copy of a path as its most recently closed file
+	 *
+	 * @param path, cached version, size in bytes, server version it matches
+	 * @return void.
+	*/
+	public synchronized void put(String path, int version, long size, long serverVersion) {
+		Entry entry = new Entry(path, version, size, serverVersion, ++sequence);
+		live.put(path, entry);
+		append(PUT, entry);
+	}
+
+
+	/**
+	 * Remove records that a path is no longer cached
+	 *
+	 * @param path
+	 * @return void.
+	*/
+	public synchronized void remove(String path) {
+		if(live.remove(path) == null) return;
+		append(REMOVE, new Entry(path, 0, 0, 0, ++sequence));
+	}
+
+
+	private void append(byte type, Entry entry) {
+		if(journal == null) return;
+		try {
+			ByteBuffer record = encode(type, entry);
+			while(record.hasRemaining()) journal.write(record);
+			records++;
+			if(records > live.size() * 2 + COMPACT_SLACK) compact();
+		} catch (IOException ie) {
+			System.err.println("PROXY: Cache journal write failed, journaling stopped");
+			journal = null;
+		}
+	}
+
+
+	/**
+	 * Compact writes the live entries to a new snapshot, moves it into place and empties
+	 * the journal. A crash in between replays the old journal on top of the new snapshot,
+	 * which ends in the same state since later records always win.
+	 *
+	 * @param none
+	 * @return void, raises an exception if the snapshot cant be written
+	*/
+	private void compact() throws IOException {
+		File tempFile = new File(snapshotFile.getPath() + ".tmp");
+		FileOutputStream out = new FileOutputStream(tempFile);
+		try {
+			FileChannel channel = out.getChannel();
+			for(Entry entry : live.values()) {
+				ByteBuffer record = encode(PUT, entry);
+				while(record.hasRemaining()) channel.write(record);
+			}
+			channel.force(true);
+		} finally {
+			out.close();
+		}
+		Files.move(tempFile.toPath(), snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+			StandardCopyOption.ATOMIC_MOVE);
+		journal.truncate(0);
+		journal.position(0);
+		journal.force(true);
+		records = 0;
+	}
+
+
+	/**
+	 * Replay applies every good record of a file to the live entries
+	 *
+	 * @param file to replay
+	 * @return Length of the file up to the end of the last good record
+	*/
+	private long replay(File file) {
+		if(!file.exists()) return 0;
+		long good = 0;
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			while(true) {
+				int length = in.readInt();
+				int crc = in.readInt();
+				if(length <= 0 || length > 65536) break;
+				byte[] payload = new byte[length];
+				in.readFully(payload);
+				CRC32 check = new CRC32();
+				check.update(payload, 0, length);
+				if((int)check.getValue() != crc) break;
+				apply(payload);
+				good += 8 + length;
+				records++;
+			}
+		} catch (IOException ie) {
+			//End of file or a torn record, everything before it counts
+		} finally {
+			try {
+				if(in != null) in.close();
+			} catch (IOException ie) {
+				//Nothing left to do with the file
+			}
+		}
+		return good;
+	}
+
+
+	private void apply(byte[] payload) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+		byte type = in.readByte();
+		Entry entry = new Entry(in.readUTF(), in.readInt(), in.readLong(), in.readLong(), in.readLong());
+		sequence = Math.max(sequence, entry.sequence);
+		if(type == PUT) live.put(entry.path, entry);
+		else if(type == REMOVE) live.remove(entry.path);
+	}
+
+
+	//Record layout: payload length, CRC32 of payload, then the payload itself
+	private static ByteBuffer encode(byte type, Entry entry) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + entry.path.length());
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeByte(type);
+		out.writeUTF(entry.path);
+		out.writeInt(entry.version);
+		out.writeLong(entry.size);
+		out.writeLong(entry.serverVersion);
+		out.writeLong(entry.sequence);
+		out.flush();
+		byte[] payload = bytes.toByteArray();
+
+		CRC32 crc = new CRC32();
+		crc.update(payload, 0, payload.length);
+		ByteBuffer record = ByteBuffer.allocate(8 + payload.length);
+		record.putInt(payload.length);
+		record.putInt((int)crc.getValue());
+		record.put(payload);
+		record.flip();
+		return record;
+	}
+}
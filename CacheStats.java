@@ -0,0 +1,49 @@
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Cache stats count hits and misses of proxy opens, by request and by bytes, so
+ * eviction policies can be compared on the same trace
+*/
+public class CacheStats {
+
+	private AtomicLong hits = new AtomicLong();
+	private AtomicLong misses = new AtomicLong();
+	private AtomicLong hitBytes = new AtomicLong();
+	private AtomicLong missBytes = new AtomicLong();
+	private AtomicLong evictions = new AtomicLong();
+	private AtomicLong evictedBytes = new AtomicLong();
+
+	public void recordHit(long bytes) {
+		hits.incrementAndGet();
+		hitBytes.addAndGet(bytes);
+	}
+
+	public void recordMiss(long bytes) {
+		misses.incrementAndGet();
+		missBytes.addAndGet(bytes);
+	}
+
+	public void recordEviction(long bytes) {
+		evictions.incrementAndGet();
+		evictedBytes.addAndGet(bytes);
+	}
+
+	public double hitRatio() {
+		return ratio(hits.get(), misses.get());
+	}
+
+	public double byteHitRatio() {
+		return ratio(hitBytes.get(), missBytes.get());
+	}
+
+	private static double ratio(long hit, long miss) {
+		if(hit + miss == 0) return 0;
+		return (double)hit / (hit + miss);
+	}
+
+	public String toString() {
+		return String.format("hits=%d misses=%d hitRatio=%.4f byteHitRatio=%.4f evictions=%d evictedBytes=%d",
+			hits.get(), misses.get(), hitRatio(), byteHitRatio(), evictions.get(), evictedBytes.get());
+	}
+}
@@ -0,0 +1,139 @@
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+
+/**
+ * Channel cache keeps read only channels of recently read files open so the chunks of one
+ * transfer dont reopen the file each time. Reads go through positional FileChannel.read,
+ * so one channel is shared by every caller. Channels are counted while in use and the
+ * least recently used idle ones are closed once there are more than the limit.
+*/
+public class ChannelCache {
+
+	//An open channel and how many callers are using it
+	private static class Handle {
+		FileChannel channel;
+		int users = 0;
+		boolean retired = false;
+
+		Handle(FileChannel channel) {
+			this.channel = channel;
+		}
+	}
+
+	private int limit;
+	private LinkedHashMap<String, Handle> open = new LinkedHashMap<String, Handle>(64, 0.75f, true);
+	//Channels dropped while still in use, closed by their last release
+	private ArrayList<Handle> retired = new ArrayList<Handle>();
+
+
+	/**
+	 * CONSTRUCTOR
+	*/
+	public ChannelCache(int limit) {
+		this.limit = limit;
+	}
+
+
+	/**
+	 * Acquire a channel for a file, opening it if it isnt open. Must be paired with release.
+	 *
+	 * @param full path of file
+	 * @return The channel, raises an exception if the file cant be opened
+	*/
+	public FileChannel acquire(String path) throws IOException {
+		synchronized(this) {
+			Handle handle = open.get(path);
+			if(handle != null) {
+				handle.users++;
+				return handle.channel;
+			}
+		}
+
+		//Open outside the monitor, if someone else got there first use theirs
+		FileChannel channel = new RandomAccessFile(path, "r").getChannel();
+		synchronized(this) {
+			Handle handle = open.get(path);
+			if(handle == null) {
+				handle = new Handle(channel);
+				open.put(path, handle);
+				trim();
+			} else {
+				channel.close();
+			}
+			handle.users++;
+			return handle.channel;
+		}
+	}
+
+
+	/**
+	 * Release a channel got from acquire
+	 *
+	 * @param full path of file, the channel
+	 * @return void.
+	*/
+	public synchronized void release(String path, FileChannel channel) {
+		Handle handle = open.get(path);
+		if(handle == null || handle.channel != channel) {
+			//It was dropped while in use, close it once the last user is gone
+			handle = findRetired(channel);
+			if(handle == null) return;
+		}
+		handle.users--;
+		if(handle.users == 0 && handle.retired) closeQuietly(handle.channel);
+	}
+
+
+	/**
+	 * Drop forgets the channel of a file, used when the file is deleted or replaced
+	 *
+	 * @param full path of file
+	 * @return void.
+	*/
+	public synchronized void drop(String path) {
+		Handle handle = open.remove(path);
+		if(handle != null) retire(handle);
+	}
+
+
+	private void retire(Handle handle) {
+		handle.retired = true;
+		if(handle.users == 0) closeQuietly(handle.channel);
+		else retired.add(handle);
+	}
+
+
+	private Handle findRetired(FileChannel channel) {
+		for(Iterator<Handle> it = retired.iterator(); it.hasNext();) {
+			Handle handle = it.next();
+			if(handle.channel == channel) {
+				if(handle.users == 1) it.remove();
+				return handle;
+			}
+		}
+		return null;
+	}
+
+
+	//Close the least recently used channels until back under the limit
+	private void trim() {
+		Iterator<Map.Entry<String, Handle>> it = open.entrySet().iterator();
+		while(open.size() > limit && it.hasNext()) {
+			Handle handle = it.next().getValue();
+			it.remove();
+			retire(handle);
+		}
+	}
+
+
+	private static void closeQuietly(FileChannel channel) {
+		try {
+			channel.close();
+		} catch (IOException ie) {
+			//Nothing was written through it
+		}
+	}
+}
@@ -0,0 +1,291 @@
+import java.nio.ByteBuffer;
+import java.util.*;
+
+
+/**
+ * Chunk cache keeps chunks of files the server has read or had written to it in memory, so
+ * many proxies fetching the same file read it off the disk once. The memory is one direct
+ * buffer allocated up front and handed out in pages, like the proxy's hot tier. Chunks are
+ * kept per file under the version they belong to and never overlap, a read is served if the
+ * chunks it spans are all here. The least recently used chunks go when room is needed.
+ *
+ * Uploads keep the cache exact instead of dropping the whole file: the bytes an upload
+ * writes are kept under its own name while its staged, and when its published they replace
+ * the chunks they overlap. Whatever the upload didnt touch is still right under the new
+ * version.
+*/
+public class ChunkCache {
+
+	private static final int PAGE_SIZE = 4096;
+
+	//Version of the chunks of an upload not published yet, matches no read
+	private static final long PENDING = Long.MIN_VALUE;
+
+	//Cached bytes of one region of a file
+	private static class Chunk {
+		String path;
+		long offset;
+		int length;
+		int[] pages;
+
+		long end() {
+			return offset + length;
+		}
+	}
+
+	//Chunks of one file by offset and the version they belong to
+	private static class FileChunks {
+		long version;
+		TreeMap<Long, Chunk> chunks = new TreeMap<Long, Chunk>();
+
+		FileChunks(long version) {
+			this.version = version;
+		}
+	}
+
+	private ByteBuffer slab;
+	private int[] freePages;
+	private int freeCount;
+	private int maxChunk;
+	private HashMap<String, FileChunks> files = new HashMap<String, FileChunks>();
+	//Every chunk, least recently used first
+	private LinkedHashMap<Chunk, Boolean> lru = new LinkedHashMap<Chunk, Boolean>(1024, 0.75f, true);
+
+	private long hits = 0;
+	private long misses = 0;
+	private long hitBytes = 0;
+	private long evictions = 0;
+
+
+	/**
+	 * CONSTRUCTOR allocates all the memory of the cache, none if the capacity is 0
+	 *
+	 * @param bytes of memory
+	*/
+	public ChunkCache(long capacity) {
+		int pageCount = (int)Math.max(0, Math.min(capacity / PAGE_SIZE, Integer.MAX_VALUE / PAGE_SIZE));
+		slab = ByteBuffer.allocateDirect(pageCount * PAGE_SIZE);
+		freePages = new int[pageCount];
+		for(int i = 0; i < pageCount; i++) freePages[i] = pageCount - 1 - i;
+		freeCount = pageCount;
+
+		//A single chunk may take at most a quarter of the cache
+		maxChunk = (int)Math.min(Integer.MAX_VALUE, (long)pageCount * PAGE_SIZE / 4);
+	}
+
+
+	/**
+	 * Get a region of a file at a version
+	 *
+	 * @param filename, version, offset and amount wanted
+	 * @return The bytes or null unless every byte of the region is cached
+	*/
+	public synchronized byte[] get(String path, long version, long offset, int amount) {
+		FileChunks file = files.get(path);
+		if(version < 0 || amount <= 0 || file == null || file.version != version) {
+			misses++;
+			return null;
+		}
+
+		//Make sure the whole region is here before copying any of it
+		ArrayList<Chunk> spanned = new ArrayList<Chunk>();
+		long at = offset;
+		long end = offset + amount;
+		Map.Entry<Long, Chunk> entry = file.chunks.floorEntry(at);
+		while(at < end) {
+			if(entry == null || entry.getKey() > at || entry.getValue().end() <= at) {
+				misses++;
+				return null;
+			}
+			spanned.add(entry.getValue());
+			at = entry.getValue().end();
+			entry = file.chunks.ceilingEntry(at);
+		}
+
+		byte[] data = new byte[amount];
+		for(Chunk chunk : spanned) {
+			long from = Math.max(offset, chunk.offset);
+			long to = Math.min(end, chunk.end());
+			copyOut(chunk, (int)(from - chunk.offset), data, (int)(from - offset), (int)(to - from));
+			lru.get(chunk);
+		}
+		hits++;
+		hitBytes += amount;
+		return data;
+	}
+
+
+	/**
+	 * Put a region just read from the disk. A file cached at another version is dropped.
+	 *
+	 * @param filename, version it was read at, offset, the bytes
+	 * @return void.
+	*/
+	public synchronized void put(String path, long version, long offset, byte[] data) {
+		if(version < 0 || maxChunk == 0) return;
+		FileChunks file = files.get(path);
+		if(file != null && file.version != version) {
+			dropFile(path);
+			file = null;
+		}
+		if(file == null) {
+			file = new FileChunks(version);
+			files.put(path, file);
+		}
+		store(path, file, offset, data);
+	}
+
+
+	/**
+	 * Stage keeps bytes an upload wrote to its staged file, under the upload's own name
+	 * until its published
+	 *
+	 * @param name of the upload, offset, the bytes
+	 * @return void.
+	*/
+	public synchronized void stage(String upload, long offset, byte[] data) {
+		if(maxChunk == 0) return;
+		FileChunks staged = files.get(upload);
+		if(staged == null) {
+			staged = new FileChunks(PENDING);
+			files.put(upload, staged);
+		}
+		store(upload, staged, offset, data);
+	}
+
+
+	/**
+	 * Publish moves the chunks of an upload to the file it was published as. Chunks of the
+	 * version it was written on top of stay where the upload didnt write, anything past the
+	 * new end goes.
+	 *
+	 * @param name of the upload, filename, version before and after, new length
+	 * @return void.
+	*/
+	public synchronized void publish(String upload, String path, long oldVersion, long newVersion, long length) {
+		FileChunks staged = files.remove(upload);
+		FileChunks file = files.get(path);
+		if(file == null || file.version != oldVersion) {
+			dropFile(path);
+			if(staged == null) return;
+			file = new FileChunks(newVersion);
+			files.put(path, file);
+		}
+		if(staged != null) {
+			for(Chunk chunk : staged.chunks.values()) {
+				dropRange(file, chunk.offset, chunk.end());
+				chunk.path = path;
+				file.chunks.put(chunk.offset, chunk);
+			}
+		}
+		dropRange(file, length, Long.MAX_VALUE);
+		file.version = newVersion;
+	}
+
+
+	/**
+	 * Discard forgets the chunks of an upload given up on
+	 *
+	 * @param name of the upload
+	 * @return void.
+	*/
+	public synchronized void discard(String upload) {
+		dropFile(upload);
+	}
+
+
+	/**
+	 * Drop forgets every chunk of a file, used when its written some other way or removed
+	 *
+	 * @param filename
+	 * @return void.
+	*/
+	public synchronized void drop(String path) {
+		dropFile(path);
+	}
+
+
+	//Replace whatever overlaps a region with its bytes, if there is room for them
+	private void store(String path, FileChunks file, long offset, byte[] data) {
+		dropRange(file, offset, offset + data.length);
+		if(data.length == 0 || data.length > maxChunk) return;
+		int needed = (data.length + PAGE_SIZE - 1) / PAGE_SIZE;
+		while(freeCount < needed) {
+			Iterator<Chunk> it = lru.keySet().iterator();
+			if(!it.hasNext()) return;
+			Chunk victim = it.next();
+			it.remove();
+			FileChunks owner = files.get(victim.path);
+			owner.chunks.remove(victim.offset);
+			if(owner.chunks.isEmpty() && owner != file && owner.version != PENDING) files.remove(victim.path);
+			freeChunk(victim);
+			evictions++;
+		}
+
+		Chunk chunk = new Chunk();
+		chunk.path = path;
+		chunk.offset = offset;
+		chunk.length = data.length;
+		chunk.pages = new int[needed];
+		ByteBuffer into = slab.duplicate();
+		for(int i = 0; i < needed; i++) {
+			chunk.pages[i] = freePages[--freeCount];
+			into.position(chunk.pages[i] * PAGE_SIZE);
+			into.put(data, i * PAGE_SIZE, Math.min(PAGE_SIZE, data.length - i * PAGE_SIZE));
+		}
+		file.chunks.put(offset, chunk);
+		lru.put(chunk, Boolean.TRUE);
+	}
+
+
+	//Drop every chunk of a file overlapping [start, end)
+	private void dropRange(FileChunks file, long start, long end) {
+		Map.Entry<Long, Chunk> entry = file.chunks.floorEntry(start);
+		if(entry == null || entry.getValue().end() <= start) entry = file.chunks.higherEntry(start);
+		while(entry != null && entry.getKey() < end) {
+			Chunk chunk = entry.getValue();
+			file.chunks.remove(entry.getKey());
+			lru.remove(chunk);
+			freeChunk(chunk);
+			entry = file.chunks.higherEntry(chunk.offset);
+		}
+	}
+
+
+	private void dropFile(String path) {
+		FileChunks file = files.remove(path);
+		if(file == null) return;
+		for(Chunk chunk : file.chunks.values()) {
+			lru.remove(chunk);
+			freeChunk(chunk);
+		}
+	}
+
+
+	private void copyOut(Chunk chunk, int inChunk, byte[] buf, int at, int amount) {
+		ByteBuffer from = slab.duplicate();
+		int copied = 0;
+		while(copied < amount) {
+			int position = inChunk + copied;
+			int inPage = position % PAGE_SIZE;
+			int length = Math.min(amount - copied, PAGE_SIZE - inPage);
+			from.position(chunk.pages[position / PAGE_SIZE] * PAGE_SIZE + inPage);
+			from.get(buf, at + copied, length);
+			copied += length;
+		}
+	}
+
+
+	private void freeChunk(Chunk chunk) {
+		for(int page : chunk.pages) freePages[freeCount++] = page;
+		chunk.pages = new int[0];
+	}
+
+
+	public synchronized String toString() {
+		long lookups = hits + misses;
+		return String.format("hits=%d misses=%d hitRatio=%.4f hitBytes=%d evictions=%d files=%d freeBytes=%d",
+			hits, misses, lookups == 0 ? 0.0 : (double)hits / lookups, hitBytes, evictions, files.size(),
+			(long)freeCount * PAGE_SIZE);
+	}
+}
@@ -0,0 +1,319 @@
+
+import java.io.*;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+
+/**
+ * Chunk codec compresses file chunks for the wire. A frame is one byte naming the codec, the
+ * length of the raw chunk and then the payload, so the receiver never has to guess. Chunks
+ * that dont shrink by at least an eighth are sent as a plain frame instead, compressing them
+ * costs time on both ends and saves next to nothing.
+ *
+ * LZ4 here is the block format, written out in plain Java: a greedy matcher over a small hash
+ * table that gives up quickly on data with nothing to find. Deflate comes from java.util.zip
+ * at its fastest level and trades speed for a better ratio.
+*/
+public class ChunkCodec {
+
+	public static final int NONE = 0;
+	public static final int LZ4 = 1;
+	public static final int DEFLATE = 2;
+
+	//Codecs this build can handle, as a mask of 1 << id
+	public static final int SUPPORTED = (1 << LZ4) | (1 << DEFLATE);
+
+	private static final int HEADER = 5;
+
+	//LZ4 block format limits
+	private static final int MIN_MATCH = 4;
+	private static final int LAST_LITERALS = 5;
+	private static final int MATCH_FIND_LIMIT = 12;
+	private static final int MAX_DISTANCE = 65535;
+	private static final int HASH_BITS = 12;
+
+
+	/**
+	 * Parse a codec name as given in the environment
+	 *
+	 * @param name, lz4, deflate, auto for either or anything else for none
+	 * @return Mask of the codecs named
+	*/
+	public static int maskOf(String name) {
+		if(name == null) return 0;
+		name = name.trim().toLowerCase();
+		if(name.equals("lz4")) return 1 << LZ4;
+		if(name.equals("deflate")) return 1 << DEFLATE;
+		if(name.equals("auto")) return SUPPORTED;
+		return 0;
+	}
+
+
+	/**
+	 * Pick the codec to use from what the other side supports, the fast one first
+	 *
+	 * @param mask of codecs offered
+	 * @return Codec to use, NONE if there is nothing in common
+	*/
+	public static int choose(int offered) {
+		int common = offered & SUPPORTED;
+		if((common & (1 << LZ4)) != 0) return LZ4;
+		if((common & (1 << DEFLATE)) != 0) return DEFLATE;
+		return NONE;
+	}
+
+
+	public static String name(int codec) {
+		switch(codec) {
+			case LZ4: return "lz4";
+			case DEFLATE: return "deflate";
+			default: return "none";
+		}
+	}
+
+
+	/**
+	 * Encode a chunk into a frame, falling back to a plain frame when it doesnt compress well
+	 *
+	 * @param codec to try, raw chunk
+	 * @return The frame
+	*/
+	public static byte[] encode(int codec, byte[] raw) {
+		byte[] compressed = null;
+		int compressedLength = 0;
+		if(codec == LZ4) {
+			compressed = new byte[HEADER + raw.length + raw.length / 255 + 16];
+			compressedLength = lz4Compress(raw, compressed, HEADER);
+		} else if(codec == DEFLATE) {
+			compressed = new byte[HEADER + raw.length + raw.length / 1000 + 64];
+			compressedLength = deflate(raw, compressed, HEADER);
+		}
+
+		//Not worth it, send the chunk as it is
+		if(compressed == null || compressedLength < 0 || compressedLength > raw.length - raw.length / 8) {
+			byte[] frame = new byte[HEADER + raw.length];
+			writeHeader(frame, NONE, raw.length);
+			System.arraycopy(raw, 0, frame, HEADER, raw.length);
+			return frame;
+		}
+		writeHeader(compressed, codec, raw.length);
+		byte[] frame = new byte[HEADER + compressedLength];
+		System.arraycopy(compressed, 0, frame, 0, frame.length);
+		return frame;
+	}
+
+
+	/**
+	 * Decode a frame back into the raw chunk
+	 *
+	 * @param frame
+	 * @return The raw chunk, raises an exception if the frame is malformed
+	*/
+	public static byte[] decode(byte[] frame) throws IOException {
+		if(frame.length < HEADER) throw new IOException("Truncated chunk frame");
+		int codec = codecOf(frame);
+		int rawLength = ((frame[1] & 0xff) << 24) | ((frame[2] & 0xff) << 16) | ((frame[3] & 0xff) << 8) | (frame[4] & 0xff);
+		if(rawLength < 0) throw new IOException("Bad chunk length");
+		byte[] raw = new byte[rawLength];
+		switch(codec) {
+			case NONE:
+				if(frame.length - HEADER != rawLength) throw new IOException("Bad plain chunk");
+				System.arraycopy(frame, HEADER, raw, 0, rawLength);
+				break;
+			case LZ4:
+				lz4Decompress(frame, HEADER, frame.length, raw);
+				break;
+			case DEFLATE:
+				inflate(frame, HEADER, raw);
+				break;
+			default:
+				throw new IOException("Unknown codec " + codec);
+		}
+		return raw;
+	}
+
+
+	public static int codecOf(byte[] frame) {
+		return frame[0];
+	}
+
+
+	private static void writeHeader(byte[] frame, int codec, int rawLength) {
+		frame[0] = (byte)codec;
+		frame[1] = (byte)(rawLength >>> 24);
+		frame[2] = (byte)(rawLength >>> 16);
+		frame[3] = (byte)(rawLength >>> 8);
+		frame[4] = (byte)rawLength;
+	}
+
+
+	/**
+	 * LZ4 compress a whole chunk as one block. The step between tries grows the longer nothing
+	 * matches, so random data is skipped through rather than searched.
+	 *
+	 * @param raw chunk, output buffer large enough for the worst case, where to start writing
+	 * @return Number of bytes written
+	*/
+	private static int lz4Compress(byte[] src, byte[] dst, int dstOff) {
+		int end = src.length;
+		int op = dstOff;
+		int anchor = 0;
+		int ip = 0;
+		int[] table = new int[1 << HASH_BITS];
+
+		//Positions are stored plus one so an empty slot reads as zero
+		int limit = end - MATCH_FIND_LIMIT;
+		while(ip < limit) {
+			int sequence = readInt(src, ip);
+			int hash = (sequence * -1640531535) >>> (32 - HASH_BITS);
+			int ref = table[hash] - 1;
+			table[hash] = ip + 1;
+			if(ref < 0 || ip - ref > MAX_DISTANCE || readInt(src, ref) != sequence) {
+				ip += 1 + ((ip - anchor) >>> 6);
+				continue;
+			}
+
+			int matchLength = MIN_MATCH;
+			while(ip + matchLength < end - LAST_LITERALS && src[ref + matchLength] == src[ip + matchLength]) {
+				matchLength++;
+			}
+			op = writeSequence(src, anchor, ip - anchor, dst, op, ip - ref, matchLength);
+			ip += matchLength;
+			anchor = ip;
+		}
+
+		//Whatever is left goes out as literals
+		return writeSequence(src, anchor, end - anchor, dst, op, 0, 0) - dstOff;
+	}
+
+
+	//One token, its literals and, unless its the last sequence, the match
+	private static int writeSequence(byte[] src, int literalStart, int literalLength, byte[] dst, int op,
+			int distance, int matchLength) {
+		int tokenAt = op++;
+		int token;
+		if(literalLength >= 15) {
+			token = 15 << 4;
+			op = writeLength(dst, op, literalLength - 15);
+		} else {
+			token = literalLength << 4;
+		}
+		System.arraycopy(src, literalStart, dst, op, literalLength);
+		op += literalLength;
+
+		if(matchLength > 0) {
+			dst[op++] = (byte)distance;
+			dst[op++] = (byte)(distance >>> 8);
+			int extra = matchLength - MIN_MATCH;
+			if(extra >= 15) {
+				token |= 15;
+				op = writeLength(dst, op, extra - 15);
+			} else {
+				token |= extra;
+			}
+		}
+		dst[tokenAt] = (byte)token;
+		return op;
+	}
+
+
+	private static int writeLength(byte[] dst, int op, int length) {
+		while(length >= 255) {
+			dst[op++] = (byte)255;
+			length -= 255;
+		}
+		dst[op++] = (byte)length;
+		return op;
+	}
+
+
+	/**
+	 * LZ4 decompress one block into a buffer of exactly the raw length
+	 *
+	 * @param frame, where the block starts and ends, buffer to fill
+	 * @return void, raises an exception if the block is malformed
+	*/
+	private static void lz4Decompress(byte[] src, int ip, int end, byte[] dst) throws IOException {
+		int op = 0;
+		try {
+			while(true) {
+				int token = src[ip++] & 0xff;
+				int literalLength = token >>> 4;
+				if(literalLength == 15) {
+					int b;
+					do {
+						b = src[ip++] & 0xff;
+						literalLength += b;
+					} while(b == 255);
+				}
+				System.arraycopy(src, ip, dst, op, literalLength);
+				ip += literalLength;
+				op += literalLength;
+				if(ip >= end) break;
+
+				int distance = (src[ip] & 0xff) | ((src[ip + 1] & 0xff) << 8);
+				ip += 2;
+				int matchLength = token & 15;
+				if(matchLength == 15) {
+					int b;
+					do {
+						b = src[ip++] & 0xff;
+						matchLength += b;
+					} while(b == 255);
+				}
+				matchLength += MIN_MATCH;
+				int ref = op - distance;
+				if(distance == 0 || ref < 0) throw new IOException("Bad match distance");
+
+				//Matches may overlap what they produce, so only copy in bulk when they dont
+				if(distance >= matchLength) {
+					System.arraycopy(dst, ref, dst, op, matchLength);
+					op += matchLength;
+				} else {
+					for(int i = 0; i < matchLength; i++) dst[op++] = dst[ref++];
+				}
+			}
+		} catch (IndexOutOfBoundsException ie) {
+			throw new IOException("Malformed lz4 block");
+		}
+		if(op != dst.length) throw new IOException("Short lz4 block");
+	}
+
+
+	private static int deflate(byte[] raw, byte[] dst, int dstOff) {
+		Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+		try {
+			deflater.setInput(raw);
+			deflater.finish();
+			int written = deflater.deflate(dst, dstOff, dst.length - dstOff);
+			return deflater.finished() ? written : -1;
+		} finally {
+			deflater.end();
+		}
+	}
+
+
+	private static void inflate(byte[] frame, int offset, byte[] raw) throws IOException {
+		Inflater inflater = new Inflater(true);
+		try {
+			inflater.setInput(frame, offset, frame.length - offset);
+			int filled = 0;
+			while(filled < raw.length) {
+				int got = inflater.inflate(raw, filled, raw.length - filled);
+				if(got == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) break;
+				filled += got;
+			}
+			if(filled != raw.length) throw new IOException("Short deflate chunk");
+		} catch (DataFormatException de) {
+			throw new IOException("Malformed deflate chunk");
+		} finally {
+			inflater.end();
+		}
+	}
+
+
+	private static int readInt(byte[] buf, int at) {
+		return (buf[at] & 0xff) | ((buf[at + 1] & 0xff) << 8) | ((buf[at + 2] & 0xff) << 16) | ((buf[at + 3] & 0xff) << 24);
+	}
+}
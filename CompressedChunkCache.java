@@ -0,0 +1,81 @@
+import java.util.*;
+
+
+/**
+ * Compressed chunk cache keeps the compressed frames of chunks the server sends repeatedly so
+ * they are compressed once. A chunk is only cached the second time its asked for, one off
+ * reads never push out hot chunks. Chunks that turned out not to compress are remembered
+ * too, so the server doesnt try again. Keys carry the file version, a written file simply
+ * stops matching its old entries and they age out.
+*/
+public class CompressedChunkCache {
+
+	//How many recently asked for chunks to remember
+	private static final int SEEN_LIMIT = 8192;
+
+	private long limit;
+	private long used = 0;
+	private LinkedHashMap<String, byte[]> frames = new LinkedHashMap<String, byte[]>(256, 0.75f, true);
+	//Chunks asked for once, true if they compressed
+	private LinkedHashMap<String, Boolean> seen = new LinkedHashMap<String, Boolean>(256, 0.75f, true) {
+		protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+			return size() > SEEN_LIMIT;
+		}
+	};
+
+
+	/**
+	 * CONSTRUCTOR
+	*/
+	public CompressedChunkCache(long limit) {
+		this.limit = limit;
+	}
+
+
+	public static String key(String filename, long version, long offset, int amount, int codec) {
+		return filename + "@" + version + ":" + offset + ":" + amount + ":" + codec;
+	}
+
+
+	/**
+	 * Get the cached frame of a chunk
+	 *
+	 * @param key
+	 * @return The frame or null if it isnt cached
+	*/
+	public synchronized byte[] get(String key) {
+		return frames.get(key);
+	}
+
+
+	/**
+	 * Check whether a chunk was found not to compress last time
+	 *
+	 * @param key
+	 * @return true if compressing it again would be wasted
+	*/
+	public synchronized boolean incompressible(String key) {
+		return Boolean.FALSE.equals(seen.get(key));
+	}
+
+
+	/**
+	 * Offer a frame just built for a chunk, cached if the chunk was asked for before
+	 *
+	 * @param key, frame, whether the frame is compressed
+	 * @return void.
+	*/
+	public synchronized void offer(String key, byte[] frame, boolean compressed) {
+		Boolean before = seen.put(key, compressed);
+		if(before == null || !compressed || limit <= 0 || frame.length > limit) return;
+
+		byte[] old = frames.put(key, frame);
+		if(old != null) used -= old.length;
+		used += frame.length;
+		Iterator<byte[]> it = frames.values().iterator();
+		while(used > limit && it.hasNext()) {
+			used -= it.next().length;
+			it.remove();
+		}
+	}
+}
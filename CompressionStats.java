@@ -0,0 +1,52 @@
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Compression stats count the bytes of chunks before and after compression, for one transfer
+ * or added up over all of them. A transfer stops asking for compression once its first
+ * chunks show it isnt paying off.
+*/
+public class CompressionStats {
+
+	//Chunks to see before judging a transfer
+	private static final int SAMPLE_CHUNKS = 4;
+
+	private AtomicLong chunks = new AtomicLong();
+	private AtomicLong compressedChunks = new AtomicLong();
+	private AtomicLong rawBytes = new AtomicLong();
+	private AtomicLong wireBytes = new AtomicLong();
+
+	public void record(long raw, long wire, boolean compressed) {
+		chunks.incrementAndGet();
+		if(compressed) compressedChunks.incrementAndGet();
+		rawBytes.addAndGet(raw);
+		wireBytes.addAndGet(wire);
+	}
+
+	public void add(CompressionStats other) {
+		chunks.addAndGet(other.chunks.get());
+		compressedChunks.addAndGet(other.compressedChunks.get());
+		rawBytes.addAndGet(other.rawBytes.get());
+		wireBytes.addAndGet(other.wireBytes.get());
+	}
+
+	public long chunks() {
+		return chunks.get();
+	}
+
+	//Keep compressing until the sample says the data saves less than a tenth
+	public boolean worthCompressing() {
+		if(chunks.get() < SAMPLE_CHUNKS) return true;
+		return wireBytes.get() * 10 < rawBytes.get() * 9;
+	}
+
+	public double ratio() {
+		if(wireBytes.get() == 0) return 1;
+		return (double)rawBytes.get() / wireBytes.get();
+	}
+
+	public String toString() {
+		return String.format("chunks=%d compressed=%d raw=%d wire=%d ratio=%.2f",
+			chunks.get(), compressedChunks.get(), rawBytes.get(), wireBytes.get(), ratio());
+	}
+}
@@ -0,0 +1,164 @@
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+
+/**
+ * Content store keeps one copy of every distinct cached version. Versions are keyed by a
+ * SHA-256 digest of their bytes and their length, the first version with a key becomes the
+ * blob, a hard link kept in a directory of its own, and every later version with the same
+ * key is swapped for another link to it. Versions stay plain files at their usual path, so
+ * everything that reads them is none the wiser. Blobs count the versions linking to them
+ * and only the last one to go gives the space back.
+*/
+public class ContentStore {
+
+	public static final String DIR_NAME = ".content";
+
+	//A distinct content and how many cached versions link to it
+	private static class Blob {
+		File file;
+		long length;
+		int refs = 0;
+
+		Blob(File file, long length) {
+			this.file = file;
+			this.length = length;
+		}
+	}
+
+	private File dir;
+	private HashMap<String, Blob> blobs = new HashMap<String, Blob>();
+	private HashMap<String, Blob> versions = new HashMap<String, Blob>();
+
+	private long adopted = 0;
+	private long shared = 0;
+	private long savedBytes = 0;
+
+
+	/**
+	 * CONSTRUCTOR, blobs a previous run left behind are deleted since nothing counts their
+	 * links any more. The versions linking to them keep their bytes.
+	*/
+	public ContentStore(File dir) throws IOException {
+		if(!dir.isDirectory() && !dir.mkdirs()) throw new IOException("Cant create " + dir);
+		File[] leftovers = dir.listFiles();
+		if(leftovers != null) {
+			for(File leftover : leftovers) leftover.delete();
+		}
+		this.dir = dir;
+	}
+
+
+	/**
+	 * Key of reads a whole file and digests it
+	 *
+	 * @param file
+	 * @return Its key, raises an exception if it cant be read
+	*/
+	public static String keyOf(File file) throws IOException {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException ne) {
+			throw new IOException("No SHA-256");
+		}
+		FileChannel channel = new FileInputStream(file).getChannel();
+		long length;
+		try {
+			ByteBuffer buf = ByteBuffer.allocate(1 << 16);
+			while(channel.read(buf) > 0) {
+				buf.flip();
+				digest.update(buf);
+				buf.clear();
+			}
+			length = channel.size();
+		} finally {
+			channel.close();
+		}
+
+		StringBuilder key = new StringBuilder();
+		for(byte b : digest.digest()) key.append(String.format("%02x", b & 0xff));
+		return key.append('-').append(length).toString();
+	}
+
+
+	public synchronized boolean contains(String fullPath) {
+		return versions.containsKey(fullPath);
+	}
+
+
+	/**
+	 * Adopt files a version under its key. If another version already has the key the
+	 * version is replaced with a link to its blob in one rename, so an open never finds it
+	 * missing. Fds already open on the version keep reading the old copy, which has the
+	 * same bytes.
+	 *
+	 * @param full path of the version, its key, its length
+	 * @return Bytes freed, the length if the version now shares a blob and 0 if it became one,
+	 *         raises an exception if the links cant be made
+	*/
+	public synchronized long adopt(String fullPath, String key, long length) throws IOException {
+		if(versions.containsKey(fullPath)) return 0;
+		File version = new File(fullPath);
+		Blob blob = blobs.get(key);
+		long freed;
+		if(blob == null) {
+			blob = new Blob(new File(dir, key), length);
+			blob.file.delete();
+			Files.createLink(blob.file.toPath(), version.toPath());
+			blobs.put(key, blob);
+			freed = 0;
+		} else {
+			File link = new File(dir, key + ".link");
+			link.delete();
+			Files.createLink(link.toPath(), blob.file.toPath());
+			try {
+				Files.move(link.toPath(), version.toPath(), StandardCopyOption.ATOMIC_MOVE);
+			} catch (IOException ie) {
+				link.delete();
+				throw ie;
+			}
+			freed = length;
+			shared++;
+			savedBytes += length;
+		}
+		blob.refs++;
+		versions.put(fullPath, blob);
+		adopted++;
+		return freed;
+	}
+
+
+	/**
+	 * Release forgets a version about to be deleted, deleting its blob if it was the last
+	 * version linking to it
+	 *
+	 * @param full path of the version
+	 * @return Bytes given back, the length if the blob went and 0 if other versions still
+	 *         share it, -1 if the version isnt in the store
+	*/
+	public synchronized long release(String fullPath) {
+		Blob blob = versions.remove(fullPath);
+		if(blob == null) return -1;
+		if(--blob.refs > 0) {
+			savedBytes -= blob.length;
+			return 0;
+		}
+		blob.file.delete();
+		blobs.remove(blob.file.getName());
+		return blob.length;
+	}
+
+
+	public synchronized String toString() {
+		return "adopted=" + adopted + " shared=" + shared + " blobs=" + blobs.size()
+			+ " versions=" + versions.size() + " savedBytes=" + savedBytes;
+	}
+}
@@ -0,0 +1,179 @@
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+
+/**
+ * Copy benchmark compares the local file paths of the proxy and server as they were and
+ * as they are now: a whole file copy through a 16 KB heap buffer against transferTo and a
+ * pooled direct buffer, and chunked reads that reopen the file every chunk against one
+ * shared channel read at offsets. Files are written first so everything is in the page
+ * cache, the numbers are the cost of the copy itself and not of the disk.
+ *
+ * Usage: java CopyBenchmark [directory] [largest size in bytes]
+*/
+public class CopyBenchmark {
+
+	private static final int CHUNK_SIZE = 16384;
+	private static final long[] SIZES = {4L << 10, 64L << 10, 1L << 20, 16L << 20, 256L << 20, 1L << 30, 4L << 30};
+
+	//Keep copying one size until this much has moved so small files get a stable number
+	private static final long BYTES_PER_RUN = 256L << 20;
+
+	private static ByteBuffer directBuffer = ByteBuffer.allocateDirect(1 << 20);
+
+
+	public static void main(String[] args) throws IOException {
+		File dir = new File(args.length > 0 ? args[0] : System.getProperty("java.io.tmpdir"));
+		long largest = args.length > 1 ? Long.parseLong(args[1]) : 256L << 20;
+
+		System.out.println(String.format("%12s %14s %14s %14s %14s %14s", "size", "stream MB/s",
+			"transferTo", "direct buffer", "reopen chunks", "shared channel"));
+		for(long size : SIZES) {
+			if(size > largest) break;
+			File source = new File(dir, "copybench.src");
+			File dest = new File(dir, "copybench.dst");
+			try {
+				fill(source, size);
+				int rounds = (int)Math.max(3, BYTES_PER_RUN / size);
+				double stream = measure(source, dest, size, rounds, 0);
+				double transfer = measure(source, dest, size, rounds, 1);
+				double direct = measure(source, dest, size, rounds, 2);
+				double reopen = measure(source, dest, size, rounds, 3);
+				double shared = measure(source, dest, size, rounds, 4);
+				System.out.println(String.format("%12s %14.1f %14.1f %14.1f %14.1f %14.1f", label(size),
+					stream, transfer, direct, reopen, shared));
+			} finally {
+				source.delete();
+				dest.delete();
+			}
+		}
+	}
+
+
+	/**
+	 * Measure runs one way of copying a number of times after a warm up
+	 *
+	 * @param source and destination, file size, how many copies, which way
+	 * @return Throughput in MB/s
+	*/
+	private static double measure(File source, File dest, long size, int rounds, int way) throws IOException {
+		run(source, dest, size, way);
+		long start = System.nanoTime();
+		for(int i = 0; i < rounds; i++) run(source, dest, size, way);
+		long elapsed = System.nanoTime() - start;
+		return (double)size * rounds / (1 << 20) / (elapsed / 1e9);
+	}
+
+
+	private static void run(File source, File dest, long size, int way) throws IOException {
+		switch(way) {
+			case 0: streamCopy(source, dest);
+					break;
+			case 1: transferCopy(source, dest);
+					break;
+			case 2: directCopy(source, dest);
+					break;
+			case 3: reopenChunks(source, size);
+					break;
+			default: sharedChunks(source, size);
+		}
+	}
+
+
+	//How copyFile used to copy
+	private static void streamCopy(File source, File dest) throws IOException {
+		InputStream input = new FileInputStream(source);
+		OutputStream output = new FileOutputStream(dest);
+		try {
+			byte[] buf = new byte[CHUNK_SIZE];
+			int bytesRead;
+			while((bytesRead = input.read(buf)) > 0) output.write(buf, 0, bytesRead);
+		} finally {
+			input.close();
+			output.close();
+		}
+	}
+
+
+	private static void transferCopy(File source, File dest) throws IOException {
+		FileChannel from = new FileInputStream(source).getChannel();
+		FileChannel to = new FileOutputStream(dest).getChannel();
+		try {
+			long position = 0;
+			long size = from.size();
+			while(position < size) position += from.transferTo(position, size - position, to);
+		} finally {
+			from.close();
+			to.close();
+		}
+	}
+
+
+	private static void directCopy(File source, File dest) throws IOException {
+		FileChannel from = new FileInputStream(source).getChannel();
+		FileChannel to = new FileOutputStream(dest).getChannel();
+		try {
+			directBuffer.clear();
+			while(from.read(directBuffer) > 0) {
+				directBuffer.flip();
+				while(directBuffer.hasRemaining()) to.write(directBuffer);
+				directBuffer.clear();
+			}
+		} finally {
+			from.close();
+			to.close();
+		}
+	}
+
+
+	//How the server used to serve chunks: reopen, seek and read into a new array every time
+	private static void reopenChunks(File source, long size) throws IOException {
+		for(long offset = 0; offset < size; offset += CHUNK_SIZE) {
+			RandomAccessFile raf = new RandomAccessFile(source, "rw");
+			byte[] fileData = new byte[(int)Math.min(CHUNK_SIZE, size - offset)];
+			raf.seek(offset);
+			raf.readFully(fileData);
+			raf.close();
+		}
+	}
+
+
+	private static void sharedChunks(File source, long size) throws IOException {
+		FileChannel channel = new RandomAccessFile(source, "r").getChannel();
+		try {
+			for(long offset = 0; offset < size; offset += CHUNK_SIZE) {
+				byte[] fileData = new byte[(int)Math.min(CHUNK_SIZE, size - offset)];
+				ByteBuffer into = ByteBuffer.wrap(fileData);
+				while(into.hasRemaining()) {
+					if(channel.read(into, offset + into.position()) < 0) throw new EOFException();
+				}
+			}
+		} finally {
+			channel.close();
+		}
+	}
+
+
+	private static void fill(File file, long size) throws IOException {
+		byte[] block = new byte[1 << 20];
+		new Random(15440).nextBytes(block);
+		OutputStream out = new BufferedOutputStream(new FileOutputStream(file), 1 << 20);
+		try {
+			for(long written = 0; written < size; written += block.length) {
+				out.write(block, 0, (int)Math.min(block.length, size - written));
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+
+	private static String label(long size) {
+		if(size >= 1L << 30) return (size >> 30) + " GB";
+		if(size >= 1L << 20) return (size >> 20) + " MB";
+		return (size >> 10) + " KB";
+	}
+}
@@ -0,0 +1,42 @@
+
+/**
+ * Eviction policy decides which closed file the proxy cache drops next. It is fed the
+ * events open and close already produce: every open is an access and pins the path
+ * while its in use, every close releases it back as an eviction candidate with its size.
+*/
+public interface EvictionPolicy {
+
+	/**
+	 * Record that a path was opened, whether it was a hit or a miss
+	 *
+	 * @param path
+	 * @return void.
+	*/
+	public void recordAccess(String path);
+
+	/**
+	 * Take a path out of the candidates while its in use
+	 *
+	 * @param path
+	 * @return void.
+	*/
+	public void pin(String path);
+
+	/**
+	 * Put a closed path back as a candidate
+	 *
+	 * @param path, size of its cached copy in bytes
+	 * @return void.
+	*/
+	public void release(String path, long size);
+
+	/**
+	 * Choose and forget the next path to evict
+	 *
+	 * @param none
+	 * @return the path or null if nothing can be evicted
+	*/
+	public String nextVictim();
+
+	public String name();
+}
@@ -0,0 +1,136 @@
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+
+/**
+ * Remote interface of the file server used by the proxies
+*/
+public interface FSInf extends Remote {
+
+	/**
+	 * Check whether a file exists and whether a cached copy of it is still valid
+	 *
+	 * @param filename, which proxy, whether it exists on the cache, version of the cached copy or -1, whether from unlink
+	 * @return [whetherItExists, whetherItsValid, lengthOfFile, version]
+	*/
+	public long[] fileExistsAndValid(String filename, int proxyNumber, boolean existsOnCache, long cachedVersion,
+		boolean unlink) throws RemoteException;
+
+	/**
+	 * Validate many cached copies in one round trip, leasing each path as a single check would
+	 *
+	 * @param paths, versions of the cached copies, which proxy
+	 * @return Current version of each path, -1 where the file no longer exists
+	*/
+	public long[] validateBatch(String[] paths, long[] versions, int proxyNumber) throws RemoteException;
+
+	public long fileInfo(String filename, int functionality) throws RemoteException;
+
+	public void unlockRead(String filename) throws RemoteException;
+
+	public byte[] readFile(String filename, int amountToRead, long offset, int stage) throws RemoteException;
+
+	public long writeFile(String filename, byte[] toWriteBuf, long offset, int stage, int proxyNumber)
+		throws RemoteException;
+
+	public int unlink(String path) throws RemoteException;
+
+	/**
+	 * Read part of a file as it was at a version, taking and releasing the read lock itself
+	 *
+	 * @param filename, amount to read, where to read from, version the caller validated
+	 * @return The bytes, null if the file has changed since that version
+	*/
+	public byte[] readVersion(String filename, int amountToRead, long offset, long version) throws RemoteException;
+
+	/**
+	 * Agree on a compression codec for a proxy's chunk transfers
+	 *
+	 * @param which proxy, mask of the ChunkCodec codecs it supports
+	 * @return Codec both sides support, ChunkCodec.NONE if there is none
+	*/
+	public int negotiateCodec(int proxyNumber, int supported) throws RemoteException;
+
+	/**
+	 * Read a chunk as a ChunkCodec frame, compressed unless it doesnt compress well
+	 *
+	 * @param filename, amount to read, where to read from, to unlock/lock/do nothing, codec to use
+	 * @return The frame or an empty array on failure
+	*/
+	public byte[] readFileCompressed(String filename, int amountToRead, long offset, int stage, int codec)
+		throws RemoteException;
+
+	/**
+	 * Write a chunk sent as a ChunkCodec frame, otherwise the same as writeFile
+	 *
+	 * @param filename, frame to write, offset to write from, lock/unlock/nothing to do, which proxy
+	 * @return New version on the last stage, 0 before it, -1 on failure
+	*/
+	public long writeFileCompressed(String filename, byte[] frame, long offset, int stage, int proxyNumber)
+		throws RemoteException;
+
+	/**
+	 * Register a callback the server uses to push invalidations of leased paths
+	 *
+	 * @param proxy number, exported callback
+	 * @return How long a lease granted by fileExistsAndValid lasts, in milliseconds
+	*/
+	public long registerCallback(int proxyNumber, CacheCallback callback) throws RemoteException;
+
+	/**
+	 * Register a proxy's peer source so other proxies can be pointed at its cache
+	 *
+	 * @param proxy number, exported peer source
+	 * @return void.
+	*/
+	public void registerPeer(int proxyNumber, PeerSource source) throws RemoteException;
+
+	/**
+	 * Proxies known to hold a version of a path, to fetch it from before asking the server
+	 *
+	 * @param filename, version validated, which proxy is asking
+	 * @return Hints to try in order, empty if there are none
+	*/
+	public PeerHint[] peerHints(String filename, long version, int proxyNumber) throws RemoteException;
+
+	/**
+	 * Per block weak and strong checksums of a file, used to refresh a stale cached copy
+	 *
+	 * @param filename
+	 * @return The checksums or null if the file cant be read
+	*/
+	public BlockChecksums blockChecksums(String filename) throws RemoteException;
+
+	/**
+	 * Patch the given ranges of a file, the last stage also sets the length and unlocks
+	 *
+	 * @param filename, offsets and data of each range, new length, lock/unlock/nothing to do, which proxy, server version the ranges were made against
+	 * @return New version on the last stage, 0 before it, -1 if refused because the server no longer has that copy
+	*/
+	public long writeRanges(String filename, long[] offsets, byte[][] data, long newLength, int stage, int proxyNumber,
+		long baseVersion) throws RemoteException;
+
+	/**
+	 * Set up a bulk fetch of a region, streamed by the server's transfer service
+	 *
+	 * @param filename, region offset and length, whether to release the read lock once sent
+	 * @return [sessionId, transferPort] or null if bulk transfer is unavailable
+	*/
+	public long[] openFetchSession(String filename, long offset, long length, boolean release)
+		throws RemoteException;
+
+	/**
+	 * Set up a bulk store of a whole file, committed and write-unlocked once received
+	 *
+	 * @param filename, new length of the file, which proxy
+	 * @return [sessionId, transferPort] or null if bulk transfer is unavailable
+	*/
+	public long[] openStoreSession(String filename, long length, int proxyNumber) throws RemoteException;
+
+	/**
+	 * Every file the server holds, used to move files between shards
+	 *
+	 * @param none
+	 * @return Paths relative to the root
+	*/
+	public String[] listFiles() throws RemoteException;
+}
@@ -0,0 +1,61 @@
+import java.util.*;
+
+
+/**
+ * GreedyDual-Size policy with uniform cost. Each candidate gets a priority of
+ * L + 1/size when released, the lowest priority is evicted and L rises to it. Small files
+ * outlive large ones unless they go unused while L inflates past them.
+*/
+public class GreedyDualSizePolicy implements EvictionPolicy {
+
+	//A candidate and its priority, sequence breaks ties in release order
+	private static class Entry implements Comparable<Entry> {
+		String path;
+		double priority;
+		long sequence;
+
+		Entry(String path, double priority, long sequence) {
+			this.path = path;
+			this.priority = priority;
+			this.sequence = sequence;
+		}
+
+		public int compareTo(Entry other) {
+			if(priority != other.priority) return priority < other.priority ? -1 : 1;
+			return Long.compare(sequence, other.sequence);
+		}
+	}
+
+	private TreeSet<Entry> queue = new TreeSet<Entry>();
+	private HashMap<String, Entry> entries = new HashMap<String, Entry>();
+	private double inflation = 0;
+	private long sequence = 0;
+
+	public void recordAccess(String path) {
+		return;
+	}
+
+	public synchronized void pin(String path) {
+		Entry entry = entries.remove(path);
+		if(entry != null) queue.remove(entry);
+	}
+
+	public synchronized void release(String path, long size) {
+		pin(path);
+		Entry entry = new Entry(path, inflation + 1.0 / Math.max(size, 1), sequence++);
+		entries.put(path, entry);
+		queue.add(entry);
+	}
+
+	public synchronized String nextVictim() {
+		Entry victim = queue.pollFirst();
+		if(victim == null) return null;
+		entries.remove(victim.path);
+		inflation = victim.priority;
+		return victim.path;
+	}
+
+	public String name() {
+		return "gds";
+	}
+}
@@ -0,0 +1,255 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+
+/**
+ * Hot tier keeps small, frequently opened cached versions in memory so their opens and
+ * reads never touch the disk. The memory is one direct buffer allocated up front and
+ * handed out in pages, nothing in it is seen by the garbage collector. Versions are
+ * promoted once their path has been opened often enough and demoted, least frequently
+ * opened first, when a promotion needs the room. Open counts are halved every so often so
+ * paths that went cold make way. The disk copy of a version stays where it is, this is
+ * only a faster copy of it.
+*/
+public class HotTier {
+
+	private static final int PAGE_SIZE = 4096;
+
+	//Halve the open counts after this many opens
+	private static final int AGE_INTERVAL = 16384;
+	private static final int MAX_TRACKED = 65536;
+
+	/**
+	 * A version held in memory. Its pages stay its own while any fd reads it, even if its
+	 * removed meanwhile.
+	*/
+	public static class Entry {
+		String key;
+		int[] pages;
+		int length;
+		int users = 0;
+		boolean removed = false;
+
+		public int length() {
+			return length;
+		}
+	}
+
+	private ByteBuffer slab;
+	private int[] freePages;
+	private int freeCount;
+	private int maxFileSize;
+	private HashMap<String, Entry> entries = new HashMap<String, Entry>();
+	private HashMap<String, Integer> opens = new HashMap<String, Integer>();
+	private int samples = 0;
+
+	private long hits = 0;
+	private long promotions = 0;
+	private long demotions = 0;
+
+
+	/**
+	 * CONSTRUCTOR allocates all the memory of the tier
+	 *
+	 * @param bytes of memory, largest version to hold
+	*/
+	public HotTier(long capacity, int maxFileSize) {
+		int pageCount = (int)Math.min(capacity / PAGE_SIZE, Integer.MAX_VALUE / PAGE_SIZE);
+		slab = ByteBuffer.allocateDirect(pageCount * PAGE_SIZE);
+		freePages = new int[pageCount];
+		for(int i = 0; i < pageCount; i++) freePages[i] = pageCount - 1 - i;
+		freeCount = pageCount;
+		this.maxFileSize = maxFileSize;
+	}
+
+
+	/**
+	 * Record an open of a path
+	 *
+	 * @param path
+	 * @return How often it has been opened lately
+	*/
+	public synchronized int recordOpen(String key) {
+		Integer count = opens.get(key);
+		count = (count == null) ? 1 : count + 1;
+		opens.put(key, count);
+		if(++samples >= AGE_INTERVAL || opens.size() > MAX_TRACKED) age();
+		return count;
+	}
+
+
+	public synchronized boolean contains(String fullPath) {
+		return entries.containsKey(fullPath);
+	}
+
+
+	/**
+	 * Length of a version held in memory
+	 *
+	 * @param full path of the version
+	 * @return Its length, -1 if it isnt held
+	*/
+	public synchronized long length(String fullPath) {
+		Entry entry = entries.get(fullPath);
+		return (entry == null) ? -1 : entry.length;
+	}
+
+
+	/**
+	 * Acquire a version held in memory for an fd. Must be paired with release.
+	 *
+	 * @param full path of the version
+	 * @return The entry or null if it isnt held
+	*/
+	public synchronized Entry acquire(String fullPath) {
+		Entry entry = entries.get(fullPath);
+		if(entry == null) return null;
+		entry.users++;
+		hits++;
+		return entry;
+	}
+
+
+	public synchronized void release(Entry entry) {
+		entry.users--;
+		if(entry.users == 0 && entry.removed) freeEntry(entry);
+	}
+
+
+	/**
+	 * Promote reads a version into memory and acquires it, demoting colder versions if
+	 * needed. Nothing is demoted for a version opened less often than they were.
+	 *
+	 * @param full path of the version, its path, the file on disk
+	 * @return The acquired entry or null if it cant be held
+	*/
+	public Entry promote(String fullPath, String key, File file) {
+		long length = file.length();
+		if(length > maxFileSize) return null;
+		byte[] data = new byte[(int)length];
+		try {
+			RandomAccessFile raf = new RandomAccessFile(file, "r");
+			try {
+				raf.readFully(data);
+			} finally {
+				raf.close();
+			}
+		} catch (IOException ie) {
+			return null;
+		}
+
+		synchronized(this) {
+			Entry held = entries.get(fullPath);
+			if(held != null) {
+				held.users++;
+				return held;
+			}
+			int needed = (data.length + PAGE_SIZE - 1) / PAGE_SIZE;
+			if(!makeRoom(needed, count(key))) return null;
+
+			Entry entry = new Entry();
+			entry.key = key;
+			entry.length = data.length;
+			entry.pages = new int[needed];
+			ByteBuffer into = slab.duplicate();
+			for(int i = 0; i < needed; i++) {
+				entry.pages[i] = freePages[--freeCount];
+				into.position(entry.pages[i] * PAGE_SIZE);
+				into.put(data, i * PAGE_SIZE, Math.min(PAGE_SIZE, data.length - i * PAGE_SIZE));
+			}
+			entry.users = 1;
+			entries.put(fullPath, entry);
+			promotions++;
+			return entry;
+		}
+	}
+
+
+	/**
+	 * Remove forgets a version that is being deleted, its memory is freed once no fd reads it
+	 *
+	 * @param full path of the version
+	 * @return void.
+	*/
+	public synchronized void remove(String fullPath) {
+		Entry entry = entries.remove(fullPath);
+		if(entry == null) return;
+		entry.removed = true;
+		if(entry.users == 0) freeEntry(entry);
+	}
+
+
+	/**
+	 * Read copies bytes of an acquired version into a buffer
+	 *
+	 * @param entry, position in the version, buffer to fill
+	 * @return Number of bytes copied, 0 at or past the end
+	*/
+	public int read(Entry entry, long position, byte[] buf) {
+		if(position >= entry.length) return 0;
+		int total = (int)Math.min(buf.length, entry.length - position);
+		ByteBuffer from = slab.duplicate();
+		int copied = 0;
+		while(copied < total) {
+			long at = position + copied;
+			int page = entry.pages[(int)(at / PAGE_SIZE)];
+			int inPage = (int)(at % PAGE_SIZE);
+			int amount = Math.min(total - copied, PAGE_SIZE - inPage);
+			from.position(page * PAGE_SIZE + inPage);
+			from.get(buf, copied, amount);
+			copied += amount;
+		}
+		return copied;
+	}
+
+
+	//Demote the least opened versions nobody is reading until enough pages are free
+	private boolean makeRoom(int needed, int opensOfNew) {
+		while(freeCount < needed) {
+			String coldest = null;
+			int coldestOpens = Integer.MAX_VALUE;
+			for(Map.Entry<String, Entry> held : entries.entrySet()) {
+				if(held.getValue().users > 0) continue;
+				int heldOpens = count(held.getValue().key);
+				if(heldOpens < coldestOpens) {
+					coldest = held.getKey();
+					coldestOpens = heldOpens;
+				}
+			}
+			if(coldest == null || coldestOpens > opensOfNew) return false;
+			freeEntry(entries.remove(coldest));
+			demotions++;
+		}
+		return true;
+	}
+
+
+	private void freeEntry(Entry entry) {
+		for(int page : entry.pages) freePages[freeCount++] = page;
+		entry.pages = new int[0];
+	}
+
+
+	private int count(String key) {
+		Integer count = opens.get(key);
+		return (count == null) ? 0 : count;
+	}
+
+
+	private void age() {
+		samples = 0;
+		for(Iterator<Map.Entry<String, Integer>> it = opens.entrySet().iterator(); it.hasNext();) {
+			Map.Entry<String, Integer> entry = it.next();
+			int halved = entry.getValue() / 2;
+			if(halved == 0) it.remove();
+			else entry.setValue(halved);
+		}
+	}
+
+
+	public synchronized String toString() {
+		return String.format("hotEntries=%d hotOpens=%d promotions=%d demotions=%d freeBytes=%d",
+			entries.size(), hits, promotions, demotions, (long)freeCount * PAGE_SIZE);
+	}
+}
@@ -0,0 +1,360 @@
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+
+/**
+ * Lazy file is a cached version fetched block by block as its read instead of all at open.
+ * Blocks are kept as separate files in a directory of their own, so the least recently
+ * read ones can be dropped when the cache runs short and a file larger than the cache can
+ * still be read. Reads that carry on where the last one stopped fetch a window ahead of
+ * them that doubles every time, up to a limit and as far as the cache has room for. Only
+ * the blocks a read asks for can fail it. Every fetch names the server version the
+ * file was validated at, once the file is written on the server it cant be read through
+ * here any more.
+*/
+public class LazyFile {
+
+	public static final String DIR_SUFFIX = ".blocks";
+
+	/**
+	 * Store is where a lazy file gets its blocks and the space to keep them
+	*/
+	public interface Store {
+		/**
+		 * Fetch a region of the version the file was validated at
+		 *
+		 * @param offset, amount
+		 * @return The bytes or null if the server has moved on to another version
+		*/
+		byte[] fetch(long offset, int amount) throws IOException;
+
+		/**
+		 * Take space in the cache for blocks about to be fetched, evicting if needed
+		 *
+		 * @param bytes
+		 * @return true if the space was taken
+		*/
+		boolean reserve(long bytes);
+
+		void release(long bytes);
+	}
+
+	private File dir;
+	private long length;
+	private int blockSize;
+	private int maxReadAhead;
+	private Store store;
+
+	//Blocks on disk and their lengths, least recently read first
+	private LinkedHashMap<Integer, Integer> blocks = new LinkedHashMap<Integer, Integer>(64, 0.75f, true);
+	private long stored = 0;
+	private boolean released = false;
+
+	//Where the last read ended and how many blocks the next sequential one fetches ahead
+	private long sequentialEnd = -1;
+	private int readAhead = 0;
+
+	//Block file read last, kept open since reads are usually smaller than a block
+	private int openBlock = -1;
+	private RandomAccessFile openSegment;
+
+
+	/**
+	 * CONSTRUCTOR, nothing is fetched until the first read
+	*/
+	public LazyFile(File dir, long length, int blockSize, int maxReadAhead, Store store) throws IOException {
+		if(!dir.isDirectory() && !dir.mkdirs()) throw new IOException("Cant create " + dir);
+		this.dir = dir;
+		this.length = length;
+		this.blockSize = blockSize;
+		this.maxReadAhead = Math.max(1, maxReadAhead);
+		this.store = store;
+	}
+
+
+	public long length() {
+		return length;
+	}
+
+
+	public synchronized long stored() {
+		return stored;
+	}
+
+
+	/**
+	 * Read copies bytes at a position into a buffer, fetching the blocks they fall in first
+	 *
+	 * @param position in the file, buffer to fill
+	 * @return Number of bytes copied, 0 at or past the end of the file, raises an exception
+	 *         if the blocks cant be fetched
+	*/
+	public synchronized int read(long position, byte[] buf) throws IOException {
+		if(released) throw new IOException("Lazy file released");
+		if(position >= length || buf.length == 0) return 0;
+		int total = (int)Math.min(buf.length, length - position);
+		int first = block(position);
+		int last = block(position + total - 1);
+
+		//Sequential reads widen the window fetched ahead, anything else starts it over. The
+		//window shrinks back to what the cache had room for.
+		if(position == sequentialEnd) readAhead = Math.min(maxReadAhead, Math.max(1, readAhead * 2));
+		else readAhead = 0;
+		ensure(first, last);
+		if(readAhead > 0) readAhead = readAhead(first, last + 1, Math.min(blockCount() - 1, last + readAhead));
+
+		int copied = 0;
+		while(copied < total) {
+			long at = position + copied;
+			int index = block(at);
+			int inBlock = (int)(at - (long)index * blockSize);
+			int amount = Math.min(total - copied, blockLength(index) - inBlock);
+			RandomAccessFile segment = segment(index);
+			segment.seek(inBlock);
+			segment.readFully(buf, copied, amount);
+			copied += amount;
+		}
+		sequentialEnd = position + total;
+		return total;
+	}
+
+
+	/**
+	 * Prefetch makes sure the block at a position is here, used when seeking
+	 *
+	 * @param position in the file
+	 * @return void, raises an exception if the block cant be fetched
+	*/
+	public synchronized void prefetch(long position) throws IOException {
+		if(released || position >= length) return;
+		int index = block(position);
+		ensure(index, index);
+	}
+
+
+	/**
+	 * Copy to writes the whole version into a channel, fetching the blocks that arent here
+	 * straight into it without keeping them. Used to turn the lazy file into a plain one.
+	 *
+	 * @param channel to write to, from offset 0
+	 * @return void, raises an exception if a block cant be fetched
+	*/
+	public synchronized void copyTo(FileChannel to) throws IOException {
+		if(released) throw new IOException("Lazy file released");
+		int count = blockCount();
+		for(int index = 0; index < count; index++) {
+			long at = (long)index * blockSize;
+			int amount = blockLength(index);
+			byte[] data;
+			if(blocks.containsKey(index)) {
+				data = new byte[amount];
+				RandomAccessFile segment = segment(index);
+				segment.seek(0);
+				segment.readFully(data);
+			} else {
+				data = fetch(at, amount);
+			}
+			ByteBuffer from = ByteBuffer.wrap(data);
+			while(from.hasRemaining()) at += to.write(from, at);
+		}
+	}
+
+
+	/**
+	 * Release deletes every block. The space they took is handed back to the caller to
+	 * give back, not to the store.
+	 *
+	 * @param none
+	 * @return Bytes the blocks took
+	*/
+	public synchronized long release() {
+		closeSegment();
+		for(Integer index : blocks.keySet()) segmentFile(index).delete();
+		dir.delete();
+		blocks.clear();
+		long freed = stored;
+		stored = 0;
+		released = true;
+		return freed;
+	}
+
+
+	/**
+	 * Ensure fetches the missing blocks of a span, each run of missing blocks in one request
+	 *
+	 * @param first and last block wanted
+	 * @return void, raises an exception if a block cant be fetched
+	*/
+	private void ensure(int first, int last) throws IOException {
+		int index = first;
+		while(index <= last) {
+			if(blocks.get(index) != null) {
+				index++;
+				continue;
+			}
+			int runEnd = runEnd(index, last);
+			makeRoom(runBytes(index, runEnd), first, last);
+			fetchRun(index, runEnd);
+			index = runEnd + 1;
+		}
+	}
+
+
+	/**
+	 * Read ahead fetches the missing blocks of a span past what a read needs, as many as
+	 * there is room for without dropping any block from the read on. A run that doesnt fit
+	 * is halved, a block that doesnt or cant be fetched ends it. Never fails the read.
+	 *
+	 * @param first block the read needs, first and last block to fetch ahead
+	 * @return Number of blocks ahead that are here, from the first one on
+	*/
+	private int readAhead(int keepFirst, int from, int to) {
+		int index = from;
+		while(index <= to) {
+			if(blocks.get(index) != null) {
+				index++;
+				continue;
+			}
+			int runEnd = runEnd(index, to);
+			while(!tryMakeRoom(runBytes(index, runEnd), keepFirst, runEnd)) {
+				if(runEnd == index) return index - from;
+				runEnd = index + (runEnd - index) / 2;
+			}
+			try {
+				fetchRun(index, runEnd);
+			} catch (IOException ie) {
+				return index - from;
+			}
+			index = runEnd + 1;
+		}
+		return index - from;
+	}
+
+
+	//Last block of the run of missing blocks starting at index, at most a window long
+	private int runEnd(int index, int last) {
+		int runEnd = index;
+		while(runEnd < last && runEnd - index + 1 < maxReadAhead && !blocks.containsKey(runEnd + 1)) runEnd++;
+		return runEnd;
+	}
+
+
+	private int runBytes(int from, int to) {
+		return (int)(Math.min(length, (long)(to + 1) * blockSize) - (long)from * blockSize);
+	}
+
+
+	//Fetch a run of blocks into space already reserved for them
+	private void fetchRun(int from, int to) throws IOException {
+		long start = (long)from * blockSize;
+		int amount = runBytes(from, to);
+		int kept = 0;
+		try {
+			byte[] data = fetch(start, amount);
+			for(int index = from; index <= to; index++) {
+				int blockLength = blockLength(index);
+				FileOutputStream out = new FileOutputStream(segmentFile(index));
+				try {
+					out.write(data, (int)((long)index * blockSize - start), blockLength);
+				} finally {
+					out.close();
+				}
+				blocks.put(index, blockLength);
+				stored += blockLength;
+				kept += blockLength;
+			}
+		} finally {
+			if(kept < amount) store.release(amount - kept);
+		}
+	}
+
+
+	private byte[] fetch(long offset, int amount) throws IOException {
+		byte[] data = store.fetch(offset, amount);
+		if(data == null) throw new IOException("File changed on the server");
+		if(data.length != amount) throw new IOException("Short block fetch at " + offset);
+		return data;
+	}
+
+
+	/**
+	 * Make room reserves space for blocks, dropping our own least recently read blocks
+	 * outside the span being read when the rest of the cache cant give any
+	 *
+	 * @param bytes, first and last block that must stay
+	 * @return void, raises an exception if there isnt enough room even then
+	*/
+	private void makeRoom(long bytes, int keepFirst, int keepLast) throws IOException {
+		if(!tryMakeRoom(bytes, keepFirst, keepLast)) throw new IOException("No room in the cache for " + bytes + " bytes");
+	}
+
+
+	private boolean tryMakeRoom(long bytes, int keepFirst, int keepLast) {
+		while(!store.reserve(bytes)) {
+			Integer victim = null;
+			for(Integer index : blocks.keySet()) {
+				if(index < keepFirst || index > keepLast) {
+					victim = index;
+					break;
+				}
+			}
+			if(victim == null) return false;
+			dropBlock(victim);
+		}
+		return true;
+	}
+
+
+	private void dropBlock(int index) {
+		if(index == openBlock) closeSegment();
+		segmentFile(index).delete();
+		int blockLength = blocks.remove(index);
+		stored -= blockLength;
+		store.release(blockLength);
+	}
+
+
+	private RandomAccessFile segment(int index) throws IOException {
+		if(index != openBlock) {
+			closeSegment();
+			openSegment = new RandomAccessFile(segmentFile(index), "r");
+			openBlock = index;
+		}
+		return openSegment;
+	}
+
+
+	private void closeSegment() {
+		if(openSegment == null) return;
+		try {
+			openSegment.close();
+		} catch (IOException ie) {
+			//Only read through
+		}
+		openSegment = null;
+		openBlock = -1;
+	}
+
+
+	private File segmentFile(int index) {
+		return new File(dir, Integer.toString(index));
+	}
+
+
+	private int block(long position) {
+		return (int)(position / blockSize);
+	}
+
+
+	private int blockCount() {
+		return (int)((length + blockSize - 1) / blockSize);
+	}
+
+
+	private int blockLength(int index) {
+		return (int)Math.min(blockSize, length - (long)index * blockSize);
+	}
+}
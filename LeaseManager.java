@@ -0,0 +1,237 @@
+import java.rmi.RemoteException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Lease manager tracks which registered proxies hold a read lease on which path and
+ * pushes invalidations to them when the path is written or unlinked. A proxy with an
+ * unexpired lease serves opens without asking the server. Callbacks are sent in the
+ * background so the writer never waits on them. Until each holder acknowledged or its
+ * lease ran out, opens of the path that reach the server wait for it instead, so no proxy
+ * ever serves a copy older than the last commit once its lease has run out.
+*/
+public class LeaseManager {
+
+	private static final long CALLBACK_TIMEOUT = 2000;
+	private static final long SWEEP_INTERVAL = 4096;
+
+	//Holders of a path called back but not heard from yet, when each of their leases ends
+	//and when the last callback went out
+	private static class Revocation {
+		HashMap<Integer, Long> unacknowledged = new HashMap<Integer, Long>();
+		long sent;
+		boolean retired = false;
+	}
+
+	private long leaseMillis;
+	private ConcurrentHashMap<Integer, CacheCallback> callbackStore = new ConcurrentHashMap<Integer, CacheCallback>();
+	private ConcurrentHashMap<String, ConcurrentHashMap<Integer, Long>> leaseStore =
+		new ConcurrentHashMap<String, ConcurrentHashMap<Integer, Long>>(5000, 0.75f, 64);
+	private ConcurrentHashMap<String, Revocation> revocationStore = new ConcurrentHashMap<String, Revocation>();
+	private AtomicLong grants = new AtomicLong();
+	private ExecutorService callbackPool = Executors.newCachedThreadPool(new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "lease-callback");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+
+
+	/**
+	 * CONSTRUCTOR
+	*/
+	public LeaseManager(long leaseMillis) {
+		this.leaseMillis = leaseMillis;
+	}
+
+
+	/**
+	 * Register a proxy's callback, replacing any earlier one
+	 *
+	 * @param proxy number, its callback
+	 * @return Lease duration in milliseconds
+	*/
+	public long register(int proxyNumber, CacheCallback callback) {
+		callbackStore.put(proxyNumber, callback);
+		return leaseMillis;
+	}
+
+
+	/**
+	 * Grant a lease on a path to a proxy if it registered a callback
+	 *
+	 * @param path, proxy number
+	 * @return void.
+	*/
+	public void grant(String path, int proxyNumber) {
+		if(!callbackStore.containsKey(proxyNumber)) return;
+		if(grants.incrementAndGet() % SWEEP_INTERVAL == 0) sweep();
+		while(true) {
+			ConcurrentHashMap<Integer, Long> holders = leaseStore.get(path);
+			if(holders == null) {
+				ConcurrentHashMap<Integer, Long> created = new ConcurrentHashMap<Integer, Long>();
+				holders = leaseStore.putIfAbsent(path, created);
+				if(holders == null) holders = created;
+			}
+
+			//Retry if the holder map was reclaimed before we got to it
+			synchronized(holders) {
+				if(leaseStore.get(path) != holders) continue;
+				holders.put(proxyNumber, System.currentTimeMillis() + leaseMillis);
+				return;
+			}
+		}
+	}
+
+
+	/**
+	 * Drop expired leases, the holder maps they leave empty and revocations left to run out
+	 *
+	 * @param none
+	 * @return void.
+	*/
+	private void sweep() {
+		long now = System.currentTimeMillis();
+		for(Map.Entry<String, ConcurrentHashMap<Integer, Long>> entry : leaseStore.entrySet()) {
+			ConcurrentHashMap<Integer, Long> holders = entry.getValue();
+			for(Map.Entry<Integer, Long> holder : holders.entrySet()) {
+				if(holder.getValue() <= now) holders.remove(holder.getKey(), holder.getValue());
+			}
+			reclaim(entry.getKey(), holders);
+		}
+
+		//Records nobody opened the path again to wait on
+		for(Map.Entry<String, Revocation> entry : revocationStore.entrySet()) {
+			synchronized(entry.getValue()) {
+				if(!entry.getValue().retired) expired(entry.getKey(), entry.getValue(), now);
+			}
+		}
+	}
+
+
+	private void reclaim(String path, ConcurrentHashMap<Integer, Long> holders) {
+		synchronized(holders) {
+			if(holders.isEmpty()) leaseStore.remove(path, holders);
+		}
+	}
+
+
+	/**
+	 * Revoke every lease on a path but the writer's and call back each unexpired holder in
+	 * the background. A holder that cant be reached loses its callback and is waited out by
+	 * the next open instead.
+	 *
+	 * @param path, proxy that made the change or -1 to invalidate everyone
+	 * @return void.
+	*/
+	public void invalidate(final String path, int writerProxy) {
+		ConcurrentHashMap<Integer, Long> holders = leaseStore.get(path);
+		if(holders == null) return;
+
+		//The writer keeps its lease, its cache already has what it wrote
+		long now = System.currentTimeMillis();
+		for(Integer proxy : holders.keySet()) {
+			if(proxy == writerProxy) continue;
+			Long expiry = holders.remove(proxy);
+			if(expiry == null || expiry <= now) continue;
+			final CacheCallback callback = callbackStore.get(proxy);
+			if(callback == null) continue;
+			final int holder = proxy;
+			final Revocation revocation = revoking(path, holder, expiry);
+			callbackPool.execute(new Runnable() {
+				public void run() {
+					try {
+						callback.invalidate(path);
+					} catch (RemoteException re) {
+						//Its lease is waited out, it wont be given another one
+						callbackStore.remove(holder, callback);
+						return;
+					}
+					acknowledged(path, revocation, holder);
+				}
+			});
+		}
+
+		reclaim(path, holders);
+	}
+
+
+	//Record a holder as called back, retrying if the path's record was retired meanwhile
+	private Revocation revoking(String path, int proxyNumber, long expiry) {
+		while(true) {
+			Revocation revocation = revocationStore.get(path);
+			if(revocation == null) {
+				Revocation created = new Revocation();
+				revocation = revocationStore.putIfAbsent(path, created);
+				if(revocation == null) revocation = created;
+			}
+			synchronized(revocation) {
+				if(revocation.retired) continue;
+				Long earlier = revocation.unacknowledged.get(proxyNumber);
+				if(earlier == null || earlier < expiry) revocation.unacknowledged.put(proxyNumber, expiry);
+				revocation.sent = System.currentTimeMillis();
+				return revocation;
+			}
+		}
+	}
+
+
+	//Retire a path's record once every lease in it has run out. Caller holds its monitor.
+	private boolean expired(String path, Revocation revocation, long now) {
+		if(Collections.max(revocation.unacknowledged.values()) > now) return false;
+		revocation.retired = true;
+		revocationStore.remove(path, revocation);
+		return true;
+	}
+
+
+	private void acknowledged(String path, Revocation revocation, int proxyNumber) {
+		synchronized(revocation) {
+			revocation.unacknowledged.remove(proxyNumber);
+			if(revocation.unacknowledged.isEmpty()) {
+				revocation.retired = true;
+				revocationStore.remove(path, revocation);
+			}
+			revocation.notifyAll();
+		}
+	}
+
+
+	/**
+	 * Await revoked waits until every holder called back about a path acknowledged or its
+	 * lease ran out, so a new lease or version is only handed out once the old ones are gone.
+	 * Holders that dont answer within the callback timeout lose their callback.
+	 *
+	 * @param path
+	 * @return void.
+	*/
+	public void awaitRevoked(String path) {
+		Revocation revocation = revocationStore.get(path);
+		if(revocation == null) return;
+		synchronized(revocation) {
+			while(!revocation.retired) {
+				long now = System.currentTimeMillis();
+				if(expired(path, revocation, now)) return;
+				long remaining = Collections.max(revocation.unacknowledged.values()) - now;
+				long unanswered = revocation.sent + CALLBACK_TIMEOUT - now;
+				if(unanswered <= 0) {
+					for(Integer proxy : revocation.unacknowledged.keySet()) callbackStore.remove(proxy);
+				} else {
+					remaining = Math.min(remaining, unanswered);
+				}
+				try {
+					revocation.wait(remaining);
+				} catch (InterruptedException ie) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,239 @@
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.StampedLock;
+
+
+/**
+ * Lock table hands out per file read/write locks. Entries are created the first time a
+ * file is locked and dropped again once nobody holds or waits on them, so the table only
+ * ever holds files in active use. The table is split into stripes with their own monitor,
+ * so lookups for different files rarely contend.
+ *
+ * Locks are taken and released by different RMI calls which may land on different threads,
+ * so they are StampedLocks which, unlike ReentrantReadWriteLock, are not owned by a thread.
+ * For the same reason a reader that died never gives its lock back, so a writer that has
+ * waited long enough can expire the read locks of a file nobody has read in a while.
+*/
+public class LockTable {
+
+	//Lock of one file and how many callers hold or wait on it
+	private static class Entry {
+		StampedLock lock = new StampedLock();
+		int users = 0;
+
+		//Last time the file was read locked or read, read locks expired and not yet unlocked
+		volatile long lastRead;
+		int forfeited = 0;
+	}
+
+	private HashMap<String, Entry>[] stripes;
+
+
+	/**
+	 * CONSTRUCTOR, stripe count is rounded up to a power of two
+	*/
+	@SuppressWarnings("unchecked")
+	public LockTable(int stripeCount) {
+		int count = 1;
+		while(count < stripeCount) count <<= 1;
+		stripes = (HashMap<String, Entry>[]) new HashMap<?, ?>[count];
+		for(int i = 0; i < count; i++) stripes[i] = new HashMap<String, Entry>();
+	}
+
+
+	private HashMap<String, Entry> stripeFor(String filename) {
+		int h = filename.hashCode();
+		h ^= (h >>> 16);
+		return stripes[h & (stripes.length - 1)];
+	}
+
+
+	//Find or create the entry and count the caller as a user
+	private Entry retain(String filename) {
+		HashMap<String, Entry> stripe = stripeFor(filename);
+		synchronized(stripe) {
+			Entry entry = stripe.get(filename);
+			if(entry == null) {
+				entry = new Entry();
+				stripe.put(filename, entry);
+			}
+			entry.users++;
+			return entry;
+		}
+	}
+
+
+	//Drop the caller as a user, reclaiming the entry once nobody is left
+	private void release(String filename, Entry entry) {
+		HashMap<String, Entry> stripe = stripeFor(filename);
+		synchronized(stripe) {
+			entry.users--;
+			if(entry.users == 0) stripe.remove(filename);
+		}
+	}
+
+
+	private Entry lookup(String filename) {
+		HashMap<String, Entry> stripe = stripeFor(filename);
+		synchronized(stripe) {
+			return stripe.get(filename);
+		}
+	}
+
+
+	/**
+	 * Lock a file for reading, blocks while a writer holds it
+	 *
+	 * @param filename
+	 * @return void.
+	*/
+	public void lockRead(String filename) {
+		Entry entry = retain(filename);
+		try {
+			entry.lock.asReadLock().lockInterruptibly();
+		} catch (InterruptedException ie) {
+			release(filename, entry);
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted waiting for read lock on " + filename);
+		}
+		entry.lastRead = System.currentTimeMillis();
+	}
+
+
+	/**
+	 * Touch records that a read lock holder is still reading the file
+	 *
+	 * @param filename
+	 * @return void.
+	*/
+	public void touch(String filename) {
+		Entry entry = lookup(filename);
+		if(entry != null) entry.lastRead = System.currentTimeMillis();
+	}
+
+
+	/**
+	 * Lock a file for writing, blocks while anyone else holds it
+	 *
+	 * @param filename
+	 * @return void.
+	*/
+	public void lockWrite(String filename) {
+		Entry entry = retain(filename);
+		try {
+			entry.lock.asWriteLock().lockInterruptibly();
+		} catch (InterruptedException ie) {
+			release(filename, entry);
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted waiting for write lock on " + filename);
+		}
+	}
+
+
+	/**
+	 * Lock a file for writing, giving up after a while
+	 *
+	 * @param filename, how long to wait in milliseconds
+	 * @return true if the lock was taken
+	*/
+	public boolean tryLockWrite(String filename, long timeout) {
+		Entry entry = retain(filename);
+		boolean locked = false;
+		try {
+			locked = entry.lock.tryWriteLock(timeout, TimeUnit.MILLISECONDS) != 0;
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted waiting for write lock on " + filename);
+		} finally {
+			if(!locked) release(filename, entry);
+		}
+		return locked;
+	}
+
+
+	/**
+	 * Expire readers releases every read lock on a file that hasnt been read for a while.
+	 * Their holders are taken to be gone, when one of them does unlock later nothing more is
+	 * released.
+	 *
+	 * @param filename, how long the file has to have gone unread in milliseconds
+	 * @return Number of read locks released
+	*/
+	public int expireReaders(String filename, long idle) {
+		HashMap<String, Entry> stripe = stripeFor(filename);
+		synchronized(stripe) {
+			Entry entry = stripe.get(filename);
+			if(entry == null || System.currentTimeMillis() - entry.lastRead <= idle) return 0;
+			int expired = 0;
+			while(entry.lock.tryUnlockRead()) {
+				entry.forfeited++;
+				entry.users--;
+				expired++;
+			}
+			if(entry.users == 0) stripe.remove(filename);
+			return expired;
+		}
+	}
+
+
+	/**
+	 * Release a read lock
+	 *
+	 * @param filename
+	 * @return false if the file was not read locked
+	*/
+	public boolean unlockRead(String filename) {
+		HashMap<String, Entry> stripe = stripeFor(filename);
+		synchronized(stripe) {
+			Entry entry = stripe.get(filename);
+			if(entry == null) return false;
+
+			//The lock of an expired reader was already released for it
+			if(entry.forfeited > 0) {
+				entry.forfeited--;
+				return true;
+			}
+			if(!entry.lock.tryUnlockRead()) return false;
+			entry.users--;
+			if(entry.users == 0) stripe.remove(filename);
+			return true;
+		}
+	}
+
+
+	/**
+	 * Release a write lock
+	 *
+	 * @param filename
+	 * @return false if the file was not write locked
+	*/
+	public boolean unlockWrite(String filename) {
+		Entry entry = lookup(filename);
+		if(entry == null) return false;
+		try {
+			entry.lock.asWriteLock().unlock();
+		} catch (IllegalMonitorStateException imse) {
+			return false;
+		}
+		release(filename, entry);
+		return true;
+	}
+
+
+	/**
+	 * Number of files with a live entry
+	 *
+	 * @param none
+	 * @return count
+	*/
+	public int size() {
+		int total = 0;
+		for(HashMap<String, Entry> stripe : stripes) {
+			synchronized(stripe) {
+				total += stripe.size();
+			}
+		}
+		return total;
+	}
+}
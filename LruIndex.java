@@ -0,0 +1,183 @@
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+
+/**
+ * LRU index keeps keys in least to most recently used order with O(1) touch, remove and
+ * poll of the eldest key. Keys are spread over independently locked segments, each an
+ * intrusive doubly linked list indexed by a hashmap. Every touch takes a global stamp so
+ * the eldest key overall is the eldest head among the segments.
+*/
+public class LruIndex {
+
+	//A key's place in its segment's list
+	private static class Node {
+		String key;
+		long stamp;
+		Node prev;
+		Node next;
+
+		Node(String key) {
+			this.key = key;
+		}
+	}
+
+	//One independently locked list, head is the eldest
+	private static class Segment {
+		ReentrantLock lock = new ReentrantLock();
+		HashMap<String, Node> index = new HashMap<String, Node>();
+		Node head = new Node(null);
+
+		Segment() {
+			head.prev = head;
+			head.next = head;
+		}
+
+		void unlink(Node node) {
+			node.prev.next = node.next;
+			node.next.prev = node.prev;
+		}
+
+		void append(Node node) {
+			node.prev = head.prev;
+			node.next = head;
+			head.prev.next = node;
+			head.prev = node;
+		}
+
+		Node eldest() {
+			return head.next == head ? null : head.next;
+		}
+	}
+
+	private Segment[] segments;
+	private AtomicLong clock = new AtomicLong();
+	private AtomicInteger size = new AtomicInteger();
+
+
+	/**
+	 * CONSTRUCTOR, segment count is rounded up to a power of two
+	*/
+	public LruIndex(int segmentCount) {
+		int count = 1;
+		while(count < segmentCount) count <<= 1;
+		segments = new Segment[count];
+		for(int i = 0; i < count; i++) segments[i] = new Segment();
+	}
+
+
+	private Segment segmentFor(String key) {
+		int h = key.hashCode();
+		h ^= (h >>> 16);
+		return segments[h & (segments.length - 1)];
+	}
+
+
+	/**
+	 * Touch makes a key the most recently used one, adding it if needed
+	 *
+	 * @param key
+	 * @return void.
+	*/
+	public void touch(String key) {
+		Segment segment = segmentFor(key);
+		segment.lock.lock();
+		try {
+			Node node = segment.index.get(key);
+			if(node == null) {
+				node = new Node(key);
+				segment.index.put(key, node);
+				size.incrementAndGet();
+			} else {
+				segment.unlink(node);
+			}
+			node.stamp = clock.incrementAndGet();
+			segment.append(node);
+		} finally {
+			segment.lock.unlock();
+		}
+	}
+
+
+	/**
+	 * Remove a key
+	 *
+	 * @param key
+	 * @return true if the key was present
+	*/
+	public boolean remove(String key) {
+		Segment segment = segmentFor(key);
+		segment.lock.lock();
+		try {
+			Node node = segment.index.remove(key);
+			if(node == null) return false;
+			segment.unlink(node);
+			size.decrementAndGet();
+			return true;
+		} finally {
+			segment.lock.unlock();
+		}
+	}
+
+
+	public boolean contains(String key) {
+		Segment segment = segmentFor(key);
+		segment.lock.lock();
+		try {
+			return segment.index.containsKey(key);
+		} finally {
+			segment.lock.unlock();
+		}
+	}
+
+
+	/**
+	 * Remove and return the least recently used key
+	 *
+	 * @param none
+	 * @return the key or null if the index is empty
+	*/
+	public String pollEldest() {
+		while(size.get() > 0) {
+			//Find the segment whose head is oldest without holding more than one lock
+			Segment oldestSegment = null;
+			long oldestStamp = Long.MAX_VALUE;
+			for(Segment segment : segments) {
+				segment.lock.lock();
+				try {
+					Node eldest = segment.eldest();
+					if(eldest != null && eldest.stamp < oldestStamp) {
+						oldestStamp = eldest.stamp;
+						oldestSegment = segment;
+					}
+				} finally {
+					segment.lock.unlock();
+				}
+			}
+			if(oldestSegment == null) return null;
+
+			//Take it unless it was touched or removed in the meantime, then look again
+			oldestSegment.lock.lock();
+			try {
+				Node eldest = oldestSegment.eldest();
+				if(eldest != null && eldest.stamp == oldestStamp) {
+					oldestSegment.unlink(eldest);
+					oldestSegment.index.remove(eldest.key);
+					size.decrementAndGet();
+					return eldest.key;
+				}
+			} finally {
+				oldestSegment.lock.unlock();
+			}
+		}
+		return null;
+	}
+
+
+	public int size() {
+		return size.get();
+	}
+}
@@ -0,0 +1,28 @@
+
+/**
+ * LRU policy evicts the least recently closed path, ignoring sizes and frequencies
+*/
+public class LruPolicy implements EvictionPolicy {
+
+	private LruIndex lruIndex = new LruIndex(64);
+
+	public void recordAccess(String path) {
+		return;
+	}
+
+	public void pin(String path) {
+		lruIndex.remove(path);
+	}
+
+	public void release(String path, long size) {
+		lruIndex.touch(path);
+	}
+
+	public String nextVictim() {
+		return lruIndex.pollEldest();
+	}
+
+	public String name() {
+		return "lru";
+	}
+}
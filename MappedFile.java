@@ -0,0 +1,64 @@
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+
+/**
+ * Mapped file is a read only memory mapping of a cached version that every fd reading
+ * that version shares. Files larger than one region are mapped as several regions, reads
+ * copy straight out of the mapping at an absolute position so they need no syscall and no
+ * shared state beyond the mapping itself.
+*/
+public class MappedFile {
+
+	private static final int REGION_SHIFT = 30;
+	private static final int REGION_SIZE = 1 << REGION_SHIFT;
+
+	private MappedByteBuffer[] regions;
+	private long length;
+
+
+	/**
+	 * CONSTRUCTOR maps the whole of an open file
+	*/
+	public MappedFile(RandomAccessFile raf) throws IOException {
+		FileChannel channel = raf.getChannel();
+		length = channel.size();
+		int count = (int)((length + REGION_SIZE - 1) >>> REGION_SHIFT);
+		regions = new MappedByteBuffer[count];
+		for(int i = 0; i < count; i++) {
+			long start = (long)i << REGION_SHIFT;
+			regions[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(REGION_SIZE, length - start));
+		}
+	}
+
+
+	public long length() {
+		return length;
+	}
+
+
+	/**
+	 * Read copies bytes at a position into a buffer, crossing regions if needed
+	 *
+	 * @param position in the file, buffer to fill
+	 * @return Number of bytes copied, 0 at or past the end of the file
+	*/
+	public int read(long position, byte[] buf) {
+		if(position >= length) return 0;
+		int total = (int)Math.min(buf.length, length - position);
+		int copied = 0;
+		while(copied < total) {
+			ByteBuffer region = regions[(int)(position >>> REGION_SHIFT)].duplicate();
+			int inRegion = (int)(position & (REGION_SIZE - 1));
+			int amount = Math.min(total - copied, region.limit() - inRegion);
+			region.position(inRegion);
+			region.get(buf, copied, amount);
+			copied += amount;
+			position += amount;
+		}
+		return copied;
+	}
+}
@@ -0,0 +1,107 @@
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+
+/**
+ * Peer directory remembers which registered proxies were handed the current version of a
+ * path, by validating it or by writing it, so a proxy about to fetch the path can be pointed
+ * at them instead of the server. Holders are only hints: a proxy may have evicted the copy or
+ * not finished fetching it yet, the proxy asked checks the version itself. A new version
+ * starts the holders over with its writer.
+*/
+public class PeerDirectory {
+
+	//Holders kept per path and paths tracked before the least recently touched are dropped
+	private static final int MAX_HOLDERS = 8;
+	private static final int MAX_PATHS = 65536;
+
+	//Proxies that hold a version of one path, most recent last
+	private static class Holders {
+		long version;
+		LinkedHashSet<Integer> proxies = new LinkedHashSet<Integer>();
+
+		Holders(long version) {
+			this.version = version;
+		}
+	}
+
+	private ConcurrentHashMap<Integer, PeerHint> peers = new ConcurrentHashMap<Integer, PeerHint>();
+	private LinkedHashMap<String, Holders> holderStore = new LinkedHashMap<String, Holders>(1024, 0.75f, true) {
+		protected boolean removeEldestEntry(Map.Entry<String, Holders> eldest) {
+			return size() > MAX_PATHS;
+		}
+	};
+	private long hintsGiven = 0;
+
+
+	/**
+	 * Register a proxy that serves peers, replacing any earlier registration
+	 *
+	 * @param proxy number, host its reachable at, its remote object
+	 * @return void.
+	*/
+	public void register(int proxyNumber, String host, PeerSource source) {
+		peers.put(proxyNumber, new PeerHint(proxyNumber, host, source));
+	}
+
+
+	/**
+	 * Record that a proxy holds or is about to hold a version of a path
+	 *
+	 * @param path, version, proxy number
+	 * @return void.
+	*/
+	public synchronized void holds(String path, long version, int proxyNumber) {
+		if(!peers.containsKey(proxyNumber)) return;
+		Holders holders = holderStore.get(path);
+		if(holders == null || holders.version != version) {
+			holders = new Holders(version);
+			holderStore.put(path, holders);
+		}
+		holders.proxies.remove(proxyNumber);
+		holders.proxies.add(proxyNumber);
+		if(holders.proxies.size() > MAX_HOLDERS) {
+			Iterator<Integer> oldest = holders.proxies.iterator();
+			oldest.next();
+			oldest.remove();
+		}
+	}
+
+
+	/**
+	 * Forget the holders of a path that was removed
+	 *
+	 * @param path
+	 * @return void.
+	*/
+	public synchronized void removed(String path) {
+		holderStore.remove(path);
+	}
+
+
+	/**
+	 * Hints for a proxy about to fetch a version of a path. The longest standing holders are
+	 * the likeliest to have finished their own fetch, so they come first, but where the list
+	 * starts rotates so a fan-out doesnt land on one peer.
+	 *
+	 * @param path, version wanted, proxy asking
+	 * @return The hints, empty if nobody else holds that version
+	*/
+	public synchronized PeerHint[] hints(String path, long version, int proxyNumber) {
+		Holders holders = holderStore.get(path);
+		if(holders == null || holders.version != version) return new PeerHint[0];
+		ArrayList<PeerHint> found = new ArrayList<PeerHint>();
+		for(Integer proxy : holders.proxies) {
+			PeerHint peer = peers.get(proxy);
+			if(proxy != proxyNumber && peer != null) found.add(peer);
+		}
+		if(found.size() > 1) Collections.rotate(found, -(int)(hintsGiven % found.size()));
+		hintsGiven += found.size();
+		return found.toArray(new PeerHint[0]);
+	}
+
+
+	public synchronized String toString() {
+		return "peers=" + peers.size() + " paths=" + holderStore.size() + " hintsGiven=" + hintsGiven;
+	}
+}
@@ -0,0 +1,25 @@
+import java.io.Serializable;
+
+
+/**
+ * Peer hint names a proxy that recently read or wrote a path, where its transfer service
+ * can be reached and the remote object to ask it for a session through
+*/
+public class PeerHint implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	public int proxyNumber;
+	public String host;
+	public PeerSource source;
+
+
+	/**
+	 * CONSTRUCTOR
+	*/
+	public PeerHint(int proxyNumber, String host, PeerSource source) {
+		this.proxyNumber = proxyNumber;
+		this.host = host;
+		this.source = source;
+	}
+}
@@ -0,0 +1,16 @@
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+
+/**
+ * Remote interface a proxy exports so other proxies can fetch cached files from it
+*/
+public interface PeerSource extends Remote {
+
+	/**
+	 * Set up a bulk fetch of the cached copy of a path, if its the given server version
+	 *
+	 * @param path, server version the caller validated
+	 * @return [sessionId, transferPort, length] or null if this proxy doesnt hold that version
+	*/
+	public long[] openPeerFetch(String path, long serverVersion) throws RemoteException;
+}
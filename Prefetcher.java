@@ -0,0 +1,210 @@
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Prefetcher pulls the files the access predictor expects next into the cache on a low
+ * priority background thread. Fetches are paced to a bandwidth budget and the files
+ * fetched but not opened yet are held to a space budget. A prefetched file counts as
+ * used when its next open finds it still current, and as wasted when its dropped or goes
+ * stale first, which gives the accuracy of the predictions.
+*/
+public class Prefetcher {
+
+	//Predictions waiting beyond this are dropped, newer ones are more useful
+	private static final int QUEUE_LIMIT = 64;
+
+	/**
+	 * Fetcher brings a file into the cache for the prefetcher
+	*/
+	public interface Fetcher {
+		/**
+		 * Fetch a file into the cache unless its there already, without evicting anything
+		 *
+		 * @param path, most bytes it may take
+		 * @return Bytes fetched, 0 if it was skipped, -1 if the fetch failed
+		*/
+		long fetch(String path, long maxBytes);
+	}
+
+	private AccessPredictor predictor = new AccessPredictor();
+	private Fetcher fetcher;
+	private int depth;
+	private double minConfidence;
+	private long bytesPerSecond;
+	private long spaceBudget;
+	private ThreadPoolExecutor pool;
+
+	//Paths queued or being fetched, and those fetched but not opened yet with their sizes
+	private HashSet<String> queued = new HashSet<String>();
+	private LinkedHashMap<String, Long> unused = new LinkedHashMap<String, Long>();
+	private long unusedBytes = 0;
+
+	//When the next fetch may start so fetches stay under the bandwidth budget
+	private long nextStartNanos = 0;
+
+	private AtomicLong issued = new AtomicLong();
+	private AtomicLong fetched = new AtomicLong();
+	private AtomicLong fetchedBytes = new AtomicLong();
+	private AtomicLong used = new AtomicLong();
+	private AtomicLong usedBytes = new AtomicLong();
+	private AtomicLong wasted = new AtomicLong();
+	private AtomicLong wastedBytes = new AtomicLong();
+
+
+	/**
+	 * CONSTRUCTOR starts the background thread
+	 *
+	 * @param fetcher, files to predict ahead, confidence needed, bandwidth budget in bytes per
+	 *        second or 0 for none, most bytes of unopened prefetched files to keep
+	*/
+	public Prefetcher(Fetcher fetcher, int depth, double minConfidence, long bytesPerSecond, long spaceBudget) {
+		this.fetcher = fetcher;
+		this.depth = Math.max(1, depth);
+		this.minConfidence = minConfidence;
+		this.bytesPerSecond = bytesPerSecond;
+		this.spaceBudget = spaceBudget;
+		pool = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(QUEUE_LIMIT),
+			new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "prefetch");
+					t.setDaemon(true);
+					t.setPriority(Thread.MIN_PRIORITY);
+					return t;
+				}
+			});
+	}
+
+
+	/**
+	 * Opened feeds an open to the predictor, settles whether a prefetch of the path paid off
+	 * and queues the paths predicted next
+	 *
+	 * @param path, whether the open could use the cached copy as is
+	 * @return void.
+	*/
+	public void opened(String path, boolean hit) {
+		synchronized(this) {
+			Long bytes = unused.remove(path);
+			if(bytes != null) {
+				unusedBytes -= bytes;
+				if(hit) {
+					used.incrementAndGet();
+					usedBytes.addAndGet(bytes);
+				} else {
+					wasted.incrementAndGet();
+					wastedBytes.addAndGet(bytes);
+				}
+			}
+		}
+		for(String next : predictor.recordOpen(path, depth, minConfidence)) schedule(next);
+	}
+
+
+	/**
+	 * Next unused gives up the oldest prefetched file nobody opened, for eviction to take
+	 * before anything that was actually used
+	 *
+	 * @param none
+	 * @return The path or null if there is none
+	*/
+	public synchronized String nextUnused() {
+		Iterator<Map.Entry<String, Long>> it = unused.entrySet().iterator();
+		if(!it.hasNext()) return null;
+		Map.Entry<String, Long> eldest = it.next();
+		it.remove();
+		unusedBytes -= eldest.getValue();
+		wasted.incrementAndGet();
+		wastedBytes.addAndGet(eldest.getValue());
+		return eldest.getKey();
+	}
+
+
+	/**
+	 * Forget a prefetched file that was removed without being opened
+	 *
+	 * @param path
+	 * @return void.
+	*/
+	public synchronized void forget(String path) {
+		Long bytes = unused.remove(path);
+		if(bytes == null) return;
+		unusedBytes -= bytes;
+		wasted.incrementAndGet();
+		wastedBytes.addAndGet(bytes);
+	}
+
+
+	private synchronized void schedule(final String path) {
+		if(queued.contains(path) || unused.containsKey(path)) return;
+		queued.add(path);
+		try {
+			pool.execute(new Runnable() {
+				public void run() {
+					prefetch(path);
+				}
+			});
+		} catch (RejectedExecutionException ree) {
+			queued.remove(path);
+		}
+	}
+
+
+	private void prefetch(String path) {
+		try {
+			pace();
+			long room;
+			synchronized(this) {
+				room = spaceBudget - unusedBytes;
+			}
+			if(room <= 0) return;
+			issued.incrementAndGet();
+			long bytes = fetcher.fetch(path, room);
+			if(bytes <= 0) return;
+			fetched.incrementAndGet();
+			fetchedBytes.addAndGet(bytes);
+			synchronized(this) {
+				unused.put(path, bytes);
+				unusedBytes += bytes;
+				if(bytesPerSecond > 0) nextStartNanos += bytes * 1000000000L / bytesPerSecond;
+			}
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+		} finally {
+			synchronized(this) {
+				queued.remove(path);
+			}
+		}
+	}
+
+
+	//Wait until the bandwidth budget allows another fetch
+	private void pace() throws InterruptedException {
+		if(bytesPerSecond <= 0) return;
+		long wait;
+		synchronized(this) {
+			long now = System.nanoTime();
+			if(nextStartNanos < now) nextStartNanos = now;
+			wait = nextStartNanos - now;
+		}
+		if(wait > 0) TimeUnit.NANOSECONDS.sleep(wait);
+	}
+
+
+	public double accuracy() {
+		long settled = used.get() + wasted.get();
+		if(settled == 0) return 0;
+		return (double)used.get() / settled;
+	}
+
+	public String toString() {
+		return String.format("issued=%d fetched=%d fetchedBytes=%d used=%d usedBytes=%d wasted=%d wastedBytes=%d accuracy=%.4f",
+			issued.get(), fetched.get(), fetchedBytes.get(), used.get(), usedBytes.get(), wasted.get(),
+			wastedBytes.get(), accuracy());
+	}
+}
@@ -9,6 +9,21 @@ import java.rmi.server.UnicastRemoteObject;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.rmi.registry.*;
 import java.rmi.Naming;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 class Proxy {
 
@@ -16,31 +31,153 @@ class Proxy {
 	private static Long cacheCapacity;
 	private static FSInf srv;
 	private static int proxyNumber;
-
-	private static class FileHandler implements FileHandling {
-
-		//Initializing all Hashmaps needed 
-		private static HashMap<Integer, RandomAccessFile> fdStore = new HashMap<Integer, RandomAccessFile>(3000);
-		private static HashMap<Integer, String> nameStore = new HashMap<Integer, String>(3000);
-		private static HashMap<Integer, String> dirStore = new HashMap<Integer, String>(3000);
-		private static HashMap<Integer, Integer> usedStore = new HashMap<Integer, Integer>(3000);
+	private static String serverHost;
+
+	//Points each server gets on the ring when the namespace is split over several servers
+	private static int shardVirtualNodes = Math.max(1, envInt("proxyshardvnodes", 128));
+
+	//Pipelined fetch settings, overridable through the environment
+	private static int fetchWindow = Math.max(1, envInt("proxyfetchwindow", 8));
+	private static int fetchThreads = Math.max(1, envInt("proxyfetchthreads", 8));
+	private static ExecutorService fetchPool;
+
+	//Stream whole-file fetches and write-backs over the server's transfer service
+	private static boolean bulkTransfer = envInt("proxybulktransfer", 1) == 1;
+
+	//Refresh stale copies by fetching only the blocks that changed
+	private static boolean deltaRefresh = envInt("proxydeltarefresh", 1) == 1;
+
+	//Hold server leases so opens of unchanged cached files skip the validation RPC
+	private static boolean leaseMode = envInt("proxyleases", 0) == 1;
+	private static long leaseMillis = 0;
+	private static CallbackReceiver callbackReceiver;
+
+	//Serve read only opens out of a memory mapping shared by all readers of a version
+	private static boolean mmapReads = envInt("proxymmapreads", 1) == 1;
+
+	//Open cached files for writing as copy-on-write overlays instead of full copies
+	private static boolean cowWrites = envInt("proxycowwrites", 1) == 1;
+
+	//Upload closed versions in the background instead of inside close
+	private static boolean asyncWriteBack = envInt("proxyasyncwriteback", 0) == 1;
+	private static int writeBackQueueSize = envInt("proxywritebackqueue", 64);
+	private static int writeBackThreads = envInt("proxywritebackthreads", 2);
+
+	//Let read only opens of big files return before the file is here and fetch blocks as they are read
+	private static boolean lazyFetch = envInt("proxylazyfetch", 0) == 1;
+	private static int lazyBlockSize = Math.max(1, envInt("proxylazyblockkb", 256)) << 10;
+	private static int lazyReadAhead = envInt("proxylazyreadahead", 16);
+
+	//Prefetch the files predicted to be opened next, within a bandwidth and a space budget
+	private static boolean prefetchMode = envInt("proxyprefetch", 0) == 1;
+	private static int prefetchDepth = envInt("proxyprefetchdepth", 2);
+	private static int prefetchConfidence = envInt("proxyprefetchconfidence", 30);
+	private static long prefetchBytesPerSecond = (long)envInt("proxyprefetchkbps", 8192) << 10;
+	private static long prefetchSpace = (long)envInt("proxyprefetchmb", 64) << 20;
+
+	//Keep small versions opened often in memory, 0 MB turns the tier off
+	private static long hotTierBytes = (long)envInt("proxyhottiermb", 0) << 20;
+	private static int hotMaxFile = envInt("proxyhotmaxkb", 64) << 10;
+	private static int hotPromoteAfter = envInt("proxyhotopens", 4);
+
+	//Keep one copy of cached versions with identical contents, versions smaller than the minimum are left alone
+	private static boolean dedupMode = envInt("proxydedup", 0) == 1;
+	private static long dedupMinSize = (long)envInt("proxydedupminkb", 16) << 10;
+
+	//Fetch files from other proxies that hold the same version before asking the server, and serve them ours
+	private static boolean peerMode = envInt("proxypeerfetch", 0) == 1;
+	private static long peerMinSize = (long)envInt("proxypeerminkb", 256) << 10;
+	private static TransferService peerTransfers;
+	private static PeerReceiver peerReceiver;
+
+	//Compress chunks on the wire with a codec agreed with the server: none, lz4, deflate or auto
+	private static int compressionOffer = ChunkCodec.maskOf(System.getenv("proxycompression"));
+	private static int chunkCodec = ChunkCodec.NONE;
+
+	//Keep the cache index on disk so a restart can reuse the cache directory
+	private static boolean journalMode = envInt("proxyjournal", 1) == 1;
+
+	//How often to renew the leases of the whole cache in one batched validation, 0 for never
+	private static int revalidateMillis = envInt("proxyrevalidatems", 0);
+
+	static class FileHandler implements FileHandling {
+
+		//Initializing all Hashmaps needed. The fd tables are shared by every client, fds of hot
+		//tier versions have no file so theirs holds nulls.
+		private static Map<Integer, RandomAccessFile> fdStore = Collections.synchronizedMap(new HashMap<Integer, RandomAccessFile>(3000));
+		private static ConcurrentHashMap<Integer, String> nameStore = new ConcurrentHashMap<Integer, String>(3000);
+		private static ConcurrentHashMap<Integer, String> dirStore = new ConcurrentHashMap<Integer, String>(3000);
+		private static ConcurrentHashMap<Integer, Integer> usedStore = new ConcurrentHashMap<Integer, Integer>(3000);
 		private static HashMap<String, Integer> closeStore = new HashMap<String, Integer>(3000);
 		private static HashMap<String, Integer> openStore =new HashMap<String, Integer>(3000);
 		private static HashMap<String, Integer> peopleStore = new HashMap<String, Integer>(3000);
-    	private static LinkedList<String> lruList = new LinkedList();
 
-    	//All the read-write locks for shared hashmaps and LRU linked list
+		//Dirty byte ranges of each fd and the version its contents started from
+		private static ConcurrentHashMap<Integer, RangeSet> dirtyStore = new ConcurrentHashMap<Integer, RangeSet>(3000);
+		private static ConcurrentHashMap<Integer, Integer> baseStore = new ConcurrentHashMap<Integer, Integer>(3000);
+
+		//Which cached version of a path is known to match the server copy, and the server's version of it
+		private static HashMap<String, Integer> serverStateStore = new HashMap<String, Integer>(3000);
+		private static HashMap<String, Long> serverVersionStore = new HashMap<String, Long>(3000);
+
+		//When the lease on each path runs out, and a count of invalidations received
+		private static ConcurrentHashMap<String, Long> leaseStore = new ConcurrentHashMap<String, Long>(3000);
+		private static AtomicLong invalidations = new AtomicLong();
+
+		//Files fetched from other proxies, their bytes and transfers served to them
+		private static AtomicLong peerFetches = new AtomicLong();
+		private static AtomicLong peerBytes = new AtomicLong();
+		private static AtomicLong peerServed = new AtomicLong();
+
+		//Shared mappings of cached versions, keyed and guarded like peopleStore, and the
+		//mapping and position of each fd reading through one
+		private static HashMap<String, MappedFile> mapStore = new HashMap<String, MappedFile>(3000);
+		private static ConcurrentHashMap<Integer, MappedFd> mappedFdStore = new ConcurrentHashMap<Integer, MappedFd>(3000);
+
+		//Versions that are still overlays, keyed and guarded like peopleStore, and the overlay each fd writes
+		private static HashMap<String, Overlay> overlayStore = new HashMap<String, Overlay>(3000);
+		private static ConcurrentHashMap<Integer, Overlay> overlayFdStore = new ConcurrentHashMap<Integer, Overlay>(3000);
+
+		//Versions being fetched block by block and the read only fds on them
+		private static HashMap<String, LazyFile> lazyStore = new HashMap<String, LazyFile>(3000);
+		private static ConcurrentHashMap<Integer, LazyFd> lazyFdStore = new ConcurrentHashMap<Integer, LazyFd>(3000);
+
+		//Memory tier above the cache directory and the read only fds served from it
+		private static HotTier hotTier = (hotTierBytes > 0) ? new HotTier(hotTierBytes, hotMaxFile) : null;
+		private static ConcurrentHashMap<Integer, HotFd> hotFdStore = new ConcurrentHashMap<Integer, HotFd>(3000);
+
+		//Blobs shared by cached versions with the same contents and the thread filing versions
+		//into it, null when deduplication is off
+		private static ContentStore contentStore;
+		private static ExecutorService dedupPool;
+
+		//Background fetcher of predicted files, null when prefetching is off
+		private static Prefetcher prefetcher;
+
+		//Background uploader of closed versions, null when close uploads inline
+		private static WriteBackQueue writeBacks;
+
+		//On disk copy of the cache index, null when journaling is off
+		private static CacheJournal journal;
+
+		//Closed versions the server never got, kept pinned until they are uploaded or replaced
+		private static ConcurrentHashMap<String, Integer> notUploadedStore = new ConcurrentHashMap<String, Integer>();
+    	private static EvictionPolicy evictionPolicy = makeEvictionPolicy(System.getenv("proxyevictpolicy"));
+    	private static CacheStats cacheStats = new CacheStats();
+    	private static CompressionStats compressionStats = new CompressionStats();
+
+    	//All the read-write locks for shared hashmaps
 		private static ReentrantReadWriteLock closeStoreLock = new ReentrantReadWriteLock(true);
 		private static ReentrantReadWriteLock openStoreLock = new ReentrantReadWriteLock(true);
 		private static ReentrantReadWriteLock peopleStoreLock = new ReentrantReadWriteLock(true);
-    	private static ReentrantReadWriteLock linkedListLock = new ReentrantReadWriteLock(true);
+		private static ReentrantReadWriteLock serverStateStoreLock = new ReentrantReadWriteLock(true);
 
     	//Constants
 		private static int chunkSize = 16384;
-		private static Integer fdVal = new Integer(5);
+		private static AtomicInteger fdVal = new AtomicInteger(5);
 
 		//Amount of space remaning in the cache
-   	 	private static Integer remainingSpace = new Integer((int)(long)cacheCapacity);
+   	 	private static SpaceAccount space = new SpaceAccount(cacheCapacity);
 
 
 		/**
@@ -49,7 +186,7 @@ class Proxy {
  		 * @param filename, veraion
  		 * @return String that is concatenated
  		*/
-		public String makeVersion(String filename, int version) {
+		public static String makeVersion(String filename, int version) {
 			return filename + "." + Integer.toString(version);
 		}
 
@@ -112,207 +249,1670 @@ class Proxy {
 
 
 		/**
- 		 * Copy file copies a file from source to destination using chunkSize
+ 		 * Copy file copies a file from source to destination with transferTo, so the bytes
+ 		 * move inside the kernel instead of through a heap buffer
+ 		 * 
+ 		 * @param source and dest files
+ 		 * @return Returns nothing but raises en exception if file streams fail
+ 		*/
+		private static void copyFile(File source, File dest) throws IOException {
+			FileInputStream input = new FileInputStream(source);
+			try {
+				FileOutputStream output = new FileOutputStream(dest);
+				try {
+					FileChannel from = input.getChannel();
+					copyRange(from, output.getChannel(), 0, from.size());
+				} finally {
+					output.close();
+				}
+			} finally {
+				input.close();
+			}
+		}
+
+		/**
+ 		 * Make eviction policy picks the policy named at startup, LRU unless told otherwise
+ 		 * 
+ 		 * @param Name of policy: lru, tinylfu or gds
+ 		 * @return The policy
+ 		*/
+		private static EvictionPolicy makeEvictionPolicy(String name) {
+			if("tinylfu".equals(name)) return new TinyLfuPolicy(100000);
+			if("gds".equals(name)) return new GreedyDualSizePolicy();
+			return new LruPolicy();
+		}
+
+
+		/**
+ 		 * Evict deletes files from the cache that can be deleted in the order the policy chooses
+ 		 * 
+ 		 * @param Int amountToRemove that indicates how much of the cache needs to be freed
+ 		 * @return 1 in case of success -1 in case of failure
+ 		*/
+	    public int evict(long amountToRemove) {
+			while(amountToRemove > 0) {
+			//Prefetched files nobody opened go before anything that was actually used
+			String fileToRemove = (prefetcher != null) ? prefetcher.nextUnused() : null;
+			if(fileToRemove != null) evictionPolicy.pin(fileToRemove);
+			else fileToRemove = evictionPolicy.nextVictim();
+			if(fileToRemove == null) return -1;
+			try {
+				int updatedNumber = -999;
+				if(closeStore.containsKey(fileToRemove)) {
+					updatedNumber  = closeStore.get(fileToRemove);
+				} else return -1;
+				String fullToRemovePath = cacheDir + "/" + makeVersion(fileToRemove, updatedNumber);
+				File f = new File(fullToRemovePath);
+				peopleStoreLock.writeLock().lock();
+
+				//Deleting a version still in use frees nothing, it comes back as a candidate when released
+				Integer users = peopleStore.get(fullToRemovePath);
+				if(users != null && users > 0) {
+					peopleStoreLock.writeLock().unlock();
+					continue;
+				}
+				long fileLength = releaseVersion(fullToRemovePath, f);
+				peopleStore.remove(fullToRemovePath);
+				peopleStoreLock.writeLock().unlock();
+				amountToRemove -= fileLength;
+				f.delete();
+				if(journal != null) journal.remove(fileToRemove);
+				cacheStats.recordEviction(fileLength);
+			} catch (Exception e) {
+			  return -1;
+			}
+			}
+			return 1;
+	    }
+
+
+	    /**
+ 		 * Reserve space takes bytes from the cache account, evicting until they fit
+ 		 * 
+ 		 * @param number of bytes that need to be put into the cache
+ 		 * @return 1 on success, -1 if eviction cant make enough room
+ 		*/
+	    public int reserveSpace(long bytes) {
+	        while(!space.tryReserve(bytes)) {
+	        	if(evict(bytes - space.available()) == -1) return -1;
+	        }
+	        return 1;
+	    }
+
+
+	    /**
+ 		 * Settle reservation keeps the reservation of a completed fetch, or gives it back and
+ 		 * removes the partial copy of a failed one
+ 		 * 
+ 		 * @param Path of file, version fetched into, bytes reserved, whether the fetch completed
+ 		 * @return void.
+ 		*/
+	    private void settleReservation(String path, int version, long reservedBytes, boolean fetched) {
+			if(reservedBytes <= 0) return;
+			if(fetched) {
+				space.commit(reservedBytes, reservedBytes);
+			} else {
+				new File(cacheDir + "/" + makeVersion(path, version)).delete();
+				space.cancel(reservedBytes);
+			}
+	    }
+
+	    /**
+ 		 * Pin version counts an extra user of a version so clean up and eviction leave it alone
+ 		 * 
+ 		 * @param full path of the version
+ 		 * @return void.
+ 		*/
+	    private static void pinVersion(String fullPath) {
+			peopleStoreLock.writeLock().lock();
+			Integer users = peopleStore.get(fullPath);
+			peopleStore.put(fullPath, (users == null) ? 1 : users + 1);
+			peopleStoreLock.writeLock().unlock();
+	    }
+
+
+	    /**
+ 		 * Pin if cached pins a version only if its in the cache
+ 		 * 
+ 		 * @param full path of the version
+ 		 * @return true if it was pinned
+ 		*/
+	    private static boolean pinIfCached(String fullPath) {
+			peopleStoreLock.writeLock().lock();
+			Integer users = peopleStore.get(fullPath);
+			if(users != null) peopleStore.put(fullPath, users + 1);
+			peopleStoreLock.writeLock().unlock();
+			return users != null;
+	    }
+
+
+	    private static void unpinVersion(String fullPath) {
+			peopleStoreLock.writeLock().lock();
+			Integer users = peopleStore.get(fullPath);
+			if(users != null && users > 0) peopleStore.put(fullPath, users - 1);
+			peopleStoreLock.writeLock().unlock();
+	    }
+
+
+	    /**
+ 		 * Release version forgets the mapping and overlay of a version about to be deleted
+ 		 * and gives back the space it takes, none while other versions share its contents.
+ 		 * Caller holds the people store lock.
+ 		 * 
+ 		 * @param full path of the version, its file
+ 		 * @return Number of bytes given back
+ 		*/
+	    private static long releaseVersion(String fullPath, File file) {
+			long stored = dropOverlay(fullPath);
+			LazyFile lazy = lazyStore.remove(fullPath);
+			if(lazy != null) stored = lazy.release();
+			if(stored < 0) stored = file.length();
+			long unshared = (contentStore != null) ? contentStore.release(fullPath) : -1;
+			if(unshared >= 0) stored = unshared;
+			if(hotTier != null) hotTier.remove(fullPath);
+			space.release(stored);
+			mapStore.remove(fullPath);
+			return stored;
+	    }
+
+
+	    /**
+ 		 * Open lazy sets up a version that is fetched block by block as its read. The
+ 		 * validation left the server read lock held for a fetch, its given back right away
+ 		 * and every block fetch checks the version instead. An empty file stands in for the
+ 		 * version so the rest of the cache sees it like any other.
+ 		 * 
+ 		 * @param Path of file, version to create, length of file, server version of it
+ 		 * @return 1 in case of success -1 in case of failure
+ 		*/
+	    private int openLazy(final String path, int version, long lengthOfFile, final long serverVersion) {
+			String fullPath = cacheDir + "/" + makeVersion(path, version);
+			try {
+				srv.unlockRead(path);
+				new RandomAccessFile(fullPath, "rw").close();
+				LazyFile lazy = new LazyFile(new File(fullPath + LazyFile.DIR_SUFFIX), lengthOfFile, lazyBlockSize,
+					lazyReadAhead, new LazyFile.Store() {
+						public byte[] fetch(long offset, int amount) throws IOException {
+							return srv.readVersion(path, amount, offset, serverVersion);
+						}
+
+						public boolean reserve(long bytes) {
+							if(reserveSpace(bytes) == -1) return false;
+							space.commit(bytes, bytes);
+							return true;
+						}
+
+						public void release(long bytes) {
+							space.release(bytes);
+						}
+					});
+				peopleStoreLock.writeLock().lock();
+				lazyStore.put(fullPath, lazy);
+				peopleStoreLock.writeLock().unlock();
+				markServerState(path, version, serverVersion);
+				return 1;
+			} catch (IOException ie) {
+				new File(fullPath).delete();
+				return -1;
+			}
+	    }
+
+
+	    /**
+ 		 * Complete lazy turns a lazily fetched version into a plain one by filling in the
+ 		 * blocks not fetched yet, for opens that need the whole file
+ 		 * 
+ 		 * @param full path of the version
+ 		 * @return 1 in case of success (or if it wasnt lazy) -1 in case of failure
+ 		*/
+	    private int completeLazy(String fullPath) {
+			peopleStoreLock.readLock().lock();
+			LazyFile lazy = lazyStore.get(fullPath);
+			peopleStoreLock.readLock().unlock();
+			if(lazy == null) return 1;
+
+			if(reserveSpace(lazy.length()) == -1) return -1;
+			RandomAccessFile raf = null;
+			try {
+				raf = new RandomAccessFile(fullPath, "rw");
+				lazy.copyTo(raf.getChannel());
+				raf.close();
+			} catch (IOException ie) {
+				try {
+					if(raf != null) {
+						raf.setLength(0);
+						raf.close();
+					}
+				} catch (IOException ce) {
+					//Its still lazy, the partial copy is ignored
+				}
+				space.cancel(lazy.length());
+				return -1;
+			}
+			space.commit(lazy.length(), lazy.length());
+
+			peopleStoreLock.writeLock().lock();
+			if(lazyStore.remove(fullPath) == lazy) space.release(lazy.release());
+			peopleStoreLock.writeLock().unlock();
+			return 1;
+	    }
+
+
+	    private static boolean isLazy(String fullPath) {
+			peopleStoreLock.readLock().lock();
+			boolean lazy = lazyStore.containsKey(fullPath);
+			peopleStoreLock.readLock().unlock();
+			return lazy;
+	    }
+
+
+	    //Bytes a cached version takes, only the fetched blocks for a lazy one
+	    private static long storedLength(String fullPath) {
+			long hotLength = (hotTier != null) ? hotTier.length(fullPath) : -1;
+			if(hotLength >= 0) return hotLength;
+			peopleStoreLock.readLock().lock();
+			LazyFile lazy = lazyStore.get(fullPath);
+			peopleStoreLock.readLock().unlock();
+			return (lazy != null) ? lazy.stored() : new File(fullPath).length();
+	    }
+
+
+	    /**
+ 		 * Acquire hot counts a read only open of a current version and serves it from the hot
+ 		 * tier if its there, promoting it first once its path has been opened often enough
+ 		 * 
+ 		 * @param Path of file, full path of the version
+ 		 * @return The acquired entry or null to read the version from disk
+ 		*/
+	    private static HotTier.Entry acquireHot(String path, String fullPath) {
+			if(hotTier == null) return null;
+			int opens = hotTier.recordOpen(path);
+			HotTier.Entry entry = hotTier.acquire(fullPath);
+			if(entry != null || opens < hotPromoteAfter || isLazy(fullPath)) return entry;
+			return hotTier.promote(fullPath, path, new File(fullPath));
+	    }
+
+
+	    /**
+ 		 * Create overlay starts a writable version on top of a cached one without copying it.
+ 		 * The new file is sparse at the cached length, writes land at their offsets and every
+ 		 * byte not written yet is read from the base. An overlay on top of another overlay
+ 		 * takes over its base and copies the bytes it holds, so overlays never stack.
+ 		 * 
+ 		 * @param full path of the version to write on top of, full path of the new version
+ 		 * @return The overlay, raises an exception if the files cant be set up
+ 		*/
+	    private static Overlay createOverlay(String sourcePath, String newPath) throws IOException {
+			peopleStoreLock.writeLock().lock();
+			Overlay overlay = new Overlay();
+			RandomAccessFile raf = null;
+			try {
+				Overlay under = overlayStore.get(sourcePath);
+				overlay.basePath = (under == null) ? sourcePath : under.basePath;
+				overlay.base = new RandomAccessFile(overlay.basePath, "r");
+				overlay.baseLength = overlay.base.length();
+				raf = new RandomAccessFile(newPath, "rw");
+				raf.setLength(new File(sourcePath).length());
+
+				//Carry over the bytes the overlay underneath holds
+				if(under != null) {
+					RandomAccessFile source = new RandomAccessFile(sourcePath, "r");
+					try {
+						for(Map.Entry<Long, Long> range : under.present.ranges().entrySet()) {
+							copyRange(source.getChannel(), raf.getChannel(), range.getKey(), range.getValue());
+							overlay.present.add(range.getKey(), range.getValue());
+						}
+					} finally {
+						source.close();
+					}
+					overlay.charged = overlay.present.totalBytes();
+					space.charge(overlay.charged);
+				}
+				raf.close();
+
+				//The base stays in the cache for as long as something reads through to it
+				Integer users = peopleStore.get(overlay.basePath);
+				peopleStore.put(overlay.basePath, (users == null) ? 1 : users + 1);
+				overlayStore.put(newPath, overlay);
+				return overlay;
+			} catch (IOException ie) {
+				if(overlay.base != null) overlay.base.close();
+				if(raf != null) raf.close();
+				throw ie;
+			} finally {
+				peopleStoreLock.writeLock().unlock();
+			}
+	    }
+
+
+	    /**
+ 		 * Materialize fills the bytes an overlay still reads from its base into its own file,
+ 		 * turning it into a plain version and letting go of the base
+ 		 * 
+ 		 * @param full path of the version
+ 		 * @return void, raises an exception if the copy fails (the overlay is kept then)
+ 		*/
+	    private static void materialize(String fullPath) throws IOException {
+			peopleStoreLock.writeLock().lock();
+			try {
+				Overlay overlay = overlayStore.get(fullPath);
+				if(overlay == null) return;
+				RandomAccessFile raf = new RandomAccessFile(fullPath, "rw");
+				long copied = 0;
+				try {
+					long end = Math.min(overlay.baseLength, raf.length());
+					long position = 0;
+					while(position < end) {
+						long runEnd = Math.min(end, overlay.present.runEnd(position));
+						if(!overlay.present.contains(position)) {
+							copyRange(overlay.base.getChannel(), raf.getChannel(), position, runEnd);
+							copied += runEnd - position;
+						}
+						position = runEnd;
+					}
+				} finally {
+					raf.close();
+				}
+				space.charge(copied);
+				overlayStore.remove(fullPath);
+				releaseBase(overlay);
+			} finally {
+				peopleStoreLock.writeLock().unlock();
+			}
+	    }
+
+
+	    /**
+ 		 * Drop overlay forgets the overlay of a version being deleted. Caller holds the people store lock.
+ 		 * 
+ 		 * @param full path of the version
+ 		 * @return Bytes the overlay was charged for, -1 if the version isnt an overlay
+ 		*/
+	    private static long dropOverlay(String fullPath) {
+			Overlay overlay = overlayStore.remove(fullPath);
+			if(overlay == null) return -1;
+			releaseBase(overlay);
+			return overlay.charged;
+	    }
+
+
+	    /**
+ 		 * Release base lets go of an overlay's base. The base is always older than the closed
+ 		 * version the overlay belongs to, so once nothing else uses it its deleted right away
+ 		 * rather than waiting for the next clean up. Caller holds the people store lock.
+ 		 * 
+ 		 * @param the overlay
+ 		 * @return void.
+ 		*/
+	    private static void releaseBase(Overlay overlay) {
+			try {
+				overlay.base.close();
+			} catch (IOException ie) {
+				//Only reads went through it
+			}
+			Integer users = peopleStore.get(overlay.basePath);
+			if(users == null) return;
+			if(users > 1) {
+				peopleStore.put(overlay.basePath, users - 1);
+				return;
+			}
+			File baseFile = new File(overlay.basePath);
+			releaseVersion(overlay.basePath, baseFile);
+			baseFile.delete();
+			peopleStore.remove(overlay.basePath);
+	    }
+
+
+	    /**
+ 		 * Copy range moves a region between files at the same offset without going through the heap
+ 		 * 
+ 		 * @param source and destination channels, start (inclusive) and end (exclusive) of region
+ 		 * @return void, raises an exception if the source ends early
+ 		*/
+	    private static void copyRange(FileChannel from, FileChannel to, long start, long end) throws IOException {
+			while(start < end) {
+				long moved = from.transferTo(start, end - start, to.position(start));
+				if(moved <= 0) throw new EOFException("Source ended at " + start);
+				start += moved;
+			}
+	    }
+
+
+	    /**
+ 		 * Read overlay reads at the file pointer of an overlay fd, taking each run of bytes from
+ 		 * the overlay if it was written and from the base if not
+ 		 * 
+ 		 * @param the fd's file, its overlay, buffer to fill
+ 		 * @return Number of bytes read, 0 at the end of the file
+ 		*/
+	    private static int readOverlay(RandomAccessFile raf, Overlay overlay, byte[] buf) throws IOException {
+			long position = raf.getFilePointer();
+			int total = (int)Math.max(0, Math.min(buf.length, raf.length() - position));
+			int copied = 0;
+			while(copied < total) {
+				long at = position + copied;
+				int amount = (int)Math.min(total - copied, overlay.present.runEnd(at) - at);
+				if(overlay.present.contains(at) || at >= overlay.baseLength) {
+					raf.seek(at);
+					raf.readFully(buf, copied, amount);
+				} else {
+					amount = (int)Math.min(amount, overlay.baseLength - at);
+					ByteBuffer into = ByteBuffer.wrap(buf, copied, amount);
+					while(into.hasRemaining()) {
+						if(overlay.base.getChannel().read(into, at + into.position() - copied) < 0) {
+							throw new EOFException("Base ended at " + at);
+						}
+					}
+				}
+				copied += amount;
+			}
+			raf.seek(position + copied);
+			return copied;
+	    }
+
+
+	    /**
+ 		 * Clean up removes all the older version of a file not in use
+ 		 * 
+ 		 * @param filename, which version to remove from, whether to remove current version or not
+ 		 * @return void.
+ 		*/
+		public void cleanUp(String filename, int fromVersion, boolean deleteCurrent) {
+			peopleStoreLock.writeLock().lock();
+			String completeFilename;
+			File toDeleteFile;
+
+			//Check if current file needs to be deleted
+			if(deleteCurrent) {
+				completeFilename = makeVersion(filename, fromVersion);
+
+				//Delete current even if it has one user as its not most updated version
+				if(peopleStore.containsKey(completeFilename) && peopleStore.get(completeFilename) == 1) {
+					toDeleteFile = new File(completeFilename);
+          			releaseVersion(completeFilename, toDeleteFile);
+					toDeleteFile.delete();
+					peopleStore.remove(completeFilename);
+				}
+        		fromVersion--;
+			}
+
+			//Loop from current version all the way back
+			while(fromVersion >= 0) {
+				completeFilename = makeVersion(filename, fromVersion);
+				if(peopleStore.containsKey(completeFilename) && peopleStore.get(completeFilename) == 0) {
+					toDeleteFile = new File(completeFilename);
+          			releaseVersion(completeFilename, toDeleteFile);
+					toDeleteFile.delete();
+					peopleStore.remove(completeFilename);
+				}
+				fromVersion --;
+			}
+
+			peopleStoreLock.writeLock().unlock();
+		}
+
+		/**
+ 		 * Get file from server fetches the file from server if needed. Chunks are requested
+ 		 * through the fetch pool with up to fetchWindow of them in flight and written at their
+ 		 * offsets as they arrive. The last chunk (stage 1) is only requested once all others
+ 		 * have landed since it releases the read lock on the server.
+ 		 * 
+ 		 * @param Path of file to fetch, version of file to copy into, length of file, server version of it
+ 		 * @return 1 in case of success -1 in case of failure
+ 		*/
+		public int getFileFromServer(String path, int version, long lengthOfFile, long serverVersion) {
+			return getFileFromServer(path, version, lengthOfFile, serverVersion, true);
+		}
+
+
+		/**
+ 		 * Get file from server, optionally only into space that is already free
+ 		 * 
+ 		 * @param Path of file to fetch, version of file to copy into, length of file, server version of it, whether other files may be evicted for it
+ 		 * @return 1 in case of success -1 in case of failure
+ 		*/
+		private int getFileFromServer(String path, int version, long lengthOfFile, long serverVersion, boolean mayEvict) {
+			RandomAccessFile raf = null;
+			boolean lockReleased = false;
+			long reservedBytes = 0;
+			boolean fetched = false;
+			try {
+				//Reserve the space, evicting if allowed, before copying the file
+				boolean reserved = mayEvict ? reserveSpace(lengthOfFile) == 1 : space.tryReserve(lengthOfFile);
+		        if(!reserved) throw new IOException("No room in the cache for " + path);
+		        reservedBytes = lengthOfFile;
+
+				String toCreatePath = makeVersion(path, version);
+			  	raf = new RandomAccessFile(cacheDir + "/" + toCreatePath, "rw");
+				FileChannel channel = raf.getChannel();
+				long offset = 0;
+				byte[] bytesRead;
+				CompressionStats stats = new CompressionStats();
+
+				//Another proxy holding this version saves the server the read. Our read lock is
+				//kept until then so falling back to the server still gets this version.
+				if(peerMode && lengthOfFile >= peerMinSize && fetchFromPeer(path, lengthOfFile, serverVersion, channel)) {
+					lockReleased = true;
+					srv.unlockRead(path);
+					raf.close();
+					fetched = true;
+					markServerState(path, version, serverVersion);
+					return 1;
+				}
+
+		        //Where entire file fits within chunksize
+		        if(chunkSize >= lengthOfFile) {
+					bytesRead = readLastChunk(path, (int)lengthOfFile, 0, stats);
+					lockReleased = true;
+					raf.write(bytesRead);
+					raf.close();
+					fetched = true;
+					markServerState(path, version, serverVersion);
+					reportTransfer("fetch", path, stats);
+					return 1;
+				}
+
+				//Stream the whole body in one session, the server releases the read lock when done.
+				//The stream is uncompressed, so chunks win when a codec was agreed on.
+				if(bulkTransfer && chunkCodec == ChunkCodec.NONE) {
+					long[] session = srv.openFetchSession(path, 0, lengthOfFile, true);
+					if(session != null) {
+						lockReleased = true;
+						TransferService.fetch(serverHost(path), (int)session[1], session[0], channel, 0, lengthOfFile);
+						raf.close();
+						fetched = true;
+						markServerState(path, version, serverVersion);
+						return 1;
+					}
+				}
+
+				//Every chunk but the last goes through the pipeline
+				long lastOffset = ((lengthOfFile - 1) / chunkSize) * chunkSize;
+				int count = (int)(lastOffset / chunkSize);
+				long[] offsets = new long[count];
+				int[] lengths = new int[count];
+				for(int i = 0; i < count; i++) {
+					offsets[i] = offset;
+					lengths[i] = chunkSize;
+					offset += chunkSize;
+				}
+				fetchPipelined(path, offsets, lengths, channel, stats);
+
+				bytesRead = readLastChunk(path, (int)(lengthOfFile-lastOffset), lastOffset, stats);
+				lockReleased = true;
+				writeFully(channel, bytesRead, lastOffset);
+				raf.close();
+				fetched = true;
+				markServerState(path, version, serverVersion);
+				reportTransfer("fetch", path, stats);
+				return 1;
+
+			} catch (Exception r) {
+				//Release the read lock the last chunk would have released. Read unlocks arent tied
+				//to a caller, a second one would drop another reader's hold.
+				try {
+					if(raf != null) raf.close();
+					if(!lockReleased) srv.unlockRead(path);
+				} catch (Exception e) {
+					return -1;
+				}
+				return -1;
+			} finally {
+				settleReservation(path, version, reservedBytes, fetched);
+			}
+
+		}
+
+		/**
+ 		 * Fetch from peer streams a version from the first proxy the server says holds it that
+ 		 * still does. Whatever a failed attempt wrote is overwritten by the next one.
+ 		 * 
+ 		 * @param Path of file, length of file, server version wanted, channel to write to
+ 		 * @return true if the whole file came from a peer
+ 		*/
+		private boolean fetchFromPeer(String path, long lengthOfFile, long serverVersion, FileChannel channel) {
+			PeerHint[] hints;
+			try {
+				hints = srv.peerHints(path, serverVersion, proxyNumber);
+			} catch (RemoteException re) {
+				return false;
+			}
+			for(PeerHint hint : hints) {
+				try {
+					long[] session = hint.source.openPeerFetch(path, serverVersion);
+					if(session == null || session[2] != lengthOfFile) continue;
+					TransferService.fetch(hint.host, (int)session[1], session[0], channel, 0, lengthOfFile);
+					peerFetches.incrementAndGet();
+					peerBytes.addAndGet(lengthOfFile);
+					return true;
+				} catch (Exception e) {
+					//Peer gone or it dropped the version, try the next one
+				}
+			}
+			return false;
+		}
+
+
+		/**
+ 		 * Open peer fetch hands a cached version to another proxy over our transfer service.
+ 		 * Only a plain copy known to match the server version asked for is served, and its
+ 		 * pinned until the transfer ends so eviction leaves it alone.
+ 		 * 
+ 		 * @param Path of file, server version wanted
+ 		 * @return [sessionId, transferPort, length] or null if we dont have it
+ 		*/
+		private static long[] openPeerFetch(String path, long serverVersion) {
+			serverStateStoreLock.readLock().lock();
+			Integer version = serverStateStore.get(path);
+			Long matching = serverVersionStore.get(path);
+			serverStateStoreLock.readLock().unlock();
+			if(version == null || matching == null || matching != serverVersion) return null;
+
+			final String fullPath = cacheDir + "/" + makeVersion(path, version);
+			File file = new File(fullPath);
+			peopleStoreLock.writeLock().lock();
+			boolean plain = peopleStore.containsKey(fullPath) && !overlayStore.containsKey(fullPath)
+				&& !lazyStore.containsKey(fullPath) && file.isFile();
+			if(plain) peopleStore.put(fullPath, peopleStore.get(fullPath) + 1);
+			peopleStoreLock.writeLock().unlock();
+			if(!plain) return null;
+
+			long length = file.length();
+			long id = peerTransfers.open(TransferService.SEND, fullPath, 0, length,
+				new TransferService.Completion() {
+					public long complete(boolean success) {
+						unpinVersion(fullPath);
+						if(success) peerServed.incrementAndGet();
+						return success ? 0 : TransferService.FAILED;
+					}
+				});
+			return new long[] {id, peerTransfers.getPort(), length};
+		}
+
+
+		/**
+ 		 * Read chunk reads one chunk from the server, compressed when a codec was agreed on and
+ 		 * the transfer has been compressing well so far
+ 		 * 
+ 		 * @param Path of file, amount to read, where to read from, to unlock/lock/do nothing, stats of the transfer
+ 		 * @return The raw chunk, raises an exception if the frame cant be decoded
+ 		*/
+		private static byte[] readChunk(String path, int amount, long offset, int stage, CompressionStats stats)
+				throws IOException {
+			if(chunkCodec == ChunkCodec.NONE || !stats.worthCompressing()) {
+				byte[] data = srv.readFile(path, amount, offset, stage);
+				stats.record(data.length, data.length, false);
+				return data;
+			}
+			byte[] frame = srv.readFileCompressed(path, amount, offset, stage, chunkCodec);
+			byte[] data = ChunkCodec.decode(frame);
+			stats.record(data.length, frame.length, ChunkCodec.codecOf(frame) != ChunkCodec.NONE);
+			return data;
+		}
+
+
+		/**
+ 		 * Read last chunk reads the chunk that releases the server read lock. The server only
+ 		 * releases it when the whole chunk was read, a short one leaves it held.
+ 		 * 
+ 		 * @param Path of file, amount to read, offset to read from, stats of the transfer
+ 		 * @return The chunk, raises an exception if its short
+ 		*/
+		private static byte[] readLastChunk(String path, int amount, long offset, CompressionStats stats)
+				throws IOException {
+			byte[] data = readChunk(path, amount, offset, 1, stats);
+			if(data.length != amount) throw new IOException("Short chunk at " + offset);
+			return data;
+		}
+
+
+		/**
+ 		 * Write chunk sends one chunk to the server, compressed the same way as read chunk
+ 		 * 
+ 		 * @param Path of file, chunk, offset to write at, lock/unlock/nothing to do, stats of the transfer
+ 		 * @return What writeFile returns
+ 		*/
+		private static long writeChunk(String path, byte[] data, long offset, int stage, CompressionStats stats)
+				throws IOException {
+			if(chunkCodec == ChunkCodec.NONE || !stats.worthCompressing()) {
+				stats.record(data.length, data.length, false);
+				return srv.writeFile(path, data, offset, stage, proxyNumber);
+			}
+			byte[] frame = ChunkCodec.encode(chunkCodec, data);
+			stats.record(data.length, frame.length, ChunkCodec.codecOf(frame) != ChunkCodec.NONE);
+			return srv.writeFileCompressed(path, frame, offset, stage, proxyNumber);
+		}
+
+
+		//Log what compression did for one transfer and add it to the totals
+		private static void reportTransfer(String kind, String path, CompressionStats stats) {
+			if(chunkCodec == ChunkCodec.NONE || stats.chunks() == 0) return;
+			compressionStats.add(stats);
+			System.err.println("PROXY: " + kind + " " + path + " " + stats);
+		}
+
+
+		/**
+ 		 * Fetch pipelined reads the given regions without releasing the server lock, keeping up
+ 		 * to fetchWindow requests in flight and writing each region at its offset as it lands
+ 		 * 
+ 		 * @param Path of file, offsets and lengths of regions, channel of the cache file, stats of the transfer
+ 		 * @return void, raises an exception if a region fails or comes back short
+ 		*/
+		private void fetchPipelined(String path, long[] offsets, int[] lengths, FileChannel channel,
+				CompressionStats stats) throws Exception {
+			CompletionService<FetchedChunk> inFlight = new ExecutorCompletionService<FetchedChunk>(fetchPool());
+			int next = 0;
+			int outstanding = 0;
+			while(next < offsets.length || outstanding > 0) {
+				while(next < offsets.length && outstanding < fetchWindow) {
+					inFlight.submit(new ChunkRequest(path, lengths[next], offsets[next], stats));
+					next++;
+					outstanding++;
+				}
+				FetchedChunk chunk = inFlight.take().get();
+				outstanding--;
+				if(chunk.data.length != chunk.amount) throw new IOException("Short chunk at " + chunk.offset);
+				writeFully(channel, chunk.data, chunk.offset);
+			}
+		}
+
+
+		/**
+ 		 * Refresh from server rebuilds a stale cached copy into a new version rsync style. The
+ 		 * server's block checksums are searched for in the stale copy with a rolling weak sum,
+ 		 * blocks found are copied locally and only the rest are fetched. Falls back to a full
+ 		 * fetch when there are no usable checksums. Caller holds the server read lock.
+ 		 * 
+ 		 * @param Path of file, version of the stale copy, version to create, length of file, server version of it
+ 		 * @return 1 in case of success -1 in case of failure
+ 		*/
+		public int refreshFromServer(String path, int staleVersion, int version, long lengthOfFile, long serverVersion) {
+			File staleFile = new File(cacheDir + "/" + makeVersion(path, staleVersion));
+			BlockChecksums sums;
+			try {
+				materialize(staleFile.getPath());
+				sums = srv.blockChecksums(path);
+			} catch (IOException ie) {
+				sums = null;
+			}
+			if(sums == null || sums.length != lengthOfFile || staleFile.length() > Integer.MAX_VALUE
+					|| isLazy(staleFile.getPath())) {
+				return getFileFromServer(path, version, lengthOfFile, serverVersion);
+			}
+
+			RandomAccessFile stale = null;
+			RandomAccessFile raf = null;
+			boolean lockReleased = false;
+			long reservedBytes = 0;
+			boolean fetched = false;
+			try {
+				//Reserve the space, evicting if needed, before building the new version. Failing
+				//here still has to give up the read lock below.
+				if(reserveSpace(lengthOfFile) != 1) throw new IOException("No room in the cache for " + path);
+				reservedBytes = lengthOfFile;
+
+				stale = new RandomAccessFile(staleFile, "r");
+				MappedByteBuffer staleMap = stale.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, stale.length());
+				long[] found = findBlocks(sums, staleMap);
+
+				raf = new RandomAccessFile(cacheDir + "/" + makeVersion(path, version), "rw");
+				raf.setLength(lengthOfFile);
+				FileChannel channel = raf.getChannel();
+
+				//Copy the blocks we already have, collect the ones we dont
+				ArrayList<Integer> missing = new ArrayList<Integer>();
+				for(int block = 0; block < sums.blockCount(); block++) {
+					if(found[block] < 0) {
+						missing.add(block);
+						continue;
+					}
+					ByteBuffer blockData = staleMap.duplicate();
+					blockData.position((int)found[block]);
+					blockData.limit((int)found[block] + sums.blockLength(block));
+					long at = (long)block * sums.blockSize;
+					while(blockData.hasRemaining()) at += channel.write(blockData, at);
+				}
+
+				//All but the last missing block go through the pipeline, the last one unlocks
+				CompressionStats stats = new CompressionStats();
+				if(missing.isEmpty()) {
+					lockReleased = true;
+					srv.unlockRead(path);
+				} else {
+					int count = missing.size() - 1;
+					long[] offsets = new long[count];
+					int[] lengths = new int[count];
+					for(int i = 0; i < count; i++) {
+						offsets[i] = (long)missing.get(i) * sums.blockSize;
+						lengths[i] = sums.blockLength(missing.get(i));
+					}
+					fetchPipelined(path, offsets, lengths, channel, stats);
+
+					int lastBlock = missing.get(count);
+					int lastLength = sums.blockLength(lastBlock);
+					byte[] bytesRead = readLastChunk(path, lastLength, (long)lastBlock * sums.blockSize, stats);
+					lockReleased = true;
+					writeFully(channel, bytesRead, (long)lastBlock * sums.blockSize);
+					reportTransfer("refresh", path, stats);
+				}
+
+				stale.close();
+				raf.close();
+				fetched = true;
+				markServerState(path, version, serverVersion);
+				return 1;
+
+			} catch (Exception e) {
+				try {
+					if(stale != null) stale.close();
+					if(raf != null) raf.close();
+					if(!lockReleased) srv.unlockRead(path);
+				} catch (Exception ce) {
+					return -1;
+				}
+				return -1;
+			} finally {
+				settleReservation(path, version, reservedBytes, fetched);
+			}
+		}
+
+
+		/**
+ 		 * Find blocks looks for every server block in the stale copy. Full size blocks are
+ 		 * matched at any offset by rolling the weak sum and confirming with the strong one,
+ 		 * the short last block is only checked at its own offset.
+ 		 * 
+ 		 * @param Server checksums, mapped stale copy
+ 		 * @return Offset in the stale copy of each block, -1 where it wasnt found
+ 		*/
+		private long[] findBlocks(BlockChecksums sums, MappedByteBuffer staleMap) {
+			int blockSize = sums.blockSize;
+			int staleLength = staleMap.limit();
+			long[] found = new long[sums.blockCount()];
+			Arrays.fill(found, -1);
+			byte[] window = new byte[blockSize];
+
+			//Index full size blocks by weak sum
+			HashMap<Integer, ArrayList<Integer>> byWeak = new HashMap<Integer, ArrayList<Integer>>();
+			for(int block = 0; block < sums.blockCount(); block++) {
+				int blockLength = sums.blockLength(block);
+				if(blockLength < blockSize) {
+					long at = (long)block * blockSize;
+					if(at + blockLength <= staleLength) {
+						ByteBuffer tail = staleMap.duplicate();
+						tail.position((int)at);
+						tail.get(window, 0, blockLength);
+						if(Arrays.equals(BlockChecksums.strong(window, 0, blockLength), sums.strong[block])) found[block] = at;
+					}
+					continue;
+				}
+				if(!byWeak.containsKey(sums.weak[block])) byWeak.put(sums.weak[block], new ArrayList<Integer>());
+				byWeak.get(sums.weak[block]).add(block);
+			}
+			if(staleLength < blockSize || byWeak.isEmpty()) return found;
+
+			//Roll over the stale copy, jumping a whole block after each match
+			int pos = 0;
+			int sum = weakAt(staleMap, pos, window);
+			while(true) {
+				boolean matched = false;
+				ArrayList<Integer> candidates = byWeak.get(sum);
+				if(candidates != null) {
+					byte[] digest = null;
+					for(int block : candidates) {
+						if(found[block] >= 0) continue;
+						if(digest == null) digest = BlockChecksums.strong(window, 0, blockSize);
+						if(Arrays.equals(digest, sums.strong[block])) {
+							found[block] = pos;
+							matched = true;
+						}
+					}
+				}
+				if(matched) {
+					if(pos + 2 * blockSize > staleLength) break;
+					pos += blockSize;
+					sum = weakAt(staleMap, pos, window);
+				} else {
+					if(pos + blockSize >= staleLength) break;
+					sum = BlockChecksums.roll(sum, staleMap.get(pos), staleMap.get(pos + blockSize), blockSize);
+					pos++;
+					//Keep the window in step for the strong check
+					System.arraycopy(window, 1, window, 0, blockSize - 1);
+					window[blockSize - 1] = staleMap.get(pos + blockSize - 1);
+				}
+			}
+			return found;
+		}
+
+
+		private int weakAt(MappedByteBuffer staleMap, int pos, byte[] window) {
+			ByteBuffer view = staleMap.duplicate();
+			view.position(pos);
+			view.get(window, 0, window.length);
+			return BlockChecksums.weak(window, 0, window.length);
+		}
+
+
+		/**
+ 		 * Write fully writes the whole buffer into the channel at the given offset
+ 		 * 
+ 		 * @param channel to write to, bytes to write, offset in file
+ 		 * @return void, raises an exception if the write fails
+ 		*/
+		private static void writeFully(FileChannel channel, byte[] data, long offset) throws IOException {
+			ByteBuffer toWrite = ByteBuffer.wrap(data);
+			while(toWrite.hasRemaining()) {
+				offset += channel.write(toWrite, offset);
+			}
+		}
+
+		/**
+ 		 * Fetch pool lazily creates the shared worker pool chunk requests run on
+ 		 * 
+ 		 * @param none
+ 		 * @return The executor used for pipelined fetches
+ 		*/
+		private static synchronized ExecutorService fetchPool() {
+			if(fetchPool == null) {
+				fetchPool = Executors.newFixedThreadPool(fetchThreads, new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "proxy-fetch");
+						t.setDaemon(true);
+						return t;
+					}
+				});
+			}
+			return fetchPool;
+		}
+
+		//One chunk that came back from the server and where it goes in the file
+		private static class FetchedChunk {
+			long offset;
+			int amount;
+			byte[] data;
+
+			FetchedChunk(long offset, int amount, byte[] data) {
+				this.offset = offset;
+				this.amount = amount;
+				this.data = data;
+			}
+		}
+
+		//A single non-final chunk read, never releases the server lock
+		private static class ChunkRequest implements Callable<FetchedChunk> {
+			private String path;
+			private int amount;
+			private long offset;
+			private CompressionStats stats;
+
+			ChunkRequest(String path, int amount, long offset, CompressionStats stats) {
+				this.path = path;
+				this.amount = amount;
+				this.offset = offset;
+				this.stats = stats;
+			}
+
+			public FetchedChunk call() throws IOException {
+				return new FetchedChunk(offset, amount, readChunk(path, amount, offset, 0, stats));
+			}
+		}
+
+		//A writable version holding only the bytes written to it, the rest still comes from its base
+		private static class Overlay {
+			String basePath;
+			RandomAccessFile base;
+			long baseLength;
+			RangeSet present = new RangeSet();
+			long charged = 0;
+		}
+
+		//Position of one fd reading through a shared mapping
+		private static class MappedFd {
+			MappedFile file;
+			long position = 0;
+
+			MappedFd(MappedFile file) {
+				this.file = file;
+			}
+		}
+
+		//A read only fd on a version held in the hot tier
+		private static class HotFd {
+			HotTier.Entry entry;
+			long position = 0;
+
+			HotFd(HotTier.Entry entry) {
+				this.entry = entry;
+			}
+		}
+
+		//A read only fd on a lazily fetched version
+		private static class LazyFd {
+			LazyFile file;
+			String fullPath;
+			long position = 0;
+
+			LazyFd(LazyFile file, String fullPath) {
+				this.file = file;
+				this.fullPath = fullPath;
+			}
+		}
+
+
+		/**
+ 		 * Mark server state records that a cached version has the same contents as the server
+ 		 * 
+ 		 * @param Path of file, version number matching the server, the server's version number
+ 		 * @return void.
+ 		*/
+		private static void markServerState(String path, int version, long serverVersion) {
+			serverStateStoreLock.writeLock().lock();
+			serverStateStore.put(path, version);
+			serverVersionStore.put(path, serverVersion);
+			serverStateStoreLock.writeLock().unlock();
+		}
+
+
+		/**
+ 		 * Server version of a cached version, if that version is known to match the server
+ 		 * 
+ 		 * @param Path of file, cached version number
+ 		 * @return The server's version number or -1 if unknown
+ 		*/
+		private static long cachedServerVersion(String path, int version) {
+			serverStateStoreLock.readLock().lock();
+			long serverVersion = -1;
+			if(serverStateStore.containsKey(path) && serverStateStore.get(path) == version) {
+				serverVersion = serverVersionStore.get(path);
+			}
+			serverStateStoreLock.readLock().unlock();
+			return serverVersion;
+		}
+
+
+		/**
+ 		 * Put the updates file back into server. When the dirty ranges against the server copy
+ 		 * are known only those and the new length are sent, unless they make up most of the file
+ 		 * or the server turns the delta down because its copy is no longer the one they were made against.
+ 		 * 
+ 		 * @param Path of file to put, version number of file, dirty ranges or null to send everything, server version the ranges were made against
+ 		 * @return 1 in case of success -1 in case of failure
+ 		*/
+		public int updateFileInServer(String path, int version, RangeSet dirty, long baseServerVersion) {
+			RandomAccessFile raf = null;
+			try {
+				String toCreatePath = makeVersion(path, version);
+			  	raf = new RandomAccessFile(cacheDir + "/" + toCreatePath, "rw");
+        		srv.fileInfo(path, 1);
+				long lengthOfFile = raf.length();
+				long offset = 0;
+				byte[] bytesToWrite;
+				CompressionStats stats = new CompressionStats();
+
+				long serverVersion;
+
+				//Only send what changed when thats a small part of the file
+				if(dirty != null && dirty.totalBytes() * 2 < lengthOfFile) {
+					serverVersion = writeRangesToServer(path, raf, dirty, lengthOfFile, baseServerVersion);
+					if(serverVersion > 0) {
+						markServerState(path, version, serverVersion);
+						return 1;
+					}
+				}
+
+				//Everything below sends the whole file
+				materialize(cacheDir + "/" + toCreatePath);
+
+				//Where entire file fits within chunksize
+				if(chunkSize >=lengthOfFile) {
+          			bytesToWrite = new byte[(int)lengthOfFile];
+					raf.seek(0);
+					raf.readFully(bytesToWrite);
+					serverVersion = writeChunk(path, bytesToWrite, 0, 1, stats);
+					if(serverVersion <= 0) return -1;
+					markServerState(path, version, serverVersion);
+					reportTransfer("store", path, stats);
+					return 1;
+				}
+
+				//Stream the whole file in one session, committed and unlocked by the server
+				if(bulkTransfer && chunkCodec == ChunkCodec.NONE) {
+					long[] session = srv.openStoreSession(path, lengthOfFile, proxyNumber);
+					if(session != null) {
+						serverVersion = TransferService.store(serverHost(path), (int)session[1], session[0],
+							raf.getChannel(), 0, lengthOfFile);
+						if(serverVersion <= 0) return -1;
+						markServerState(path, version, serverVersion);
+						return 1;
+					}
+				}
+
+				//Use offset and grab chunksize bytes
+				raf.seek(0);
+				while(offset+chunkSize < lengthOfFile) {
+          			bytesToWrite = new byte[chunkSize];
+					raf.readFully(bytesToWrite);
+					writeChunk(path, bytesToWrite, offset, 0, stats);
+					offset += chunkSize;
+				}
+
+        		bytesToWrite = new byte[(int)(lengthOfFile-offset)];
+				raf.readFully(bytesToWrite);
+				serverVersion = writeChunk(path, bytesToWrite, offset, 1, stats);
+				if(serverVersion <= 0) return -1;
+				markServerState(path, version, serverVersion);
+				reportTransfer("store", path, stats);
+				return 1;
+
+			} catch (Exception r) {
+				return -1;
+			} finally {
+				try {
+					if(raf != null) raf.close();
+				} catch (IOException ie) {
+					//Nothing was left to send through it
+				}
+			}
+
+		}
+
+
+		/**
+ 		 * Write ranges to server sends the dirty ranges in batches of about chunkSize bytes,
+ 		 * the last batch sets the new length and releases the write lock. Caller holds the lock.
+ 		 * 
+ 		 * @param Path of file, open local copy, dirty ranges, length of local copy, server version the ranges were made against
+ 		 * @return New server version on success, -1 if the server refused the delta (lock is still held then)
+ 		*/
+		private long writeRangesToServer(String path, RandomAccessFile raf, RangeSet dirty, long lengthOfFile,
+				long baseServerVersion) throws IOException {
+			ArrayList<Long> offsets = new ArrayList<Long>();
+			ArrayList<byte[]> pieces = new ArrayList<byte[]>();
+			int batched = 0;
+
+			for(Map.Entry<Long, Long> range : dirty.ranges().entrySet()) {
+				long start = range.getKey();
+				long end = Math.min(range.getValue(), lengthOfFile);
+				while(start < end) {
+					byte[] piece = new byte[(int)Math.min(chunkSize, end - start)];
+					raf.seek(start);
+					raf.readFully(piece);
+					offsets.add(start);
+					pieces.add(piece);
+					batched += piece.length;
+					start += piece.length;
+
+					//Ship a full batch, it never releases the lock
+					if(batched >= chunkSize) {
+						if(sendRanges(path, offsets, pieces, lengthOfFile, 0, baseServerVersion) == -1) return -1;
+						offsets.clear();
+						pieces.clear();
+						batched = 0;
+					}
+				}
+			}
+			return sendRanges(path, offsets, pieces, lengthOfFile, 1, baseServerVersion);
+		}
+
+
+		private long sendRanges(String path, ArrayList<Long> offsets, ArrayList<byte[]> pieces, long lengthOfFile, int stage,
+				long baseServerVersion) throws RemoteException {
+			long[] offsetArray = new long[offsets.size()];
+			for(int i = 0; i < offsetArray.length; i++) offsetArray[i] = offsets.get(i);
+			return srv.writeRanges(path, offsetArray, pieces.toArray(new byte[0][]), lengthOfFile, stage, proxyNumber,
+				baseServerVersion);
+		}
+
+
+		/**
+ 		 * Holds lease checks whether an unexpired server lease covers a path
+ 		 * 
+ 		 * @param Path of file
+ 		 * @return true if the cached copy can be used without asking the server
+ 		*/
+		private static boolean holdsLease(String path) {
+			Long expiry = leaseStore.get(path);
+			return expiry != null && expiry > System.currentTimeMillis();
+		}
+
+
+		/**
+ 		 * Grant lease records the lease the server grants with every validation. Its counted
+ 		 * from before the request went out, and skipped if any invalidation arrived meanwhile
+ 		 * since it could have been for this path.
+ 		 * 
+ 		 * @param Path of file, time the request was sent, invalidation count before sending
+ 		 * @return void.
+ 		*/
+		private static void grantLease(String path, long requested, long invalidationsBefore) {
+			if(leaseMillis <= 0) return;
+			leaseStore.put(path, requested + leaseMillis);
+			if(invalidations.get() != invalidationsBefore) leaseStore.remove(path);
+		}
+
+
+		/**
+ 		 * Drop lease forgets the lease on a path, called when the server invalidates it
+ 		 * 
+ 		 * @param Path of file
+ 		 * @return void.
+ 		*/
+		private static void dropLease(String path) {
+			invalidations.incrementAndGet();
+			leaseStore.remove(path);
+		}
+
+
+		/**
+ 		 * Journal closed records the newest closed copy of a path in the cache journal, or
+ 		 * forgets the path if that copy isnt known to match the server or is still an overlay,
+ 		 * since neither could be trusted after a restart. A copy the server never got stays
+ 		 * recorded as such so the next run uploads it.
+ 		 * 
+ 		 * @param Path of file, closed version, its size
+ 		 * @return void.
+ 		*/
+		private static void journalClosed(String path, int version, long size) {
+			if(journal == null) return;
+			Integer notUploaded = notUploadedStore.get(path);
+			if(notUploaded != null && notUploaded == version) {
+				journal.put(path, version, size, CacheJournal.NOT_UPLOADED);
+				return;
+			}
+			long serverVersion = cachedServerVersion(path, version);
+			peopleStoreLock.readLock().lock();
+			String fullPath = cacheDir + "/" + makeVersion(path, version);
+			boolean overlay = overlayStore.containsKey(fullPath) || lazyStore.containsKey(fullPath);
+			peopleStoreLock.readLock().unlock();
+			if(serverVersion >= 0 && !overlay) journal.put(path, version, size, serverVersion);
+			else journal.remove(path);
+		}
+
+
+		/**
+ 		 * Start prefetch sets up the prefetcher when prefetching is on
+ 		 * 
+ 		 * @param none
+ 		 * @return void.
+ 		*/
+		private static void startPrefetch() {
+			if(!prefetchMode) return;
+			final FileHandler prefetchHandler = new FileHandler();
+			prefetcher = new Prefetcher(new Prefetcher.Fetcher() {
+				public long fetch(String path, long maxBytes) {
+					return prefetchHandler.prefetchFile(path, maxBytes);
+				}
+			}, prefetchDepth, prefetchConfidence / 100.0, prefetchBytesPerSecond, prefetchSpace);
+		}
+
+
+		/**
+ 		 * Prefetch file brings a file into the cache the way a read only open and close would,
+ 		 * but only into free space so nothing in the cache is evicted for a guess. A cached
+ 		 * copy is validated and only replaced if its stale.
+ 		 * 
+ 		 * @param Path of file, most bytes it may take
+ 		 * @return Bytes fetched, 0 if skipped, -1 on failure
+ 		*/
+		private long prefetchFile(String path, long maxBytes) {
+			closeStoreLock.writeLock().lock();
+			openStoreLock.writeLock().lock();
+			if(!closeStore.containsKey(path)) {
+				openStore.put(path, 1);
+				closeStore.put(path, 0);
+			}
+			int closeNumber = closeStore.get(path);
+			openStoreLock.writeLock().unlock();
+			closeStoreLock.writeLock().unlock();
+			boolean existsOnCache = new File(cacheDir + "/" + makeVersion(path, closeNumber)).exists();
+			if(existsOnCache && holdsLease(path)) return 0;
+			if(writeBacks != null && writeBacks.isPending(path)) return 0;
+
+			long[] existsValid;
+			long requested = System.currentTimeMillis();
+			long invalidationsBefore = invalidations.get();
+			long cachedVersion = existsOnCache ? cachedServerVersion(path, closeNumber) : -1;
+			try {
+				existsValid = srv.fileExistsAndValid(path, proxyNumber, existsOnCache, cachedVersion, false);
+			} catch (RemoteException re) {
+				return -1;
+			}
+			if(existsValid[0] != 1) return 0;
+
+			//A current cached copy needs nothing, the server already let go of the lock for it
+			if(existsOnCache && existsValid[1] == 0) {
+				grantLease(path, requested, invalidationsBefore);
+				return 0;
+			}
+
+			//The server holds the read lock for the fetch, hand it back if we arent fetching
+			long lengthOfFile = existsValid[2];
+			if(lengthOfFile > maxBytes || lengthOfFile > space.available()) {
+				try {
+					srv.unlockRead(path);
+				} catch (RemoteException re) {
+					return -1;
+				}
+				return 0;
+			}
+			grantLease(path, requested, invalidationsBefore);
+
+			openStoreLock.writeLock().lock();
+			int version = openStore.get(path);
+			openStore.put(path, version + 1);
+			openStoreLock.writeLock().unlock();
+			String fullPath = cacheDir + "/" + makeVersion(path, version);
+			makeParent(fullPath);
+
+			//Held like an open fd until its in place as the latest closed version
+			pinVersion(fullPath);
+			if(getFileFromServer(path, version, lengthOfFile, existsValid[3], false) != 1) {
+				unpinVersion(fullPath);
+				return -1;
+			}
+			closeStoreLock.writeLock().lock();
+			if(version >= closeStore.get(path)) {
+				cleanUp(cacheDir + "/" + path, version, false);
+				evictionPolicy.release(path, lengthOfFile);
+				closeStore.put(path, version);
+				journalClosed(path, version, lengthOfFile);
+				dedupVersion(fullPath);
+			} else {
+				cleanUp(cacheDir + "/" + path, version, true);
+				lengthOfFile = 0;
+			}
+			closeStoreLock.writeLock().unlock();
+			unpinVersion(fullPath);
+			return lengthOfFile;
+		}
+
+
+		/**
+ 		 * Start write back sets up the background uploader when asynchronous write back is on
+ 		 * 
+ 		 * @param none
+ 		 * @return void.
+ 		*/
+		private static void startWriteBack() {
+			if(!asyncWriteBack) return;
+			final FileHandler uploadHandler = new FileHandler();
+			writeBacks = new WriteBackQueue(writeBackQueueSize, writeBackThreads, new WriteBackQueue.Uploader() {
+				public boolean upload(WriteBackQueue.Pending pending) {
+					//Only a delta if the server had the version the changes were made against, it
+					//turns the delta down if its copy has moved on since
+					long baseServerVersion = cachedServerVersion(pending.path, pending.baseVersion);
+					RangeSet dirty = (baseServerVersion >= 0) ? pending.dirty : null;
+					if(uploadHandler.updateFileInServer(pending.path, pending.version, dirty, baseServerVersion) == -1) return false;
+					notUploadedStore.remove(pending.path, pending.version);
+					journalClosed(pending.path, pending.version, pending.size);
+					evictionPolicy.release(pending.path, pending.size);
+					unpinVersion(cacheDir + "/" + makeVersion(pending.path, pending.version));
+					return true;
+				}
+
+				public void dropped(WriteBackQueue.Pending pending) {
+					notUploadedStore.remove(pending.path, pending.version);
+					evictionPolicy.release(pending.path, pending.size);
+					unpinVersion(cacheDir + "/" + makeVersion(pending.path, pending.version));
+				}
+
+				//Close told the client this version was saved, its the only copy so it stays
+				//pinned and journaled until a newer close replaces it or the next run uploads it
+				public void failed(WriteBackQueue.Pending pending) {
+					System.err.println("PROXY: Could not upload " + pending.path + ", kept for the next start");
+					notUploadedStore.put(pending.path, pending.version);
+					journalClosed(pending.path, pending.version, pending.size);
+				}
+			});
+		}
+
+
+		/**
+ 		 * Drain write backs waits for queued uploads, used on shutdown
  		 * 
- 		 * @param source and dest files
- 		 * @return Returns nothing but raises en exception if file streams fail
+ 		 * @param none
+ 		 * @return void.
  		*/
-		private static void copyFile(File source, File dest) throws IOException {
-			InputStream input = null;
-			OutputStream output = null;
-
+		private static void drainWriteBacks() {
+			if(writeBacks == null) return;
 			try {
-				input = new FileInputStream(source);
-				output = new FileOutputStream(dest);
-				byte[] buf = new byte[chunkSize];
-				int bytesRead;
-				while ((bytesRead = input.read(buf)) > 0) {
-					output.write(buf, 0, bytesRead);
-				}
-			} finally {
-				input.close();
-				output.close();
+				long failed = writeBacks.drain();
+				if(failed > 0) System.err.println("PROXY: " + failed + " write backs could not be uploaded, kept for the next start");
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
 			}
 		}
 
+
 		/**
- 		 * Evict deletes files from the cache that can be deleted in LRU order
+ 		 * Start dedup sets up the content store when deduplication is on
  		 * 
- 		 * @param Int amountToRemove that indicates how much of the cache needs to be freed
- 		 * @return 1 in case of success -1 in case of failure
+ 		 * @param none
+ 		 * @return void.
  		*/
-	    public int evict(int amountToRemove) {
-			while(amountToRemove > 0) {
-			if(lruList.size() == 0) return -1;
-			String fileToRemove = lruList.remove();
+		private static void startDedup() {
+			if(!dedupMode) return;
 			try {
-				int updatedNumber = -999;
-				if(closeStore.containsKey(fileToRemove)) {
-					updatedNumber  = closeStore.get(fileToRemove);
-				} else return -1;
-				String fullToRemovePath = cacheDir + "/" + makeVersion(fileToRemove, updatedNumber);
-				File f = new File(fullToRemovePath);
-				int fileLength = (int)f.length();
-				amountToRemove -= fileLength;
-				updateRemainingSpace(fileLength, true);
-				f.delete();
-			} catch (Exception e) {
-			  return -1;
-			}
+				contentStore = new ContentStore(new File(cacheDir, ContentStore.DIR_NAME));
+			} catch (IOException ie) {
+				System.err.println("PROXY: Could not set up the content store, deduplication disabled");
+				return;
 			}
-			return 1;
-	    }
+			dedupPool = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "dedup");
+					t.setDaemon(true);
+					t.setPriority(Thread.MIN_PRIORITY);
+					return t;
+				}
+			});
+		}
 
 
-	    /**
- 		 * Check evict and update checks if evicts are necessary
+		/**
+ 		 * Dedup version queues a version that just became the latest closed one to be filed
+ 		 * into the content store. Digesting it happens off the caller's thread.
  		 * 
- 		 * @param length of file that needs to be put into the cache
- 		 * @return 1 on success, -1 on error
+ 		 * @param full path of the version
+ 		 * @return void.
  		*/
-	    public synchronized int checkEvictAndUpdate(int lengthOfFile) {
-	        if(lengthOfFile > remainingSpace) return evict(lengthOfFile - remainingSpace);
-	        return 1;
-	    }
+		private static void dedupVersion(final String fullPath) {
+			if(contentStore == null || contentStore.contains(fullPath)) return;
+			try {
+				dedupPool.execute(new Runnable() {
+					public void run() {
+						adoptVersion(fullPath);
+					}
+				});
+			} catch (RejectedExecutionException re) {
+				//It just keeps its own copy
+			}
+		}
 
 
-	    /**
- 		 * Updates remaining space
+		/**
+ 		 * Adopt version digests a version and files it into the content store, giving back its
+ 		 * space if another version already holds the same bytes. Only whole, plain versions
+ 		 * still in the cache are filed, overlays and lazy versions dont hold all their bytes.
  		 * 
- 		 * @param amount that indicates how much to add/subtract, boolean add indicatres addition/subtraction
+ 		 * @param full path of the version
  		 * @return void.
  		*/
-	    public synchronized void updateRemainingSpace(int amount, boolean add) {
-			if(add) remainingSpace += amount;
-			else remainingSpace -= amount;
-	    }
+		private static void adoptVersion(String fullPath) {
+			File file = new File(fullPath);
+			long length = file.length();
+			if(length < dedupMinSize || contentStore.contains(fullPath)) return;
+			String key;
+			try {
+				key = ContentStore.keyOf(file);
+			} catch (IOException ie) {
+				return;
+			}
 
-	    /**
- 		 * Clean up removes all the older version of a file not in use
- 		 * 
- 		 * @param filename, which version to remove from, whether to remove current version or not
- 		 * @return void.
- 		*/
-		public void cleanUp(String filename, int fromVersion, boolean deleteCurrent) {
 			peopleStoreLock.writeLock().lock();
-			String completeFilename;
-			File toDeleteFile;
+			try {
+				if(!peopleStore.containsKey(fullPath) || overlayStore.containsKey(fullPath)
+						|| lazyStore.containsKey(fullPath) || file.length() != length) return;
+				long freed = contentStore.adopt(fullPath, key, length);
+
+				//New readers map the shared copy, the ones reading already keep theirs
+				if(freed > 0) {
+					space.release(freed);
+					mapStore.remove(fullPath);
+				}
+			} catch (IOException ie) {
+				//No hard links here, it keeps its own copy
+			} finally {
+				peopleStoreLock.writeLock().unlock();
+			}
+		}
 
-			//Check if current file needs to be deleted
-			if(deleteCurrent) {
-				completeFilename = makeVersion(filename, fromVersion);
 
-				//Delete current even if it has one user as its not most updated version
-				if(peopleStore.containsKey(completeFilename) && peopleStore.get(completeFilename) == 1) {
-					toDeleteFile = new File(completeFilename);
-          			updateRemainingSpace((int)toDeleteFile.length(), true);
-					toDeleteFile.delete();
-					peopleStore.remove(completeFilename);
+		/**
+ 		 * Restore cache reloads the cache index a previous run left in the cache directory.
+ 		 * Entries whose file is missing or has the wrong size are dropped, the most recently
+ 		 * closed ones are kept while they fit and any other versioned file is deleted since
+ 		 * nothing accounts for it. Survivors are handed to the eviction policy oldest first
+ 		 * so they keep their order.
+ 		 * 
+ 		 * @param none
+ 		 * @return Number of cached files restored
+ 		*/
+		private static int restoreCache() {
+			if(!journalMode) return 0;
+			journal = new CacheJournal(cacheDir);
+			List<CacheJournal.Entry> entries = journal.load();
+
+			ArrayList<CacheJournal.Entry> restored = new ArrayList<CacheJournal.Entry>();
+			HashSet<String> keep = new HashSet<String>();
+			for(int i = entries.size() - 1; i >= 0; i--) {
+				CacheJournal.Entry entry = entries.get(i);
+				File f = new File(cacheDir + "/" + makeVersion(entry.path, entry.version));
+				if(!f.isFile() || f.length() != entry.size || !space.tryReserve(entry.size)) {
+					journal.remove(entry.path);
+					continue;
 				}
-        		fromVersion--;
+				space.commit(entry.size, entry.size);
+				keep.add(f.getPath());
+				restored.add(entry);
 			}
-
-			//Loop from current version all the way back
-			while(fromVersion >= 0) {
-				completeFilename = makeVersion(filename, fromVersion);
-				if(peopleStore.containsKey(completeFilename) && peopleStore.get(completeFilename) == 0) {
-					toDeleteFile = new File(completeFilename);
-          			updateRemainingSpace((int)toDeleteFile.length(), true);
-					toDeleteFile.delete();
-					peopleStore.remove(completeFilename);
+			removeUnaccounted(new File(cacheDir), keep);
+
+			Collections.reverse(restored);
+			for(CacheJournal.Entry entry : restored) {
+				closeStore.put(entry.path, entry.version);
+				openStore.put(entry.path, entry.version + 1);
+				peopleStore.put(cacheDir + "/" + makeVersion(entry.path, entry.version), 0);
+				evictionPolicy.recordAccess(entry.path);
+				if(entry.serverVersion == CacheJournal.NOT_UPLOADED) {
+					reupload(entry);
+					continue;
 				}
-				fromVersion --;
+				markServerState(entry.path, entry.version, entry.serverVersion);
+				evictionPolicy.release(entry.path, entry.size);
+				dedupVersion(cacheDir + "/" + makeVersion(entry.path, entry.version));
 			}
-
-			peopleStoreLock.writeLock().unlock();
+			return restored.size();
 		}
 
+
 		/**
- 		 * Get file from server fetches the file from server if needed
+ 		 * Reupload sends a version a previous run closed but never got to the server. It stays
+ 		 * pinned until the upload is done, and journaled as not uploaded if it fails again.
  		 * 
- 		 * @param Path of file to fetch, version of file to copy into, length of file
- 		 * @return 1 in case of success -1 in case of failure
+ 		 * @param journal entry of the version
+ 		 * @return void.
  		*/
-		public int getFileFromServer(String path, int version, int lengthOfFile) {
-			try {
-				String toCreatePath = makeVersion(path, version);
-			  	RandomAccessFile raf = new RandomAccessFile(cacheDir + "/" + toCreatePath, "rw");
-				long offset = 0;
-				byte[] bytesRead;
-
-				//Check if eviction is needed before copying the file
-		        if(checkEvictAndUpdate(lengthOfFile) == -1) return Errors.EBUSY;
-
-		        updateRemainingSpace(lengthOfFile, false);
-
-		        //Where entire file fits within chunksize
-		        if(chunkSize >= lengthOfFile) {
-					bytesRead = srv.readFile(path, (int)lengthOfFile, 0, 1);
-					raf.write(bytesRead);
-					raf.close();
-					return 1;
-				}
-
-				//Use offset and grab chunksize bytes
-				while(offset+chunkSize < lengthOfFile) {
-					bytesRead = srv.readFile(path, chunkSize, offset, 0);
-					raf.write(bytesRead);
-					offset += chunkSize;
+		private static void reupload(CacheJournal.Entry entry) {
+			String fullPath = cacheDir + "/" + makeVersion(entry.path, entry.version);
+			notUploadedStore.put(entry.path, entry.version);
+			pinVersion(fullPath);
+			if(writeBacks != null) {
+				try {
+					writeBacks.submit(entry.path, entry.version, entry.version, null, entry.size);
+				} catch (InterruptedException ie) {
+					Thread.currentThread().interrupt();
 				}
-
-				bytesRead = srv.readFile(path, (int)(lengthOfFile-offset), offset, 1);
-				raf.write(bytesRead);
-				raf.close();
-				return 1;
-
-			} catch (Exception r) {
-				return -1;
+				return;
 			}
-
+			if(new FileHandler().updateFileInServer(entry.path, entry.version, null, -1) == -1) {
+				System.err.println("PROXY: Could not upload " + entry.path + ", kept for the next start");
+				return;
+			}
+			notUploadedStore.remove(entry.path, entry.version);
+			journalClosed(entry.path, entry.version, entry.size);
+			evictionPolicy.release(entry.path, entry.size);
+			unpinVersion(fullPath);
 		}
 
+
 		/**
- 		 * Put the updates file back into server
+ 		 * Remove unaccounted deletes versioned files under a directory that arent being kept,
+ 		 * what a crash leaves of fetches and older versions
  		 * 
- 		 * @param Path of file to put, version number of file
- 		 * @return 1 in case of success -1 in case of failure
+ 		 * @param directory to walk, full paths of files to keep
+ 		 * @return void.
  		*/
-		public int updateFileInServer(String path, int version) {
-			try {
-				String toCreatePath = makeVersion(path, version);
-			  	RandomAccessFile raf = new RandomAccessFile(cacheDir + "/" + toCreatePath, "rw");
-        		srv.fileInfo(path, 1);
-				long lengthOfFile = (int)raf.length();
-				long offset = 0;
-				byte[] bytesToWrite;
-
-				//Where entire file fits within chunksize
-				if(chunkSize >=lengthOfFile) {
-          			bytesToWrite = new byte[(int)lengthOfFile];
-					raf.read(bytesToWrite);
-					srv.writeFile(path, bytesToWrite, 0, 1, proxyNumber);
-					raf.close();
-					return 1;
+		private static void removeUnaccounted(File dir, HashSet<String> keep) {
+			File[] children = dir.listFiles();
+			if(children == null) return;
+			for(File child : children) {
+				if(child.isDirectory() && child.getName().endsWith(LazyFile.DIR_SUFFIX)) {
+					//Blocks of lazily fetched versions, which never outlive the proxy
+					for(File block : child.listFiles()) block.delete();
+					child.delete();
+				} else if(child.isDirectory()) {
+					removeUnaccounted(child, keep);
+				} else if(child.getName().matches(".*\\.[0-9]+") && !keep.contains(child.getPath())) {
+					child.delete();
 				}
+			}
+		}
 
-				//Use offset and grab chunksize bytes
-				while(offset+chunkSize < lengthOfFile) {
-          			bytesToWrite = new byte[chunkSize];
-					raf.read(bytesToWrite);
-					srv.writeFile(path, bytesToWrite, offset, 0, proxyNumber);
-					offset += chunkSize;
-				}
 
-        		bytesToWrite = new byte[(int)(lengthOfFile-offset)];
-				raf.read(bytesToWrite);
-				srv.writeFile(path, bytesToWrite, offset, 1, proxyNumber);
-				raf.close();
-				return 1;
+		/**
+ 		 * Revalidate all checks every cached path whose latest copy is known to match the server
+ 		 * in one batched call. Paths the server still has at the same version get their lease
+ 		 * renewed, the rest lose it so their next open asks the server.
+ 		 * 
+ 		 * @param none
+ 		 * @return Number of paths still valid, -1 if the server couldnt be reached
+ 		*/
+		private static int revalidateAll() {
+			ArrayList<String> paths = new ArrayList<String>();
+			ArrayList<Long> versions = new ArrayList<Long>();
+			closeStoreLock.readLock().lock();
+			for(Map.Entry<String, Integer> entry : closeStore.entrySet()) {
+				long serverVersion = cachedServerVersion(entry.getKey(), entry.getValue());
+				if(serverVersion < 0) continue;
+				paths.add(entry.getKey());
+				versions.add(serverVersion);
+			}
+			closeStoreLock.readLock().unlock();
+			if(paths.isEmpty()) return 0;
 
-			} catch (Exception r) {
+			long[] versionArray = new long[versions.size()];
+			for(int i = 0; i < versionArray.length; i++) versionArray[i] = versions.get(i);
+			long requested = System.currentTimeMillis();
+			long invalidationsBefore = invalidations.get();
+			long[] current;
+			try {
+				current = srv.validateBatch(paths.toArray(new String[0]), versionArray, proxyNumber);
+			} catch (RemoteException re) {
 				return -1;
 			}
 
+			int valid = 0;
+			for(int i = 0; i < current.length; i++) {
+				if(current[i] == versionArray[i]) {
+					grantLease(paths.get(i), requested, invalidationsBefore);
+					valid++;
+				} else {
+					leaseStore.remove(paths.get(i));
+				}
+			}
+			return valid;
 		}
 
 
@@ -342,6 +1942,9 @@ class Proxy {
 			path = normalizePath(path);
 			if(path == "") return Errors.EINVAL;
 
+			//Concurrent opens each take their own fd number, one given up on is never reused
+			int fd = fdVal.getAndIncrement();
+
 			//If first time file has to opened
 			closeStoreLock.writeLock().lock();
 			openStoreLock.writeLock().lock();
@@ -363,6 +1966,25 @@ class Proxy {
 			openStore.put(path, openNumber+1);
 			openStoreLock.writeLock().unlock();
 
+			//Keep the cached version this open starts from until its done with it, another
+			//client closing a newer version would otherwise clean it up from under us
+			String basePath = cacheDir + "/" + makeVersion(path, closeNumber);
+			boolean basePinned = pinIfCached(basePath);
+			try {
+				return openFrom(path, o, fd, closeNumber, openNumber, basePinned);
+			} finally {
+				if(basePinned) unpinVersion(basePath);
+			}
+		}
+
+
+		/**
+ 		 * Open from does the rest of an open once its fd and version numbers are taken
+ 		 * 
+ 		 * @param Path, option, fd, version its based on, version it opens as, whether the base version is pinned
+ 		 * @return Returns one of the many errors of open on failure and fd on success
+ 		*/
+		private int openFrom(String path, OpenOption o, int fd, int closeNumber, int openNumber, boolean basePinned) {
 		  	String pathTemp = path;
 			String pathToOpen = cacheDir + "/" + makeVersion(path, openNumber);
 			String existsPath = cacheDir + "/" + makeVersion(path, closeNumber);
@@ -370,45 +1992,62 @@ class Proxy {
 			String halfPathToClose = makeVersion(path, closeNumber);
 			File f;
 			boolean existsOnCache;
-			int[] existsValid;
+			long[] existsValid;
 			int existsOnServer;
 			int isInvalid;
-			int lengthOfFile;
+			long lengthOfFile;
+			long serverVersion = -1;
 
 			//Check if path is null or not
 			try {
 				f = new File(existsPath);
-				existsOnCache = f.exists();
+				existsOnCache = basePinned && ((hotTier != null && hotTier.contains(existsPath)) || f.exists());
 			} catch(NullPointerException npe) {
 				return Errors.EINVAL;
 			}
 		      
 
-			//Get whether file exists, is valid and what the length is from server
-			try {
-				existsValid = srv.fileExistsAndValid(pathTemp, proxyNumber, existsOnCache, false);
-				existsOnServer = existsValid[0];
-				isInvalid = existsValid[1];
-				lengthOfFile = existsValid[2];
-			} catch (RemoteException r) {
-				return Errors.EBUSY;
+			//Under a lease the server would have called us back if the file had changed, and
+			//a version still waiting to be uploaded is newer than anything the server has
+			if(existsOnCache && (holdsLease(pathTemp) || (writeBacks != null && writeBacks.isPending(pathTemp)))) {
+				existsOnServer = 1;
+				isInvalid = 0;
+				peopleStoreLock.readLock().lock();
+				LazyFile lazy = lazyStore.get(existsPath);
+				peopleStoreLock.readLock().unlock();
+				lengthOfFile = (lazy != null) ? lazy.length() : storedLength(existsPath);
+			} else {
+
+				//Get whether file exists, is valid and what the length is from server
+				long requested = System.currentTimeMillis();
+				long invalidationsBefore = invalidations.get();
+				long cachedVersion = existsOnCache ? cachedServerVersion(pathTemp, closeNumber) : -1;
+				try {
+					existsValid = srv.fileExistsAndValid(pathTemp, proxyNumber, existsOnCache, cachedVersion, false);
+					existsOnServer = (int)existsValid[0];
+					isInvalid = (int)existsValid[1];
+					lengthOfFile = existsValid[2];
+					serverVersion = existsValid[3];
+				} catch (RemoteException r) {
+					return Errors.EBUSY;
+				}
+				if(existsOnServer == 1) grantLease(pathTemp, requested, invalidationsBefore);
 			}
 
       		if(existsOnServer == 2) {
 				if(o == OpenOption.READ) {
-					dirStore.put(fdVal, pathTemp);
-					fdVal++;
-					return fdVal - 1;
+					dirStore.put(fd, pathTemp);
+					return fd;
 				} else {
 					return Errors.EISDIR;
 				}
 			}
 
 
-			//Remove latest copy our file from the linkedList
-			linkedListLock.writeLock().lock();
-			lruList.remove(pathTemp);
-			linkedListLock.writeLock().unlock();
+			//Count the access and keep our file from being evicted while its open
+			evictionPolicy.recordAccess(pathTemp);
+			evictionPolicy.pin(pathTemp);
+			if(prefetcher != null && existsOnServer != 0) prefetcher.opened(pathTemp, existsOnCache && isInvalid != 1);
 
       		//If create new is called and file exists either in cache or server return error
 			if(o == OpenOption.CREATE_NEW && (existsOnCache || (existsOnServer != 0))) {
@@ -416,13 +2055,17 @@ class Proxy {
 			}
 
 
+			//Big files opened to read can skip the fetch and have their blocks fetched as theyre read
+			boolean lazyOpen = lazyFetch && o == OpenOption.READ && existsOnServer == 1 && lengthOfFile > chunkSize
+				&& (!existsOnCache || isInvalid == 1);
+
 			//If option is create and file doesnt exist in cache but exists on server, get the file
 			//If file does exists in cache, continue as usual
 			//If file doesn't exist in cache or server continue as usual
 			if(o == OpenOption.CREATE) {
         		makeParent(pathToOpen);
 				if(!existsOnCache && (existsOnServer != 0)) {
-					if(getFileFromServer(pathTemp, openNumber, lengthOfFile) == -1) return Errors.EBUSY;
+					if(getFileFromServer(pathTemp, openNumber, lengthOfFile, serverVersion) == -1) return Errors.EBUSY;
 				}
 			}
 
@@ -434,38 +2077,50 @@ class Proxy {
 					return Errors.ENOENT;
 				} else if(!existsOnCache && (existsOnServer != 0)) {
           			makeParent(pathToOpen);
-					if(getFileFromServer(pathTemp, openNumber, lengthOfFile) == -1) return Errors.EBUSY;
+					if(lazyOpen) {
+						if(openLazy(pathTemp, openNumber, lengthOfFile, serverVersion) == -1) return Errors.EBUSY;
+					} else if(getFileFromServer(pathTemp, openNumber, lengthOfFile, serverVersion) == -1) return Errors.EBUSY;
 				}
 			}
 
       		makeParent(pathToOpen);
       		//Check if copy is invalid, if it is then grab it from server
 			if(isInvalid == 1 && existsOnCache) {
-				if(getFileFromServer(pathTemp, openNumber, lengthOfFile) == -1) return Errors.EBUSY;
+				if(lazyOpen) {
+					if(openLazy(pathTemp, openNumber, lengthOfFile, serverVersion) == -1) return Errors.EBUSY;
+				} else if(deltaRefresh && lengthOfFile > chunkSize) {
+					if(refreshFromServer(pathTemp, closeNumber, openNumber, lengthOfFile, serverVersion) == -1) return Errors.EBUSY;
+				} else if(getFileFromServer(pathTemp, openNumber, lengthOfFile, serverVersion) == -1) return Errors.EBUSY;
 			}
 
 
 
+			//Hit if the cached copy could be used as is, miss if it had to come from the server
+			if(existsOnServer != 0) {
+				if(existsOnCache && isInvalid != 1) cacheStats.recordHit(lengthOfFile);
+				else cacheStats.recordMiss(lengthOfFile);
+			}
+
 			String optionsForFile;
 			//Decide what the option to set is
 			switch (o) {
 				case READ:  optionsForFile = "r";
-       						usedStore.put(fdVal, 0);
+       						usedStore.put(fd, 0);
 						    break;
 				case WRITE: optionsForFile = "rw";
-                    		usedStore.put(fdVal, 0);
+                    		usedStore.put(fd, 0);
 							break;
 				case CREATE: optionsForFile = "rw";
 				  			 break;
 				case CREATE_NEW: optionsForFile  = "rw";
-								 usedStore.put(fdVal, 2);
+								 usedStore.put(fd, 2);
 								 break;
 				default: return Errors.EINVAL;
 			}
 
-			//Store that this file will/won't be modified
-			if(o == OpenOption.CREATE && (existsOnServer == 0)) usedStore.put(fdVal, 2);
-      		else usedStore.put(fdVal,1);
+			//Store that this file will/won't be modified, nothing can be written through a read only fd
+			if(o == OpenOption.CREATE && (existsOnServer == 0)) usedStore.put(fd, 2);
+      		else if(o != OpenOption.READ) usedStore.put(fd,1);
 
 
 			//See if making file is possible, if yes put it in the hashmap
@@ -473,41 +2128,78 @@ class Proxy {
 			try {
 				String toMakePath;
 				String toPutPath;
+				int baseVersion = openNumber;
+				HotTier.Entry hotEntry = null;
 
 				//If no need to create to new copy then open the latest version
 				if(o == OpenOption.READ && isInvalid != 1 && existsOnCache) {
 					toMakePath = existsPath;
 					toPutPath = halfPathToClose;
-					RandomAccessFile raf = new RandomAccessFile(existsPath, optionsForFile);
+					baseVersion = closeNumber;
+					materialize(existsPath);
+					hotEntry = acquireHot(pathTemp, existsPath);
 				} else {
 
 					//Create a copy if writing, creating new or create and doesnt exist on cache
 					if((o == OpenOption.WRITE || o == OpenOption.CREATE) && existsOnCache && isInvalid != 1) {
-						File destFile = new File(pathToOpen);
-						File sourceFile = new File(existsPath);
-            			int tempLen = (int)sourceFile.length();
-            			if(checkEvictAndUpdate(tempLen) == -1) return Errors.EBUSY;
-            			updateRemainingSpace(tempLen,false);
-						copyFile(sourceFile, destFile);
+						if(completeLazy(existsPath) == -1) return Errors.EBUSY;
+						if(cowWrites) {
+							createOverlay(existsPath, pathToOpen);
+						} else {
+							File destFile = new File(pathToOpen);
+							File sourceFile = new File(existsPath);
+							long tempLen = sourceFile.length();
+							if(reserveSpace(tempLen) == -1) return Errors.EBUSY;
+							try {
+								copyFile(sourceFile, destFile);
+							} catch (IOException ie) {
+								space.cancel(tempLen);
+								throw ie;
+							}
+							space.commit(tempLen, tempLen);
+						}
+						baseVersion = closeNumber;
 					}
 					  toMakePath = pathToOpen;
 					  toPutPath = halfPathToOpen;
 
 				}
 
-				//Open the file, put it in all hashmaps with appropriate values
-				RandomAccessFile raf = new RandomAccessFile(toMakePath, optionsForFile);
-				fdStore.put(fdVal, raf);
-				nameStore.put(fdVal, toPutPath);
+				//Open the file, put it in all hashmaps with appropriate values. Versions in the hot
+				//tier are read from memory and have no file open.
+				RandomAccessFile raf = (hotEntry != null) ? null : new RandomAccessFile(toMakePath, optionsForFile);
+				fdStore.put(fd, raf);
+				nameStore.put(fd, toPutPath);
+				dirtyStore.put(fd, new RangeSet());
+				baseStore.put(fd, baseVersion);
 				peopleStoreLock.writeLock().lock();
-				if(peopleStore.containsKey(toMakePath)) {
-					peopleStore.put(toMakePath, (peopleStore.get(toMakePath))+1);
-				} else {
-					peopleStore.put(toMakePath, 1);
+				try {
+					if(peopleStore.containsKey(toMakePath)) {
+						peopleStore.put(toMakePath, (peopleStore.get(toMakePath))+1);
+					} else {
+						peopleStore.put(toMakePath, 1);
+					}
+
+					//Lazy versions are read block by block, everything else through the file
+					LazyFile lazy = lazyStore.get(toMakePath);
+					if(lazy != null) lazyFdStore.put(fd, new LazyFd(lazy, toMakePath));
+					if(hotEntry != null) hotFdStore.put(fd, new HotFd(hotEntry));
+
+					//Readers share one mapping of the version, kept until the version is cleaned up
+					if(mmapReads && o == OpenOption.READ && lazy == null && hotEntry == null) {
+						MappedFile mapped = mapStore.get(toMakePath);
+						if(mapped == null) {
+							mapped = new MappedFile(raf);
+							mapStore.put(toMakePath, mapped);
+						}
+						mappedFdStore.put(fd, new MappedFd(mapped));
+					}
+					Overlay overlay = overlayStore.get(toMakePath);
+					if(overlay != null) overlayFdStore.put(fd, overlay);
+				} finally {
+					peopleStoreLock.writeLock().unlock();
 				}
-				peopleStoreLock.writeLock().unlock();
-				fdVal++;
-				return fdVal-1;
+				return fd;
 			} catch (FileNotFoundException fne) {
 				return Errors.ENOENT;
 			} catch (SecurityException se) {
@@ -547,6 +2239,9 @@ class Proxy {
 				String totalPath = cacheDir + "/" + myPath;
         		int ownVersion = Integer.parseInt(myVersion(myPath));
 
+        		//Nothing can have been written through a hot fd, even if it was never read
+        		if(hotFdStore.containsKey(fd)) usedStore.put(fd, 0);
+
         		//In case file wasn't modified
 				if((usedStore.get(fd) == 0)) {
 					closeStoreLock.writeLock().lock();
@@ -554,10 +2249,11 @@ class Proxy {
 					//Check if read is latest version
 					if(ownVersion >= closeStore.get(strippedPath)) {
 						cleanUp(cacheDir + "/" + strippedPath, ownVersion,false);
-			            linkedListLock.writeLock().lock();
-			            lruList.addLast(strippedPath);
-			            linkedListLock.writeLock().unlock();
+			            long closedLength = storedLength(totalPath);
+			            evictionPolicy.release(strippedPath, closedLength);
 						closeStore.put(strippedPath, ownVersion);
+						journalClosed(strippedPath, ownVersion, closedLength);
+						dedupVersion(totalPath);
 					} else {
             			cleanUp(cacheDir + "/" + strippedPath, ownVersion,true);
          			}
@@ -575,12 +2271,29 @@ class Proxy {
 					closeStoreLock.writeLock().lock();
 					closeStore.put(strippedPath, ownVersion);
 					closeStoreLock.writeLock().unlock();
-
-					linkedListLock.writeLock().lock();
-					lruList.addLast(strippedPath);
-					linkedListLock.writeLock().unlock();
-
-					if(updateFileInServer(strippedPath, ownVersion) == -1) return Errors.EBUSY;
+					dedupVersion(totalPath);
+
+					//Leave the upload to the write back queue, which keeps the version until its done
+					if(writeBacks != null) {
+						pinVersion(totalPath);
+						try {
+							writeBacks.submit(strippedPath, ownVersion, baseStore.get(fd), dirtyStore.get(fd),
+								toCloseFile.length());
+						} catch (InterruptedException ie) {
+							unpinVersion(totalPath);
+							Thread.currentThread().interrupt();
+							return Errors.EBUSY;
+						}
+					} else {
+						evictionPolicy.release(strippedPath, toCloseFile.length());
+
+						//Send only the dirty ranges if the server still has the version we started from
+						long baseServerVersion = cachedServerVersion(strippedPath, baseStore.get(fd));
+						RangeSet dirty = (baseServerVersion >= 0) ? dirtyStore.get(fd) : null;
+						int updated = updateFileInServer(strippedPath, ownVersion, dirty, baseServerVersion);
+						journalClosed(strippedPath, ownVersion, toCloseFile.length());
+						if(updated == -1) return Errors.EBUSY;
+					}
 				}
 
 				//Decrement number of users for a file
@@ -588,10 +2301,17 @@ class Proxy {
         		if(peopleStore.containsKey(totalPath)) peopleStore.put(totalPath, (peopleStore.get(totalPath))-1);
 				peopleStoreLock.writeLock().unlock();
 
-				toCloseFile.close();
+				if(toCloseFile != null) toCloseFile.close();
+				HotFd hotFd = hotFdStore.remove(fd);
+				if(hotFd != null) hotTier.release(hotFd.entry);
+				mappedFdStore.remove(fd);
+				lazyFdStore.remove(fd);
+				overlayFdStore.remove(fd);
         		fdStore.remove(fd);
 				nameStore.remove(fd);
 				usedStore.remove(fd);
+				dirtyStore.remove(fd);
+				baseStore.remove(fd);
 				return 0;
 			} catch (IOException ie) {
 				return -5; //Predefined C Error code NOT A MAGIC NUMBER
@@ -616,22 +2336,42 @@ class Proxy {
 				return Errors.EBADF;
 			}
 
+			//Versions in the hot tier are only ever open to read
+			if(hotFdStore.containsKey(fd)) return Errors.EBADF;
+
 			//Get it from hashmap, see if it can be written to
 			RandomAccessFile toWriteFile = fdStore.get(fd);
 
 			try {
-				int toWriteFileLength = (int)toWriteFile.length();
+				long toWriteFileLength = toWriteFile.length();
 				int bufLength = (int)buf.length;
-				int fp = (int)toWriteFile.getFilePointer();
-				int delta = (fp + bufLength) - (toWriteFileLength);
-
-				//Check if the extra amount being written is > than remaining space
-        		if(delta > remainingSpace) {
-          			if(checkEvictAndUpdate(delta) == -1) return Errors.EBUSY;
-        		}
-        		updateRemainingSpace(delta, false);
-				toWriteFile.write(buf);
+				long fp = toWriteFile.getFilePointer();
+				long delta = (fp + bufLength) - (toWriteFileLength);
+
+				//An overlay only stores the bytes written to it, the first write of each byte costs space
+				Overlay overlay = overlayFdStore.get(fd);
+				long writtenFrom = Math.min(fp, toWriteFileLength);
+				if(overlay != null) delta = overlay.present.missing(writtenFrom, fp + bufLength);
+
+				//Reserve whatever the write grows the file by, evicting if needed
+				if(delta > 0 && reserveSpace(delta) == -1) return Errors.EBUSY;
+				try {
+					toWriteFile.write(buf);
+				} catch (IOException ie) {
+					space.cancel(delta);
+					throw ie;
+				}
+				space.commit(delta, delta);
+				if(overlay != null) {
+					overlay.present.add(writtenFrom, fp + bufLength);
+					if(delta > 0) overlay.charged += delta;
+				}
         		usedStore.put(fd, 2);
+
+				//Remember what changed, a write past the end also dirties the zero filled gap
+				RangeSet dirty = dirtyStore.get(fd);
+				if(fp > toWriteFileLength) dirty.add(toWriteFileLength, fp);
+				dirty.add(fp, fp + bufLength);
 				return buf.length;
 			} catch (IOException ie) {
 				return Errors.EBADF;
@@ -655,11 +2395,43 @@ class Proxy {
 				return Errors.EBADF;
 			}
 
+			//Mapped readers copy out of the shared mapping
+			MappedFd mappedFd = mappedFdStore.get(fd);
+			if(mappedFd != null) {
+				int copied = mappedFd.file.read(mappedFd.position, buf);
+				mappedFd.position += copied;
+				if(usedStore.containsKey(fd) && usedStore.get(fd) != 2) usedStore.put(fd, 0);
+				return copied;
+			}
+
+			//Hot readers copy out of memory
+			HotFd hotFd = hotFdStore.get(fd);
+			if(hotFd != null) {
+				int copied = hotTier.read(hotFd.entry, hotFd.position, buf);
+				hotFd.position += copied;
+				if(usedStore.containsKey(fd) && usedStore.get(fd) != 2) usedStore.put(fd, 0);
+				return copied;
+			}
+
+			//Lazy readers fetch what they touch
+			LazyFd lazyFd = lazyFdStore.get(fd);
+			if(lazyFd != null) {
+				try {
+					int copied = lazyFd.file.read(lazyFd.position, buf);
+					lazyFd.position += copied;
+					if(usedStore.containsKey(fd) && usedStore.get(fd) != 2) usedStore.put(fd, 0);
+					return copied;
+				} catch (IOException ie) {
+					return Errors.EBUSY;
+				}
+			}
+
 			//Get it from hashmap, see if it can be read from
 			RandomAccessFile toReadFile = fdStore.get(fd);
 
 			try {
-				int readRet = toReadFile.read(buf);
+				Overlay overlay = overlayFdStore.get(fd);
+				int readRet = (overlay != null) ? readOverlay(toReadFile, overlay, buf) : toReadFile.read(buf);
         		if(readRet < 0) return 0;
         		if(usedStore.containsKey(fd) && usedStore.get(fd) != 2) usedStore.put(fd, 0);
 				return readRet;
@@ -693,8 +2465,46 @@ class Proxy {
 
 			//Get it from hashmap, see if it can be lseeked
 			RandomAccessFile toLseekFile = fdStore.get(fd);
+			MappedFd mappedFd = mappedFdStore.get(fd);
+
+			HotFd hotFd = hotFdStore.get(fd);
+			if(hotFd != null) {
+				long finalPos;
+				switch(o) {
+					case FROM_START: finalPos = pos;
+						break;
+					case FROM_CURRENT: finalPos = pos + hotFd.position;
+						break;
+					case FROM_END: finalPos = hotFd.entry.length() + pos;
+						break;
+					default: finalPos = -1;
+				}
+				if(finalPos < 0) return Errors.EINVAL;
+				hotFd.position = finalPos;
+				return finalPos;
+			}
+
+			//Lazy fds only move their position, the block there is fetched in the background
+			LazyFd lazyFd = lazyFdStore.get(fd);
+			if(lazyFd != null) {
+				long finalPos;
+				switch(o) {
+					case FROM_START: finalPos = pos;
+						break;
+					case FROM_CURRENT: finalPos = pos + lazyFd.position;
+						break;
+					case FROM_END: finalPos = lazyFd.file.length() + pos;
+						break;
+					default: finalPos = -1;
+				}
+				if(finalPos < 0) return Errors.EINVAL;
+				lazyFd.position = finalPos;
+				prefetchLazy(lazyFd, finalPos);
+				return finalPos;
+			}
+
 			try {
-				long currPtr  = toLseekFile.getFilePointer();
+				long currPtr  = (mappedFd != null) ? mappedFd.position : toLseekFile.getFilePointer();
 				long finalPos;
 
 				//Decide where final position is suppoed to be
@@ -703,13 +2513,14 @@ class Proxy {
                            break;
 					case FROM_CURRENT: finalPos = pos+ currPtr;
                              break;
-					case FROM_END: finalPos = toLseekFile.length() + pos;
+					case FROM_END: finalPos = ((mappedFd != null) ? mappedFd.file.length() : toLseekFile.length()) + pos;
                          break;
 					default: finalPos = -1;
 				}
 				//If final position < 0, invalid error, else call seek.
 				if(finalPos >= 0) {
-					toLseekFile.seek(finalPos);
+					if(mappedFd != null) mappedFd.position = finalPos;
+					else toLseekFile.seek(finalPos);
 					return finalPos;
 				} else {
 					return Errors.EINVAL;
@@ -721,6 +2532,34 @@ class Proxy {
 		}
 
 
+		/**
+ 		 * Prefetch lazy fetches the block at a position through the fetch pool. The version is
+ 		 * pinned until its done so it cant be cleaned up under the fetch.
+ 		 * 
+ 		 * @param Lazy fd, position
+ 		 * @return void.
+ 		*/
+		private void prefetchLazy(final LazyFd lazyFd, final long position) {
+			if(position >= lazyFd.file.length()) return;
+			pinVersion(lazyFd.fullPath);
+			try {
+				fetchPool().submit(new Runnable() {
+					public void run() {
+						try {
+							lazyFd.file.prefetch(position);
+						} catch (IOException ie) {
+							//The read will fetch it again and report the failure
+						} finally {
+							unpinVersion(lazyFd.fullPath);
+						}
+					}
+				});
+			} catch (RejectedExecutionException ree) {
+				unpinVersion(lazyFd.fullPath);
+			}
+		}
+
+
 		/**
  		 * unlink/delete a file
  		 * 
@@ -735,6 +2574,9 @@ class Proxy {
 			File f;
 		  	String pathTemp = path;
 		  	path = cacheDir + "/" + path;
+		  	dropLease(pathTemp);
+		  	if(journal != null) journal.remove(pathTemp);
+		  	if(prefetcher != null) prefetcher.forget(pathTemp);
 
 			//Get file with the path, delete it
 			//If deletion not possible then Busy error
@@ -744,7 +2586,7 @@ class Proxy {
 
 		    	//Check if it exists on server
 		    	try {
-		      		existsOnServer = (srv.fileExistsAndValid(pathTemp,proxyNumber, false, true))[0];
+		      		existsOnServer = (int)srv.fileExistsAndValid(pathTemp,proxyNumber, false, -1, true)[0];
 		   	 	} catch (RemoteException r) {
 		      		return Errors.EBUSY;
 		    	}
@@ -806,12 +2648,151 @@ class Proxy {
 
 	}
 
+	//Receives invalidation callbacks from the server for leased paths
+	private static class CallbackReceiver extends UnicastRemoteObject implements CacheCallback {
+
+		private static final long serialVersionUID = 1L;
+
+		CallbackReceiver() throws RemoteException {
+			super();
+		}
+
+		public void invalidate(String path) throws RemoteException {
+			FileHandler.dropLease(path);
+		}
+	}
+
+	//Lets other proxies fetch versions out of our cache
+	private static class PeerReceiver extends UnicastRemoteObject implements PeerSource {
+
+		private static final long serialVersionUID = 1L;
+
+		PeerReceiver() throws RemoteException {
+			super();
+		}
+
+		public long[] openPeerFetch(String path, long serverVersion) throws RemoteException {
+			return FileHandler.openPeerFetch(path, serverVersion);
+		}
+	}
+
 	private static class FileHandlingFactory implements FileHandlingMaking {
 		public FileHandling newclient() {
 			return new FileHandler();
 		}
 	}
 
+	/**
+	 * Read an integer setting from the environment
+	 * 
+	 * @param name of variable, value to use when unset or malformed
+	 * @return The configured value
+	*/
+	private static int envInt(String name, int defaultValue) {
+		String value = System.getenv(name);
+		if(value == null) return defaultValue;
+		try {
+			return Integer.parseInt(value.trim());
+		} catch (NumberFormatException nfe) {
+			return defaultValue;
+		}
+	}
+
+	/**
+	 * Server host of a path, the host of its shard when the namespace is sharded
+	 * 
+	 * @param path
+	 * @return Host to open transfers to
+	*/
+	private static String serverHost(String path) {
+		if(srv instanceof ShardedServer) return ((ShardedServer)srv).hostOf(path);
+		return serverHost;
+	}
+
+	/**
+	 * Init proxy does the setup that needs the server connection
+	 * 
+	 * @param none
+	 * @return void.
+	*/
+	private static void initProxy() {
+		//Leases only work if the server can reach our callback
+		if(leaseMode) {
+			try {
+				callbackReceiver = new CallbackReceiver();
+				leaseMillis = srv.registerCallback(proxyNumber, callbackReceiver);
+			} catch (RemoteException re) {
+				System.err.println("PROXY: Could not register for invalidations, leases disabled");
+				leaseMillis = 0;
+			}
+		}
+
+		//Settle on a chunk codec, the server may not support the ones we offer
+		if(compressionOffer != 0) {
+			try {
+				chunkCodec = srv.negotiateCodec(proxyNumber, compressionOffer);
+			} catch (RemoteException re) {
+				chunkCodec = ChunkCodec.NONE;
+			}
+			System.err.println("PROXY: Chunk compression " + ChunkCodec.name(chunkCodec));
+		}
+
+		//Serving peers needs a transfer service of our own and the server to know about it
+		if(peerMode) {
+			try {
+				peerTransfers = new TransferService(0);
+				peerReceiver = new PeerReceiver();
+				srv.registerPeer(proxyNumber, peerReceiver);
+			} catch (IOException ie) {
+				System.err.println("PROXY: Could not register as a peer, peer fetch disabled");
+				peerMode = false;
+			}
+		}
+
+		FileHandler.startWriteBack();
+		FileHandler.startPrefetch();
+		FileHandler.startDedup();
+
+		//Pick up what a previous run left in the cache and check it against the server in one go
+		int restored = FileHandler.restoreCache();
+		if(restored > 0) {
+			int current = FileHandler.revalidateAll();
+			System.err.println("PROXY: Restored " + restored + " cached files, " + current + " still current");
+		}
+
+		//Keep leases on the cached files alive so their opens stay local
+		if(leaseMillis > 0 && revalidateMillis > 0) {
+			ScheduledExecutorService revalidator = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "revalidate");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+			revalidator.scheduleWithFixedDelay(new Runnable() {
+				public void run() {
+					FileHandler.revalidateAll();
+				}
+			}, revalidateMillis, revalidateMillis, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Start in process sets the proxy up against a server stub without the RPC receiver, so
+	 * another program such as ProxyFixture can drive FileHandlers directly
+	 * 
+	 * @param server stub, its host, cache directory, cache capacity, proxy number
+	 * @return void.
+	*/
+	static void startInProcess(FSInf server, String host, String dir, long capacity, int number) {
+		srv = server;
+		serverHost = host;
+		cacheDir = dir;
+		cacheCapacity = capacity;
+		proxyNumber = number;
+		initProxy();
+	}
+
 	public static void main(String[] args) throws IOException {
 		if(args.length != 4) {
 			return;
@@ -823,13 +2804,36 @@ class Proxy {
 		cacheCapacity = Long.parseLong(args[3]);
 		proxyNumber = Integer.parseInt(System.getenv("proxyport15440"));
 
+		//A comma separated list of servers splits the namespace between them
 		try {
-			srv = (FSInf) Naming.lookup("//" + ip + ":" + port + "/Server");
+			String[] endpoints = ShardRing.parseEndpoints(ip, port);
+			serverHost = endpoints[0].substring(0, endpoints[0].lastIndexOf(':'));
+			if(endpoints.length > 1) srv = new ShardedServer(new ShardRing(endpoints, shardVirtualNodes));
+			else srv = (FSInf) Naming.lookup("//" + endpoints[0] + "/Server");
 		} catch(Exception nbe) {
 			System.err.println("Could not connect to server\n");
 			return;
 		}
 
+		initProxy();
+
+		//Report cache effectiveness when the proxy goes down
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			public void run() {
+				FileHandler.drainWriteBacks();
+				System.err.println("PROXY: " + FileHandler.evictionPolicy.name() + " " + FileHandler.cacheStats);
+				System.err.println("PROXY: space capacity=" + FileHandler.space.capacity() + " available="
+					+ FileHandler.space.available() + " reserved=" + FileHandler.space.reserved());
+				if(chunkCodec != ChunkCodec.NONE) System.err.println("PROXY: compression " + FileHandler.compressionStats);
+				if(FileHandler.prefetcher != null) System.err.println("PROXY: prefetch " + FileHandler.prefetcher);
+				if(FileHandler.hotTier != null) System.err.println("PROXY: hot tier " + FileHandler.hotTier);
+				if(FileHandler.contentStore != null) System.err.println("PROXY: content store " + FileHandler.contentStore);
+				if(srv instanceof ShardedServer) System.err.println("PROXY: shards " + srv);
+				if(peerMode) System.err.println("PROXY: peers fetched=" + FileHandler.peerFetches + " bytes="
+					+ FileHandler.peerBytes + " served=" + FileHandler.peerServed);
+			}
+		});
+
 		(new RPCreceiver(new FileHandlingFactory())).run();
 	}
 }
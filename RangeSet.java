@@ -0,0 +1,119 @@
+
+import java.util.*;
+
+
+/**
+ * Range set keeps a sorted set of disjoint half open byte ranges [start, end).
+ * Adjacent and overlapping ranges are merged as they are added.
+*/
+public class RangeSet {
+
+	private TreeMap<Long, Long> ranges = new TreeMap<Long, Long>();
+
+
+	/**
+	 * Add a range, merging it with any range it touches
+	 *
+	 * @param start (inclusive) and end (exclusive) of range
+	 * @return void.
+	*/
+	public void add(long start, long end) {
+		if(end <= start) return;
+
+		//Swallow a range that starts before and reaches into the new one
+		Map.Entry<Long, Long> before = ranges.floorEntry(start);
+		if(before != null && before.getValue() >= start) {
+			start = before.getKey();
+			end = Math.max(end, before.getValue());
+			ranges.remove(before.getKey());
+		}
+
+		//Swallow every range starting inside the new one
+		Map.Entry<Long, Long> after = ranges.ceilingEntry(start);
+		while(after != null && after.getKey() <= end) {
+			end = Math.max(end, after.getValue());
+			ranges.remove(after.getKey());
+			after = ranges.ceilingEntry(start);
+		}
+		ranges.put(start, end);
+	}
+
+
+	/**
+	 * Add every range of another set
+	 *
+	 * @param the other set
+	 * @return void.
+	*/
+	public void addAll(RangeSet other) {
+		for(Map.Entry<Long, Long> range : other.ranges.entrySet()) add(range.getKey(), range.getValue());
+	}
+
+
+	/**
+	 * Check whether a byte is in the set
+	 *
+	 * @param position
+	 * @return true if the byte is covered
+	*/
+	public boolean contains(long position) {
+		Map.Entry<Long, Long> before = ranges.floorEntry(position);
+		return before != null && before.getValue() > position;
+	}
+
+
+	/**
+	 * Where the covered or uncovered run a byte is in ends
+	 *
+	 * @param position
+	 * @return End of the range holding it, or start of the next range, Long.MAX_VALUE if none
+	*/
+	public long runEnd(long position) {
+		Map.Entry<Long, Long> before = ranges.floorEntry(position);
+		if(before != null && before.getValue() > position) return before.getValue();
+		Long next = ranges.higherKey(position);
+		return next == null ? Long.MAX_VALUE : next;
+	}
+
+
+	/**
+	 * Number of bytes of [start, end) not in the set
+	 *
+	 * @param start (inclusive) and end (exclusive) of range
+	 * @return byte count
+	*/
+	public long missing(long start, long end) {
+		if(end <= start) return 0;
+		long covered = 0;
+		Map.Entry<Long, Long> before = ranges.lowerEntry(start);
+		if(before != null && before.getValue() > start) covered += Math.min(end, before.getValue()) - start;
+		for(Map.Entry<Long, Long> range : ranges.subMap(start, true, end, false).entrySet()) {
+			covered += Math.min(end, range.getValue()) - range.getKey();
+		}
+		return (end - start) - covered;
+	}
+
+
+	/**
+	 * Total number of bytes covered
+	 *
+	 * @param none
+	 * @return byte count
+	*/
+	public long totalBytes() {
+		long total = 0;
+		for(Map.Entry<Long, Long> range : ranges.entrySet()) total += range.getValue() - range.getKey();
+		return total;
+	}
+
+
+	/**
+	 * The ranges in ascending order as start to end entries
+	 *
+	 * @param none
+	 * @return Read-only view of the ranges
+	*/
+	public SortedMap<Long, Long> ranges() {
+		return Collections.unmodifiableSortedMap(ranges);
+	}
+}
@@ -2,9 +2,17 @@
 import java.io.*;
 import java.lang.*;
 import java.util.*;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicLong;
 import java.rmi.Remote;
 import java.rmi.RemoteException;
+import java.rmi.server.ServerNotActiveException;
 import java.rmi.server.UnicastRemoteObject;
 import java.rmi.registry.*;
 import java.rmi.Naming;
@@ -15,62 +23,201 @@ import java.rmi.Naming;
 public class Server extends UnicastRemoteObject implements FSInf {
 
 	private String root;
-	private HashMap<String, ReentrantReadWriteLock> lockStore = new HashMap<String, ReentrantReadWriteLock>(5000);
-	private HashMap<String, Integer> invalidStore = new HashMap<String, Integer>(5000);
+	//Per file locks, created on first use and reclaimed once idle
+	private LockTable lockStore = new LockTable(256);
+
+	//Which proxy wrote each file last, forgotten when the file is unlinked
+	private ConcurrentHashMap<String, Integer> invalidStore = new ConcurrentHashMap<String, Integer>(5000, 0.75f, 64);
+
+	//Version of each file, bumped on every commit and unlink. The clock starts from the time
+	//so versions handed out before a restart are never handed out again.
+	private ConcurrentHashMap<String, Long> versionStore = new ConcurrentHashMap<String, Long>(5000, 0.75f, 64);
+	private AtomicLong versionClock = new AtomicLong(System.currentTimeMillis() * 1000);
+	private TransferService transfers;
+	private LeaseManager leases = new LeaseManager(envInt("serverleasems", 10000));
+
+	//Proxies that serve their cache to other proxies and which of them hold which paths
+	private PeerDirectory peers = new PeerDirectory();
+
+	//Read channels kept open across the chunks of a fetch
+	private ChannelCache readChannels = new ChannelCache(envInt("serverreadchannels", 128));
+
+	//Chunks read or written lately, so a file many proxies fetch is read off the disk once
+	private ChunkCache chunkCache = new ChunkCache((long)envInt("serverchunkcachemb", 64) << 20);
+
+	//Compressed frames of chunks sent more than once
+	private CompressedChunkCache chunkFrames = new CompressedChunkCache((long)envInt("servercompressedcachemb", 64) << 20);
+
+	//Block checksums of files proxies asked about, kept up to date as the files are written
+	private HashMap<String, BlockChecksums> checksumStore = new HashMap<String, BlockChecksums>(5000);
+
+	//Uploads staged away from the files readers read until their last stage publishes them.
+	//Writers of a file take turns so there is at most one per file, an upload left idle for
+	//too long is given up on and lets the next writer in.
+	private ConcurrentHashMap<String, StagedUpload> uploads = new ConcurrentHashMap<String, StagedUpload>();
+	private LockTable writerLocks = new LockTable(256);
+	private File stagingDir;
+	private AtomicLong uploadCounter = new AtomicLong();
+	private long uploadTimeout = Math.max(1, envInt("serveruploadtimeoutms", 60000));
 
 	/**
 	 * CONSTRUCTOR
 	*/
 	public Server(String rootDir) throws RemoteException {
 		root = rootDir + "/";
+		try {
+			transfers = new TransferService(envInt("servertransferport", 0));
+		} catch (IOException ie) {
+			//Proxies fall back to chunked RMI when there is no transfer service
+			transfers = null;
+		}
+
+		//Uploads a previous run was staging never got published
+		stagingDir = new File(root, StagedUpload.DIR_NAME);
+		File[] leftovers = stagingDir.listFiles();
+		if(leftovers != null) {
+			for(File leftover : leftovers) leftover.delete();
+		}
+		stagingDir.mkdirs();
+
+		ScheduledExecutorService reaper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "upload-reaper");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		long period = Math.max(1, uploadTimeout / 4);
+		reaper.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				expireUploads();
+			}
+		}, period, period, TimeUnit.MILLISECONDS);
 	}
 
 
 	/**
-	 * Check is the file exists, its valid and if both then also give length of file
+	 * Read an integer setting from the environment
 	 * 
-	 * @param filename, which proxy the request is from, whether it exists on the cache, whether call was from unlink
-	 * @return Array consisting of [whetherItExists, whetherItsValid, lengthOfFile]
+	 * @param name of variable, value to use when unset or malformed
+	 * @return The configured value
 	*/
-	public int[] fileExistsAndValid(String filename, int proxyNumber, boolean existsOnCache, boolean unlink)
-    	throws RemoteException {
+	private static int envInt(String name, int defaultValue) {
+		String value = System.getenv(name);
+		if(value == null) return defaultValue;
+		try {
+			return Integer.parseInt(value.trim());
+		} catch (NumberFormatException nfe) {
+			return defaultValue;
+		}
+	}
+
+
+	/**
+	 * Check is the file exists, its valid and if both then also give length of file and its version.
+	 * A cached copy is valid when its version is the current one. Proxies that dont know the
+	 * version of their copy pass -1 and get the last writer check instead.
+	 * 
+	 * @param filename, which proxy the request is from, whether it exists on the cache, version of the cached copy, whether call was from unlink
+	 * @return Array consisting of [whetherItExists, whetherItsValid, lengthOfFile, version]
+	*/
+	public long[] fileExistsAndValid(String filename, int proxyNumber, boolean existsOnCache, long cachedVersion,
+			boolean unlink) throws RemoteException {
 			File f = new File(root, filename);
 			String totalFileName = root + filename;
 		    int existsNumber;
 		    int validNumber;
-		    int length = -1;
+		    long length = -1;
 
 			if(f.exists()) {
 				if(f.isDirectory()) existsNumber = 2;
 				existsNumber = 1;
 			} else existsNumber = 0;
 
-	    if(!invalidStore.containsKey(filename)) validNumber = 0;
-	    else if(invalidStore.get(filename) != proxyNumber) validNumber = 1;
+	    //Leases revoked by the last commit have to be gone before this open is answered
+	    leases.awaitRevoked(filename);
+
+	    //Take the read lock first so a write in progress cant commit after validity is decided
+	    if(existsNumber == 1) length = fileInfo(filename, 0);
+
+	    long version = currentVersion(filename);
+	    Integer lastWriter = invalidStore.get(filename);
+	    if(existsNumber == 1 && cachedVersion >= 0) validNumber = (cachedVersion == version) ? 0 : 1;
+	    else if(lastWriter == null) validNumber = 0;
+	    else if(lastWriter != proxyNumber) validNumber = 1;
 	    else validNumber = 0;
 
-	    if(existsNumber == 1) length = (int)fileInfo(filename, 0);
+	    //The proxy ends up with the current copy either way, so it may serve it locally for a while
+	    //and other proxies may fetch it from there
+	    if(existsNumber == 1 && !unlink) {
+	    	leases.grant(filename, proxyNumber);
+	    	peers.holds(filename, version, proxyNumber);
+	    }
 
 	    if(existsOnCache && validNumber == 0 && existsNumber == 1 && !unlink) unlockRead(filename);
 	    if(unlink) unlockRead(filename);
-	    return (new int[] {existsNumber, validNumber, length});
+	    return (new long[] {existsNumber, validNumber, length, version});
 	}
 
 
 	/**
-	 * Fileinfo gives the gives the length of the file
+	 * Validate a batch of cached copies in one call. Each path gets a lease like a single
+	 * validation would, before its version is read, so a commit after the read still calls
+	 * the proxy back.
+	 * 
+	 * @param paths, versions of the cached copies, which proxy
+	 * @return Current version of each path, -1 where the file no longer exists
+	*/
+	public long[] validateBatch(String[] paths, long[] versions, int proxyNumber) throws RemoteException {
+		long[] current = new long[paths.length];
+		for(int i = 0; i < paths.length; i++) {
+			leases.awaitRevoked(paths[i]);
+			if(new File(root, paths[i]).isFile()) leases.grant(paths[i], proxyNumber);
+			current[i] = currentVersion(paths[i]);
+		}
+		return current;
+	}
+
+
+	/**
+	 * Current version of a file, files nobody has written through us get one on first use
+	 * 
+	 * @param filename
+	 * @return The version, -1 if the file doesnt exist
+	*/
+	private long currentVersion(String filename) {
+		if(!new File(root, filename).isFile()) return -1;
+		Long version = versionStore.get(filename);
+		if(version != null) return version;
+		Long raced = versionStore.putIfAbsent(filename, versionClock.incrementAndGet());
+		return raced != null ? raced : versionStore.get(filename);
+	}
+
+
+	/**
+	 * Version of a file for keying its chunks, without touching the disk once its known.
+	 * Callers hold a lock on the file so it cant move.
+	 * 
+	 * @param filename
+	 * @return The version, -1 if the file doesnt exist
+	*/
+	private long knownVersion(String filename) {
+		Long version = versionStore.get(filename);
+		return (version != null) ? version : currentVersion(filename);
+	}
+
+
+	/**
+	 * Fileinfo gives the gives the length of the file. Called to write it starts an upload
+	 * instead of locking the file, readers carry on until the upload is published.
 	 * 
 	 * @param filename and whether its called with read/write 
 	 * @return Length of file
 	*/
 	public long fileInfo(String filename, int functionality) throws  RemoteException {
-		if(!lockStore.containsKey(filename)) {
-			ReentrantReadWriteLock newLock = new ReentrantReadWriteLock(true);
-			lockStore.put(filename, newLock);
-		}
+		if(functionality == 1) return beginUpload(filename);
 		try {
-			if(functionality == 1) lockStore.get(filename).writeLock().lock();
-			else lockStore.get(filename).readLock().lock();
+			lockStore.lockRead(filename);
 
       		RandomAccessFile raf = new RandomAccessFile(root + filename, "rw");
 		  	long length = raf.length();
@@ -90,7 +237,7 @@ public class Server extends UnicastRemoteObject implements FSInf {
 	*/
 	public void unlockRead(String filename) throws RemoteException {
     	try {
-      	lockStore.get(filename).readLock().unlock();
+      	lockStore.unlockRead(filename);
    		} catch (Exception e) {
       		return;
     	}
@@ -104,41 +251,465 @@ public class Server extends UnicastRemoteObject implements FSInf {
 	 * @return byte array consisting of read file
 	*/
 	public byte[] readFile(String filename, int amountToRead, long offset, int stage) throws RemoteException {
+		FileChannel channel = null;
 		try {
-      		RandomAccessFile raf = new RandomAccessFile(root + filename, "rw");
-			  byte[] fileData = new byte[amountToRead];
-			  raf.seek(offset);
-			  raf.readFully(fileData);
-			  raf.close();
-			  if(stage == 1) {
-				  lockStore.get(filename).readLock().unlock();
-			  }
+			long version = knownVersion(filename);
+			byte[] fileData = chunkCache.get(filename, version, offset, amountToRead);
+			if(fileData == null) {
+				//Chunks of one fetch share an open channel and read at their offset without seeking
+				lockStore.touch(filename);
+				channel = readChannels.acquire(root + filename);
+				fileData = new byte[amountToRead];
+				ByteBuffer into = ByteBuffer.wrap(fileData);
+				while(into.hasRemaining()) {
+					if(channel.read(into, offset + into.position()) < 0) throw new EOFException();
+				}
+
+				//Cached before the lock goes, once its gone the file may be written
+				chunkCache.put(filename, version, offset, fileData);
+			}
+			if(stage == 1) {
+				lockStore.unlockRead(filename);
+			}
 		  	return fileData;
     	} catch (Exception e) {
       		return new byte[0];
-    	}
+    	} finally {
+			if(channel != null) readChannels.release(root + filename, channel);
+		}
+	}
+
+	/**
+	 * Read part of a file at a version, for proxies fetching blocks of a file lazily long
+	 * after they validated it
+	 * 
+	 * @param filename, amount to read, where to read from, version the proxy validated
+	 * @return The bytes, null if the file has been written or removed since
+	*/
+	public byte[] readVersion(String filename, int amountToRead, long offset, long version) throws RemoteException {
+		lockStore.lockRead(filename);
+		try {
+			if(currentVersion(filename) != version) return null;
+			return readFile(filename, amountToRead, offset, 0);
+		} finally {
+			lockStore.unlockRead(filename);
+		}
+	}
+
+	/**
+	 * Pick the codec for a proxy from those it supports
+	 * 
+	 * @param which proxy, mask of codecs it supports
+	 * @return Codec to use
+	*/
+	public int negotiateCodec(int proxyNumber, int supported) throws RemoteException {
+		return ChunkCodec.choose(supported);
+	}
+
+	/**
+	 * Read a chunk as a frame. Hot chunks come out of the frame cache, chunks known not to
+	 * compress are sent plain without trying again.
+	 * 
+	 * @param filename, amount to read, where to read from, to unlock/lock/do nothing, codec to use
+	 * @return The frame or an empty array on failure
+	*/
+	public byte[] readFileCompressed(String filename, int amountToRead, long offset, int stage, int codec)
+			throws RemoteException {
+		if(codec != ChunkCodec.NONE && ((1 << codec) & ChunkCodec.SUPPORTED) == 0) codec = ChunkCodec.NONE;
+
+		//Callers hold the read lock so the version cant move under us
+		String key = CompressedChunkCache.key(filename, currentVersion(filename), offset, amountToRead, codec);
+		byte[] frame = chunkFrames.get(key);
+		if(frame == null) {
+			byte[] fileData = readFile(filename, amountToRead, offset, 0);
+			if(fileData.length != amountToRead) return new byte[0];
+			if(chunkFrames.incompressible(key)) codec = ChunkCodec.NONE;
+			frame = ChunkCodec.encode(codec, fileData);
+			if(codec != ChunkCodec.NONE) chunkFrames.offer(key, frame, ChunkCodec.codecOf(frame) != ChunkCodec.NONE);
+		}
+		if(stage == 1) {
+			lockStore.unlockRead(filename);
+		}
+		return frame;
+	}
+
+	/**
+	 * Write a chunk sent as a frame
+	 * 
+	 * @param filename, frame to write, offset to write from, lock/unlock/nothing to do, which proxy
+	 * @return New version once the last stage commits, 0 before that, -1 on failure
+	*/
+	public long writeFileCompressed(String filename, byte[] frame, long offset, int stage, int proxyNumber)
+			throws RemoteException {
+		byte[] toWriteBuf;
+		try {
+			toWriteBuf = ChunkCodec.decode(frame);
+		} catch (IOException ie) {
+			return -1;
+		}
+		return writeFile(filename, toWriteBuf, offset, stage, proxyNumber);
 	}
 
 	/**
 	 * Write file to server
 	 * 
 	 * @param filename, buf to write to, offset to write from, lock/unlock/nothing to do, which proxy
+	 * @return New version once the last stage commits, 0 before that, -1 on failure
+	*/
+	public long writeFile(String filename, byte[] toWriteBuf, long offset, int stage, int proxyNumber)
+			throws RemoteException {
+		StagedUpload upload = uploads.get(filename);
+		if(upload == null) return -1;
+		synchronized(upload) {
+	    	try{
+				if(upload.finished) return -1;
+				upload.write(offset, toWriteBuf);
+				chunkCache.stage(upload.key(), offset, toWriteBuf);
+	      		if(stage == 1) return publish(upload, -1, proxyNumber);
+				return 0;
+	    	} catch (Exception e) {
+	    		abortUpload(upload);
+	      		return -1;
+	    	}
+		}
+	}
+
+	/**
+	 * Register a proxy's invalidation callback so it can hold leases
+	 * 
+	 * @param proxy number, callback exported by the proxy
+	 * @return Lease duration in milliseconds
+	*/
+	public long registerCallback(int proxyNumber, CacheCallback callback) throws RemoteException {
+		return leases.register(proxyNumber, callback);
+	}
+
+
+	/**
+	 * Begin upload waits for the file's previous upload to be done and stages a new one
+	 * 
+	 * @param filename
+	 * @return Length of the committed file, -1 if the upload cant be staged
+	*/
+	private long beginUpload(String filename) {
+		writerLocks.lockWrite(filename);
+		try {
+			File staged = new File(stagingDir, Long.toString(uploadCounter.incrementAndGet()));
+			uploads.put(filename, new StagedUpload(filename, staged));
+			return new File(root, filename).length();
+		} catch (IOException ie) {
+			writerLocks.unlockWrite(filename);
+			return -1;
+		}
+	}
+
+
+	/**
+	 * Publish completes a staged upload and swaps it in as the file's new version. Readers
+	 * part way through the old version finish first, readers after them wait only for the
+	 * rename. Readers that stopped reading for the upload timeout are taken to be gone and
+	 * their locks expired. Leaseholders are called back once the lock is gone so readers
+	 * never wait on them. Caller holds the upload's monitor.
+	 * 
+	 * @param the upload, new length or -1 to keep the longer of old and written, which proxy
+	 * @return The new version, raises an exception if the upload cant be published
+	*/
+	private long publish(StagedUpload upload, long newLength, int proxyNumber) throws IOException {
+		String filename = upload.filename;
+		File committedFile = new File(root, filename);
+		long length = upload.prepare(committedFile, newLength);
+
+		//A shard may get a file whose directory so far only exists on another shard
+		File parent = committedFile.getParentFile();
+		if(parent != null && !parent.isDirectory()) parent.mkdirs();
+
+		long version;
+		upload.publishing = true;
+		while(!lockStore.tryLockWrite(filename, uploadTimeout)) lockStore.expireReaders(filename, uploadTimeout);
+		try {
+			Long before = versionStore.get(filename);
+			upload.publish(committedFile);
+			readChannels.drop(root + filename);
+
+			//Whatever a bulk session streamed in is unknown here, anything else updates in place
+			if(upload.streamed) {
+				dropChecksums(filename);
+			} else {
+				for(Map.Entry<Long, Long> range : upload.ranges().entrySet()) {
+					updateChecksums(filename, upload.file(), range.getKey(), range.getValue() - range.getKey());
+				}
+				updateChecksums(filename, upload.file(), length, 0);
+			}
+
+			version = committed(filename, proxyNumber);
+			if(upload.streamed) chunkCache.drop(filename);
+			else chunkCache.publish(upload.key(), filename, (before == null) ? -1 : before, version, length);
+		} finally {
+			lockStore.unlockWrite(filename);
+		}
+		finishUpload(upload);
+		leases.invalidate(filename, proxyNumber);
+		return version;
+	}
+
+
+	/**
+	 * Abort upload throws a staged upload away, the file is left as it was
+	 * 
+	 * @param the upload
 	 * @return void.
 	*/
-	public void writeFile(String filename, byte[] toWriteBuf, long offset, int stage, int proxyNumber)
+	private void abortUpload(StagedUpload upload) {
+		synchronized(upload) {
+			if(upload.finished) return;
+			upload.discard();
+			chunkCache.discard(upload.key());
+			finishUpload(upload);
+		}
+	}
+
+
+	//Let the next writer of the file in
+	private void finishUpload(StagedUpload upload) {
+		upload.finished = true;
+		upload.close();
+		uploads.remove(upload.filename, upload);
+		writerLocks.unlockWrite(upload.filename);
+	}
+
+
+	/**
+	 * Expire uploads gives up on uploads whose proxy has gone quiet, so a proxy that died
+	 * part way through an upload doesnt keep the file from being written again. Bulk sessions
+	 * in progress are left to the transfer service, which fails them itself, and uploads being
+	 * published finish on their own. Both are skipped without taking the upload's monitor,
+	 * which a publish holds while it waits for readers.
+	 * 
+	 * @param none
+	 * @return void.
+	*/
+	private void expireUploads() {
+		long now = System.currentTimeMillis();
+		for(StagedUpload upload : uploads.values()) {
+			if(upload.finished || upload.publishing || upload.streaming || now - upload.lastActive <= uploadTimeout) continue;
+			synchronized(upload) {
+				if(!upload.streaming && now - upload.lastActive > uploadTimeout) abortUpload(upload);
+			}
+		}
+	}
+
+
+	/**
+	 * Register a proxy that serves its cache to other proxies. Its reached at the address the
+	 * call came from.
+	 * 
+	 * @param proxy number, its remote object
+	 * @return void.
+	*/
+	public void registerPeer(int proxyNumber, PeerSource source) throws RemoteException {
+		String host;
+		try {
+			host = getClientHost();
+		} catch (ServerNotActiveException se) {
+			//Called in process rather than over RMI
+			host = "127.0.0.1";
+		}
+		peers.register(proxyNumber, host, source);
+	}
+
+
+	/**
+	 * Peers a proxy may fetch a version of a path from instead of the server
+	 * 
+	 * @param filename, version the proxy validated, which proxy
+	 * @return Hints, empty if no other proxy is known to hold that version
+	*/
+	public PeerHint[] peerHints(String filename, long version, int proxyNumber) throws RemoteException {
+		return peers.hints(filename, version, proxyNumber);
+	}
+
+
+	/**
+	 * Committed records the writer of a file and gives it a new version. Called with the
+	 * write lock still held, other leaseholders are called back after its released.
+	 * 
+	 * @param filename, which proxy wrote it
+	 * @return The new version
+	*/
+	private long committed(String filename, int proxyNumber) {
+		long version = versionClock.incrementAndGet();
+		invalidStore.put(filename, proxyNumber);
+		versionStore.put(filename, version);
+		peers.holds(filename, version, proxyNumber);
+		return version;
+	}
+
+
+	/**
+	 * Block checksums of a file for incremental refresh of a stale cached copy.
+	 * Computed on first request, after that kept current by the write paths.
+	 * 
+	 * @param filename
+	 * @return The checksums, or null if the file cant be read
+	*/
+	public BlockChecksums blockChecksums(String filename) throws RemoteException {
+		synchronized(checksumStore) {
+			if(checksumStore.containsKey(filename)) return checksumStore.get(filename);
+		}
+		try {
+			RandomAccessFile raf = new RandomAccessFile(root + filename, "r");
+			BlockChecksums sums = BlockChecksums.compute(raf, BlockChecksums.BLOCK_SIZE);
+			raf.close();
+			synchronized(checksumStore) {
+				checksumStore.put(filename, sums);
+			}
+			return sums;
+		} catch (IOException ie) {
+			return null;
+		}
+	}
+
+
+	/**
+	 * Recompute the cached checksums of blocks touched by a write, if the file has any
+	 * 
+	 * @param filename, file after the write, offset and length written
+	 * @return void.
+	*/
+	private void updateChecksums(String filename, RandomAccessFile raf, long offset, long written) {
+		synchronized(checksumStore) {
+			BlockChecksums sums = checksumStore.get(filename);
+			if(sums == null) return;
+			try {
+				sums.update(raf, offset, written);
+			} catch (IOException ie) {
+				checksumStore.remove(filename);
+			}
+		}
+	}
+
+
+	private void dropChecksums(String filename) {
+		synchronized(checksumStore) {
+			checksumStore.remove(filename);
+		}
+	}
+
+
+	/**
+	 * Write ranges patches only the given ranges of a file and on the last stage sets its
+	 * length. The ranges go into the caller's staged upload, the rest of the file is filled in
+	 * when its published. The patch is refused unless the file is still at the version the
+	 * ranges were computed against, whoever wrote it last.
+	 * 
+	 * @param filename, offsets and data of each range, new length, lock/unlock/nothing to do, which proxy, server version the ranges were made against
+	 * @return New version once the last stage commits, 0 before that, -1 if the delta was refused (upload still staged) or failed
+	*/
+	public long writeRanges(String filename, long[] offsets, byte[][] data, long newLength, int stage, int proxyNumber,
+			long baseVersion) throws RemoteException {
+		//A file gone since is -1 and never matches, the rest of it would be filled in with zeros
+		if(baseVersion < 0 || currentVersion(filename) != baseVersion) return -1;
+		StagedUpload upload = uploads.get(filename);
+		if(upload == null) return -1;
+		synchronized(upload) {
+			try {
+				if(upload.finished) return -1;
+				for(int i = 0; i < offsets.length; i++) {
+					upload.write(offsets[i], data[i]);
+					chunkCache.stage(upload.key(), offsets[i], data[i]);
+				}
+				if(stage == 1) return publish(upload, newLength, proxyNumber);
+				return 0;
+			} catch (Exception e) {
+				abortUpload(upload);
+				return -1;
+			}
+		}
+	}
+
+
+	/**
+	 * Open a bulk fetch session for a region of a file
+	 * 
+	 * @param filename, offset and length of region, whether to release the read lock when done
+	 * @return [sessionId, transferPort] or null if there is no transfer service
+	*/
+	public long[] openFetchSession(final String filename, long offset, long length, final boolean release)
 			throws RemoteException {
-    	try{
-			RandomAccessFile raf = new RandomAccessFile(root + filename, "rw");
-      		raf.seek(offset);
-		  	raf.write(toWriteBuf);
-		  	raf.close();
-      		if(stage == 1) {
-        	  invalidStore.put(filename, proxyNumber);
-				lockStore.get(filename).writeLock().unlock();
+		if(transfers == null) return null;
+		long id = transfers.open(TransferService.SEND, root + filename, offset, length,
+			new TransferService.Completion() {
+				public long complete(boolean success) {
+					if(release) lockStore.unlockRead(filename);
+					return success ? 0 : TransferService.FAILED;
+				}
+			});
+		return new long[] {id, transfers.getPort()};
+	}
+
+
+	/**
+	 * Open a bulk store session for a whole file, streamed into the caller's staged upload
+	 * and published once received
+	 * 
+	 * @param filename, length the file ends up with, which proxy
+	 * @return [sessionId, transferPort] or null if there is no transfer service or upload
+	*/
+	public long[] openStoreSession(final String filename, final long length, final int proxyNumber)
+			throws RemoteException {
+		if(transfers == null) return null;
+		final StagedUpload upload = uploads.get(filename);
+		if(upload == null) return null;
+		synchronized(upload) {
+			if(upload.finished) return null;
+			upload.streaming = true;
+		}
+		long id = transfers.open(TransferService.RECEIVE, upload.path(), 0, length,
+			new TransferService.Completion() {
+				public long complete(boolean success) {
+					synchronized(upload) {
+						upload.streaming = false;
+						if(!success || upload.finished) {
+							abortUpload(upload);
+							return TransferService.FAILED;
+						}
+						try {
+							upload.streamed(length);
+							return publish(upload, length, proxyNumber);
+						} catch (IOException ie) {
+							abortUpload(upload);
+							return TransferService.FAILED;
+						}
+					}
+				}
+			});
+		return new long[] {id, transfers.getPort()};
+	}
+
+	/**
+	 * List every file under the root, leaving out uploads still being staged
+	 * 
+	 * @param none
+	 * @return Paths relative to the root
+	*/
+	public String[] listFiles() throws RemoteException {
+		ArrayList<String> found = new ArrayList<String>();
+		listFiles(new File(root), "", found);
+		return found.toArray(new String[0]);
+	}
+
+
+	private void listFiles(File dir, String prefix, ArrayList<String> found) {
+		File[] entries = dir.listFiles();
+		if(entries == null) return;
+		for(File entry : entries) {
+			String path = prefix + entry.getName();
+			if(entry.isDirectory()) {
+				if(!path.equals(StagedUpload.DIR_NAME)) listFiles(entry, path + "/", found);
+			} else if(entry.isFile()) {
+				found.add(path);
 			}
-    	} catch (Exception e) {
-      		return;
-    	}
+		}
 	}
 
 	/**
@@ -152,8 +723,15 @@ public class Server extends UnicastRemoteObject implements FSInf {
 		//Get file with the path, delete it
 		//If deletion not possible then Busy error
 		try {
-			f =  new File(path);
+			f =  new File(root, path);
 			if (f.delete()) {
+				dropChecksums(path);
+				readChannels.drop(root + path);
+				chunkCache.drop(path);
+				invalidStore.remove(path);
+				versionStore.put(path, versionClock.incrementAndGet());
+				peers.removed(path);
+				leases.invalidate(path, -1);
 				return 0;
 			} else {
 				return -2; //Not valid error (ERROR CONSTANT NOT MAGIC NUMBER)
@@ -175,9 +753,10 @@ public class Server extends UnicastRemoteObject implements FSInf {
 		String rootDir = args[1];
 
 
+		final Server srv;
 		try {
 			LocateRegistry.createRegistry(portNumber);
-			Server srv = new Server(rootDir);
+			srv = new Server(rootDir);
 			String name = "//127.0.0.1:" + portNumber + "/Server";
 			Naming.rebind(name, srv);
 		} catch (RemoteException e) {
@@ -185,6 +764,14 @@ public class Server extends UnicastRemoteObject implements FSInf {
 			return;
 		}
 
+		//Report how much of the reads the chunk cache took off the disk when going down
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			public void run() {
+				System.err.println("SERVER: chunk cache " + srv.chunkCache);
+				System.err.println("SERVER: peer directory " + srv.peers);
+			}
+		});
+
 
 	}
 }
@@ -0,0 +1,192 @@
+import java.io.*;
+import java.rmi.Naming;
+import java.util.*;
+
+
+/**
+ * Shard rebalancer moves files to the shards a new list of servers gives them, for adding
+ * or removing a shard. Every server in the current and the new list is asked for its files
+ * and every file not on its new owner is copied there and then unlinked where it was. A
+ * file is read at the version it was listed at into a local temporary file first, so an
+ * upload to the new owner is never left half done, and only unlinked if it is still at
+ * that version once copied, otherwise its copied again.
+ *
+ * Run it while no proxy is writing, then restart the proxies with the new list. Proxies
+ * and the rebalancer have to agree on proxyshardvnodes.
+ *
+ * Usage: java ShardRebalancer current-servers new-servers [default port] [--dry-run]
+ *        where servers are comma separated host:port
+*/
+public class ShardRebalancer {
+
+	private static final int CHUNK_SIZE = 1 << 20;
+	private static final int MAX_ATTEMPTS = 3;
+
+	//Writes by the rebalancer count as written by a proxy no real proxy is ever numbered
+	private static final int REBALANCER = Integer.MIN_VALUE;
+
+	private static HashMap<String, FSInf> stubs = new HashMap<String, FSInf>();
+
+
+	public static void main(String[] args) throws Exception {
+		if(args.length < 2) {
+			System.err.println("Usage: java ShardRebalancer current-servers new-servers [default port] [--dry-run]");
+			return;
+		}
+		boolean dryRun = Arrays.asList(args).contains("--dry-run");
+		int defaultPort = (args.length > 2 && !args[2].startsWith("--")) ? Integer.parseInt(args[2]) : 15440;
+		int virtualNodes = Math.max(1, envInt("proxyshardvnodes", 128));
+
+		String[] current = ShardRing.parseEndpoints(args[0], defaultPort);
+		String[] wanted = ShardRing.parseEndpoints(args[1], defaultPort);
+		ShardRing ring = new ShardRing(wanted, virtualNodes);
+
+		//Servers being removed still have files to give up
+		LinkedHashSet<String> sources = new LinkedHashSet<String>(Arrays.asList(current));
+		sources.addAll(Arrays.asList(wanted));
+
+		//List everything before moving anything so moved files arent counted twice
+		LinkedHashMap<String, String[]> listings = new LinkedHashMap<String, String[]>();
+		int files = 0;
+		for(String source : sources) {
+			listings.put(source, stub(source).listFiles());
+			files += listings.get(source).length;
+		}
+
+		int moved = 0;
+		int failed = 0;
+		long movedBytes = 0;
+		for(String source : sources) {
+			for(String path : listings.get(source)) {
+				String owner = ring.endpoint(ring.shardOf(path));
+				if(owner.equals(source)) continue;
+				if(dryRun) {
+					System.out.println(path + ": " + source + " -> " + owner);
+					moved++;
+					continue;
+				}
+				long bytes = move(path, stub(source), stub(owner));
+				if(bytes < 0) {
+					System.err.println("Could not move " + path + " from " + source + " to " + owner);
+					failed++;
+				} else {
+					moved++;
+					movedBytes += bytes;
+				}
+			}
+		}
+		System.out.println((dryRun ? "Would move " : "Moved ") + moved + " of " + files + " files, "
+			+ movedBytes + " bytes, " + failed + " failed");
+	}
+
+
+	/**
+	 * Move copies a file to its new owner and unlinks it from its old one once the copy is
+	 * known to be of the current version
+	 *
+	 * @param path, server it is on, server it goes to
+	 * @return Bytes moved, 0 if the file was gone, -1 on failure
+	*/
+	private static long move(String path, FSInf from, FSInf to) {
+		File local = null;
+		try {
+			local = File.createTempFile("rebalance", null);
+			for(int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+				long[] info = from.fileExistsAndValid(path, REBALANCER, false, -1, true);
+				if(info[0] != 1) return 0;
+				long length = info[2];
+				long version = info[3];
+				if(!readVersion(from, path, version, length, local)) continue;
+				if(!upload(to, path, local, length)) return -1;
+
+				//Written while copying, the copy goes again
+				long[] after = from.fileExistsAndValid(path, REBALANCER, false, -1, true);
+				if(after[0] != 1 || after[3] != version) continue;
+				if(from.unlink(path) != 0) return -1;
+				return length;
+			}
+			return -1;
+		} catch (Exception e) {
+			return -1;
+		} finally {
+			if(local != null) local.delete();
+		}
+	}
+
+
+	/**
+	 * Read version copies a file as it was at one version into a local file
+	 *
+	 * @param server, path, version, length, local file
+	 * @return false if the file changed part way through
+	*/
+	private static boolean readVersion(FSInf from, String path, long version, long length, File local)
+			throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(local, "rw");
+		try {
+			raf.setLength(0);
+			for(long offset = 0; offset < length; offset += CHUNK_SIZE) {
+				int amount = (int)Math.min(CHUNK_SIZE, length - offset);
+				byte[] data = from.readVersion(path, amount, offset, version);
+				if(data == null || data.length != amount) return false;
+				raf.write(data);
+			}
+			return true;
+		} finally {
+			raf.close();
+		}
+	}
+
+
+	/**
+	 * Upload writes a local file to a server as one upload, the last chunk publishes it
+	 *
+	 * @param server, path, local file, length
+	 * @return true if the upload was published
+	*/
+	private static boolean upload(FSInf to, String path, File local, long length) throws IOException {
+		//Writes keep the longer of the old and new length, a longer copy left from an earlier
+		//layout has to go first
+		long[] existing = to.fileExistsAndValid(path, REBALANCER, false, -1, true);
+		if(existing[0] == 1 && existing[2] > length && to.unlink(path) != 0) return false;
+
+		if(to.fileInfo(path, 1) < 0) return false;
+		RandomAccessFile raf = new RandomAccessFile(local, "r");
+		try {
+			long offset = 0;
+			do {
+				int amount = (int)Math.min(CHUNK_SIZE, length - offset);
+				byte[] data = new byte[amount];
+				raf.readFully(data);
+				int stage = (offset + amount >= length) ? 1 : 0;
+				long result = to.writeFile(path, data, offset, stage, REBALANCER);
+				if(result < 0) return false;
+				offset += amount;
+			} while(offset < length);
+			return true;
+		} finally {
+			raf.close();
+		}
+	}
+
+
+	private static FSInf stub(String endpoint) throws Exception {
+		FSInf stub = stubs.get(endpoint);
+		if(stub == null) {
+			stub = (FSInf) Naming.lookup("//" + endpoint + "/Server");
+			stubs.put(endpoint, stub);
+		}
+		return stub;
+	}
+
+
+	private static int envInt(String name, int defaultValue) {
+		String value = System.getenv(name);
+		if(value == null) return defaultValue;
+		try {
+			return Integer.parseInt(value.trim());
+		} catch (NumberFormatException nfe) {
+			return defaultValue;
+		}
+	}
+}
@@ -0,0 +1,99 @@
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+
+/**
+ * Shard ring maps paths to shards by consistent hashing. Every shard is placed on the ring
+ * at a number of points hashed from its endpoint, a path belongs to the first point at or
+ * after its own hash. Adding or removing a shard only moves the paths between its points
+ * and the ones before them, and the many points per shard even out how much each one gets.
+ * Rings built from the same endpoints agree no matter the order they are listed in.
+*/
+public class ShardRing {
+
+	private String[] endpoints;
+	private TreeMap<Long, Integer> points = new TreeMap<Long, Integer>();
+
+
+	/**
+	 * CONSTRUCTOR places every shard on the ring
+	 *
+	 * @param endpoints of the shards as host:port, points per shard
+	*/
+	public ShardRing(String[] endpoints, int virtualNodes) {
+		this.endpoints = endpoints.clone();
+		for(int shard = 0; shard < endpoints.length; shard++) {
+			for(int i = 0; i < Math.max(1, virtualNodes); i++) {
+				long point = hash(endpoints[shard] + "#" + i);
+				//Two endpoints landing on the same point settle it the same way every time
+				Integer taken = points.get(point);
+				if(taken == null || endpoints[taken].compareTo(endpoints[shard]) > 0) points.put(point, shard);
+			}
+		}
+	}
+
+
+	public int size() {
+		return endpoints.length;
+	}
+
+
+	public String endpoint(int shard) {
+		return endpoints[shard];
+	}
+
+
+	/**
+	 * Shard of returns which shard a path belongs to
+	 *
+	 * @param normalized path
+	 * @return Index of the shard in the endpoints the ring was built from
+	*/
+	public int shardOf(String path) {
+		if(endpoints.length == 1) return 0;
+		Map.Entry<Long, Integer> point = points.ceilingEntry(hash(path));
+		if(point == null) point = points.firstEntry();
+		return point.getValue();
+	}
+
+
+	/**
+	 * Hash takes the first 8 bytes of the MD5 of a string, spread well enough for placing
+	 * points and the same on every JVM
+	 *
+	 * @param string
+	 * @return The hash
+	*/
+	private static long hash(String key) {
+		byte[] digest;
+		try {
+			digest = MessageDigest.getInstance("MD5").digest(key.getBytes(StandardCharsets.UTF_8));
+		} catch (NoSuchAlgorithmException ne) {
+			throw new IllegalStateException("No MD5");
+		}
+		long value = 0;
+		for(int i = 0; i < 8; i++) value = (value << 8) | (digest[i] & 0xff);
+		return value;
+	}
+
+
+	/**
+	 * Parse endpoints splits a comma separated list of host:port, hosts without a port get
+	 * the default one
+	 *
+	 * @param list, default port
+	 * @return The endpoints as host:port
+	*/
+	public static String[] parseEndpoints(String list, int defaultPort) {
+		ArrayList<String> parsed = new ArrayList<String>();
+		for(String endpoint : list.split(",")) {
+			endpoint = endpoint.trim();
+			if(endpoint.isEmpty()) continue;
+			if(endpoint.indexOf(':') < 0) endpoint = endpoint + ":" + defaultPort;
+			parsed.add(endpoint);
+		}
+		return parsed.toArray(new String[0]);
+	}
+}
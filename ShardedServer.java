@@ -0,0 +1,350 @@
+import java.rmi.Naming;
+import java.rmi.RemoteException;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Sharded server splits the namespace over several servers. Every call about a path goes
+ * to the shard the ring gives the path, calls about the proxy itself go to all of them.
+ * Each shard has a stub of its own, looked up again on the next call after one fails, so
+ * a shard that restarted is picked up without restarting the proxy. Calls are never
+ * retried here, a failed one may have taken a lock and the caller knows what to undo.
+ * Only used locally by the proxy, it isnt exported.
+*/
+public class ShardedServer implements FSInf {
+
+	//One server of the namespace and the state of the connection to it
+	private static class Shard {
+		String endpoint;
+		String host;
+		volatile FSInf stub;
+		AtomicLong calls = new AtomicLong();
+		AtomicLong failures = new AtomicLong();
+
+		Shard(String endpoint) {
+			this.endpoint = endpoint;
+			this.host = endpoint.substring(0, endpoint.lastIndexOf(':'));
+		}
+
+		FSInf stub() throws RemoteException {
+			calls.incrementAndGet();
+			FSInf current = stub;
+			if(current != null) return current;
+			//Callers count the failure through failed()
+			try {
+				current = (FSInf) Naming.lookup("//" + endpoint + "/Server");
+			} catch (RemoteException re) {
+				throw re;
+			} catch (Exception e) {
+				throw new RemoteException("Could not look up " + endpoint, e);
+			}
+			stub = current;
+			return current;
+		}
+
+		//Forget the stub so the next call looks the shard up again
+		RemoteException failed(RemoteException re) {
+			failures.incrementAndGet();
+			stub = null;
+			return re;
+		}
+	}
+
+	private ShardRing ring;
+	private Shard[] shards;
+
+
+	/**
+	 * CONSTRUCTOR looks every shard up once so a wrong endpoint shows at start up
+	 *
+	 * @param ring of the shard endpoints
+	*/
+	public ShardedServer(ShardRing ring) throws RemoteException {
+		this.ring = ring;
+		this.shards = new Shard[ring.size()];
+		for(int i = 0; i < shards.length; i++) {
+			shards[i] = new Shard(ring.endpoint(i));
+			shards[i].stub();
+		}
+	}
+
+
+	/**
+	 * Host of returns where the shard of a path runs, for transfers that bypass RMI
+	 *
+	 * @param path
+	 * @return Host name or address
+	*/
+	public String hostOf(String path) {
+		return shardOf(path).host;
+	}
+
+
+	private Shard shardOf(String path) {
+		return shards[ring.shardOf(path)];
+	}
+
+
+	public long[] fileExistsAndValid(String filename, int proxyNumber, boolean existsOnCache, long cachedVersion,
+			boolean unlink) throws RemoteException {
+		Shard shard = shardOf(filename);
+		try {
+			return shard.stub().fileExistsAndValid(filename, proxyNumber, existsOnCache, cachedVersion, unlink);
+		} catch (RemoteException re) {
+			throw shard.failed(re);
+		}
+	}
+
+
+	/**
+	 * Validate batch splits the paths by shard and asks each shard about its own in one call
+	 *
+	 * @param paths, versions of the cached copies, which proxy
+	 * @return Current version of each path, -1 where the file no longer exists
+	*/
+	public long[] validateBatch(String[] paths, long[] versions, int proxyNumber) throws RemoteException {
+		long[] current = new long[paths.length];
+		HashMap<Integer, ArrayList<Integer>> byShard = new HashMap<Integer, ArrayList<Integer>>();
+		for(int i = 0; i < paths.length; i++) {
+			int owner = ring.shardOf(paths[i]);
+			if(!byShard.containsKey(owner)) byShard.put(owner, new ArrayList<Integer>());
+			byShard.get(owner).add(i);
+		}
+		for(Map.Entry<Integer, ArrayList<Integer>> entry : byShard.entrySet()) {
+			ArrayList<Integer> indexes = entry.getValue();
+			String[] shardPaths = new String[indexes.size()];
+			long[] shardVersions = new long[indexes.size()];
+			for(int i = 0; i < indexes.size(); i++) {
+				shardPaths[i] = paths[indexes.get(i)];
+				shardVersions[i] = versions[indexes.get(i)];
+			}
+			Shard shard = shards[entry.getKey()];
+			long[] answered;
+			try {
+				answered = shard.stub().validateBatch(shardPaths, shardVersions, proxyNumber);
+			} catch (RemoteException re) {
+				throw shard.failed(re);
+			}
+			for(int i = 0; i < indexes.size(); i++) current[indexes.get(i)] = answered[i];
+		}
+		return current;
+	}
+
+
+	public long fileInfo(String filename, int functionality) throws RemoteException {
+		Shard shard = shardOf(filename);
+		try {
+			return shard.stub().fileInfo(filename, functionality);
+		} catch (RemoteException re) {
+			throw shard.failed(re);
+		}
+	}
+
+
+	public void unlockRead(String filename) throws RemoteException {
+		Shard shard = shardOf(filename);
+		try {
+			shard.stub().unlockRead(filename);
+		} catch (RemoteException re) {
+			throw shard.failed(re);
+		}
+	}
+
+
+	public byte[] readFile(String filename, int amountToRead, long offset, int stage) throws RemoteException {
+		Shard shard = shardOf(filename);
+		try {
+			return shard.stub().readFile(filename, amountToRead, offset, stage);
+		} catch (RemoteException re) {
+			throw shard.failed(re);
+		}
+	}
+
+
+	public long writeFile(String filename, byte[] toWriteBuf, long offset, int stage, int proxyNumber)
+			throws RemoteException {
+		Shard shard = shardOf(filename);
+		try {
+			return shard.stub().writeFile(filename, toWriteBuf, offset, stage, proxyNumber);
+		} catch (RemoteException re) {
+			throw shard.failed(re);
+		}
+	}
+
+
+	public int unlink(String path) throws RemoteException {
+		Shard shard = shardOf(path);
+		try {
+			return shard.stub().unlink(path);
+		} catch (RemoteException re) {
+			throw shard.failed(re);
+		}
+	}
+
+
+	public byte[] readVersion(String filename, int amountToRead, long offset, long version) throws RemoteException {
+		Shard shard = shardOf(filename);
+		try {
+			return shard.stub().readVersion(filename, amountToRead, offset, version);
+		} catch (RemoteException re) {
+			throw shard.failed(re);
+		}
+	}
+
+
+	/**
+	 * Negotiate codec settles on one codec every shard supports, narrowing the offer to the
+	 * first shard's choice
+	 *
+	 * @param which proxy, mask of the ChunkCodec codecs it supports
+	 * @return Codec all shards support, ChunkCodec.NONE if there is none
+	*/
+	public int negotiateCodec(int proxyNumber, int supported) throws RemoteException {
+		int codec = ChunkCodec.NONE;
+		for(Shard shard : shards) {
+			try {
+				codec = shard.stub().negotiateCodec(proxyNumber, supported);
+			} catch (RemoteException re) {
+				throw shard.failed(re);
+			}
+			if(codec == ChunkCodec.NONE) return ChunkCodec.NONE;
+			supported = 1 << codec;
+		}
+		return codec;
+	}
+
+
+	public byte[] readFileCompressed(String filename, int amountToRead, long offset, int stage, int codec)
+			throws RemoteException {
+		Shard shard = shardOf(filename);
+		try {
+			return shard.stub().readFileCompressed(filename, amountToRead, offset, stage, codec);
+		} catch (RemoteException re) {
+			throw shard.failed(re);
+		}
+	}
+
+
+	public long writeFileCompressed(String filename, byte[] frame, long offset, int stage, int proxyNumber)
+			throws RemoteException {
+		Shard shard = shardOf(filename);
+		try {
+			return shard.stub().writeFileCompressed(filename, frame, offset, stage, proxyNumber);
+		} catch (RemoteException re) {
+			throw shard.failed(re);
+		}
+	}
+
+
+	/**
+	 * Register callback registers with every shard, leases last as long as the shortest one
+	 *
+	 * @param proxy number, exported callback
+	 * @return Lease duration in milliseconds
+	*/
+	public long registerCallback(int proxyNumber, CacheCallback callback) throws RemoteException {
+		long leaseMillis = Long.MAX_VALUE;
+		for(Shard shard : shards) {
+			try {
+				leaseMillis = Math.min(leaseMillis, shard.stub().registerCallback(proxyNumber, callback));
+			} catch (RemoteException re) {
+				throw shard.failed(re);
+			}
+		}
+		return leaseMillis;
+	}
+
+
+	public void registerPeer(int proxyNumber, PeerSource source) throws RemoteException {
+		for(Shard shard : shards) {
+			try {
+				shard.stub().registerPeer(proxyNumber, source);
+			} catch (RemoteException re) {
+				throw shard.failed(re);
+			}
+		}
+	}
+
+
+	public PeerHint[] peerHints(String filename, long version, int proxyNumber) throws RemoteException {
+		Shard shard = shardOf(filename);
+		try {
+			return shard.stub().peerHints(filename, version, proxyNumber);
+		} catch (RemoteException re) {
+			throw shard.failed(re);
+		}
+	}
+
+
+	public BlockChecksums blockChecksums(String filename) throws RemoteException {
+		Shard shard = shardOf(filename);
+		try {
+			return shard.stub().blockChecksums(filename);
+		} catch (RemoteException re) {
+			throw shard.failed(re);
+		}
+	}
+
+
+	public long writeRanges(String filename, long[] offsets, byte[][] data, long newLength, int stage, int proxyNumber,
+			long baseVersion) throws RemoteException {
+		Shard shard = shardOf(filename);
+		try {
+			return shard.stub().writeRanges(filename, offsets, data, newLength, stage, proxyNumber, baseVersion);
+		} catch (RemoteException re) {
+			throw shard.failed(re);
+		}
+	}
+
+
+	public long[] openFetchSession(String filename, long offset, long length, boolean release)
+			throws RemoteException {
+		Shard shard = shardOf(filename);
+		try {
+			return shard.stub().openFetchSession(filename, offset, length, release);
+		} catch (RemoteException re) {
+			throw shard.failed(re);
+		}
+	}
+
+
+	public long[] openStoreSession(String filename, long length, int proxyNumber) throws RemoteException {
+		Shard shard = shardOf(filename);
+		try {
+			return shard.stub().openStoreSession(filename, length, proxyNumber);
+		} catch (RemoteException re) {
+			throw shard.failed(re);
+		}
+	}
+
+
+	/**
+	 * List files gathers the files of every shard
+	 *
+	 * @param none
+	 * @return Paths of all files in the namespace
+	*/
+	public String[] listFiles() throws RemoteException {
+		ArrayList<String> all = new ArrayList<String>();
+		for(Shard shard : shards) {
+			try {
+				all.addAll(Arrays.asList(shard.stub().listFiles()));
+			} catch (RemoteException re) {
+				throw shard.failed(re);
+			}
+		}
+		return all.toArray(new String[0]);
+	}
+
+
+	public String toString() {
+		StringBuilder stats = new StringBuilder();
+		for(Shard shard : shards) {
+			if(stats.length() > 0) stats.append(' ');
+			stats.append(shard.endpoint).append(" calls=").append(shard.calls.get())
+				.append(" failures=").append(shard.failures.get());
+		}
+		return stats.toString();
+	}
+}
@@ -0,0 +1,107 @@
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Space account tracks free bytes of the cache without a monitor. Callers reserve bytes
+ * before they store anything, commit the reservation to what they actually stored and
+ * release bytes when files are deleted. All updates are compare-and-set on one long.
+*/
+public class SpaceAccount {
+
+	private long capacity;
+	private AtomicLong available;
+	private AtomicLong reserved = new AtomicLong();
+
+
+	/**
+	 * CONSTRUCTOR
+	*/
+	public SpaceAccount(long capacity) {
+		this.capacity = capacity;
+		this.available = new AtomicLong(capacity);
+	}
+
+
+	/**
+	 * Reserve bytes if that many are free
+	 *
+	 * @param number of bytes
+	 * @return true if the bytes were reserved
+	*/
+	public boolean tryReserve(long bytes) {
+		if(bytes <= 0) return true;
+		while(true) {
+			long current = available.get();
+			if(current < bytes) return false;
+			if(available.compareAndSet(current, current - bytes)) {
+				reserved.addAndGet(bytes);
+				return true;
+			}
+		}
+	}
+
+
+	/**
+	 * Commit a reservation to the amount actually stored, returning any excess or
+	 * charging any shortfall
+	 *
+	 * @param bytes that were reserved, bytes that were used
+	 * @return void.
+	*/
+	public void commit(long reservedBytes, long usedBytes) {
+		if(reservedBytes <= 0) return;
+		reserved.addAndGet(-reservedBytes);
+		if(usedBytes != reservedBytes) available.addAndGet(reservedBytes - usedBytes);
+	}
+
+
+	/**
+	 * Give back bytes of a reservation that was never used or of a deleted file
+	 *
+	 * @param number of bytes
+	 * @return void.
+	*/
+	public void release(long bytes) {
+		if(bytes > 0) available.addAndGet(bytes);
+	}
+
+
+	/**
+	 * Charge bytes that are already stored, even past what is free. The account can go
+	 * negative, the next reservation then evicts enough to make up for it.
+	 *
+	 * @param number of bytes
+	 * @return void.
+	*/
+	public void charge(long bytes) {
+		if(bytes > 0) available.addAndGet(-bytes);
+	}
+
+
+	/**
+	 * Give back an uncommitted reservation
+	 *
+	 * @param number of bytes reserved
+	 * @return void.
+	*/
+	public void cancel(long reservedBytes) {
+		if(reservedBytes <= 0) return;
+		reserved.addAndGet(-reservedBytes);
+		available.addAndGet(reservedBytes);
+	}
+
+
+	public long available() {
+		return available.get();
+	}
+
+
+	public long reserved() {
+		return reserved.get();
+	}
+
+
+	public long capacity() {
+		return capacity;
+	}
+}
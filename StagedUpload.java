@@ -0,0 +1,168 @@
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+
+
+/**
+ * Staged upload collects the writes of one upload in a file of its own, away from the file
+ * readers are reading. Publishing fills in whatever the upload didnt write from the file as
+ * it was, then renames the staged file over it in one step, so a reader only ever sees the
+ * contents of one commit or the next.
+*/
+public class StagedUpload {
+
+	public static final String DIR_NAME = ".staging";
+
+	String filename;
+	private File file;
+	private RandomAccessFile raf;
+	private RangeSet written = new RangeSet();
+	private long writtenEnd = 0;
+
+	//Last time the uploader did anything, whether a bulk session is writing the file, whether
+	//its being published and whether it has been published or given up on. Volatile so the
+	//reaper can look without waiting on the upload's monitor.
+	volatile long lastActive;
+	volatile boolean streaming = false;
+	boolean streamed = false;
+	volatile boolean publishing = false;
+	volatile boolean finished = false;
+
+
+	/**
+	 * CONSTRUCTOR creates the empty staged file
+	 *
+	 * @param file being uploaded, where to stage it
+	*/
+	public StagedUpload(String filename, File file) throws IOException {
+		this.filename = filename;
+		this.file = file;
+		this.raf = new RandomAccessFile(file, "rw");
+		this.lastActive = System.currentTimeMillis();
+	}
+
+
+	//Name its chunks are kept under in the chunk cache until it is published
+	public String key() {
+		return DIR_NAME + "/" + file.getName();
+	}
+
+
+	public String path() {
+		return file.getPath();
+	}
+
+
+	public RandomAccessFile file() {
+		return raf;
+	}
+
+
+	public SortedMap<Long, Long> ranges() {
+		return written.ranges();
+	}
+
+
+	/**
+	 * Write bytes of the upload at an offset
+	 *
+	 * @param offset, the bytes
+	 * @return void, raises an exception if the staged file cant be written
+	*/
+	public void write(long offset, byte[] data) throws IOException {
+		raf.seek(offset);
+		raf.write(data);
+		written.add(offset, offset + data.length);
+		writtenEnd = Math.max(writtenEnd, offset + data.length);
+		lastActive = System.currentTimeMillis();
+	}
+
+
+	/**
+	 * Streamed records that a bulk session wrote the first length bytes straight into the file
+	 *
+	 * @param length
+	 * @return void.
+	*/
+	public void streamed(long length) {
+		written.add(0, length);
+		writtenEnd = Math.max(writtenEnd, length);
+		streamed = true;
+		lastActive = System.currentTimeMillis();
+	}
+
+
+	/**
+	 * Prepare completes the staged file: every byte the upload didnt write is copied from the
+	 * committed file and the length is set. Without a new length the file keeps the longer of
+	 * its old length and what was written, as writes always have.
+	 *
+	 * @param committed file, new length or -1
+	 * @return Length of the staged file, raises an exception if the copy fails
+	*/
+	public long prepare(File committed, long newLength) throws IOException {
+		long oldLength = committed.length();
+		long length = (newLength >= 0) ? newLength : Math.max(oldLength, writtenEnd);
+		long end = Math.min(length, oldLength);
+		if(end > 0 && written.missing(0, end) > 0) {
+			FileChannel from = new FileInputStream(committed).getChannel();
+			try {
+				FileChannel to = raf.getChannel();
+				long position = 0;
+				while(position < end) {
+					long runEnd = Math.min(end, written.runEnd(position));
+					if(!written.contains(position)) copyRange(from, to, position, runEnd);
+					position = runEnd;
+				}
+			} finally {
+				from.close();
+			}
+		}
+		raf.setLength(length);
+		return length;
+	}
+
+
+	/**
+	 * Publish renames the staged file over the committed one. The staged file stays open, it
+	 * now is the committed file.
+	 *
+	 * @param committed file
+	 * @return void, raises an exception if the rename fails
+	*/
+	public void publish(File committed) throws IOException {
+		Files.move(file.toPath(), committed.toPath(), StandardCopyOption.ATOMIC_MOVE);
+	}
+
+
+	public void close() {
+		try {
+			raf.close();
+		} catch (IOException ie) {
+			//Everything that matters was written or is being thrown away
+		}
+	}
+
+
+	/**
+	 * Discard closes and deletes the staged file of an upload given up on
+	 *
+	 * @param none
+	 * @return void.
+	*/
+	public void discard() {
+		close();
+		file.delete();
+	}
+
+
+	private static void copyRange(FileChannel from, FileChannel to, long start, long end) throws IOException {
+		while(start < end) {
+			long moved = from.transferTo(start, end - start, to.position(start));
+			if(moved <= 0) throw new EOFException("Committed file ended at " + start);
+			start += moved;
+		}
+	}
+}
@@ -0,0 +1,135 @@
+import java.util.*;
+
+
+/**
+ * W-TinyLFU style policy. Released paths enter a small LRU window; when the window is over
+ * its share its eldest entry moves into the main segmented LRU as a candidate. On eviction
+ * the candidate competes with the eldest main entry and the one with the lower estimated
+ * frequency goes. Frequencies come from a count-min sketch of opens that is halved
+ * periodically so old popularity fades.
+*/
+public class TinyLfuPolicy implements EvictionPolicy {
+
+	private static final int WINDOW = 0;
+	private static final int PROBATION = 1;
+	private static final int PROTECTED = 2;
+
+	private static final int SKETCH_DEPTH = 4;
+	private static final int MAX_COUNT = 15;
+
+	//Segments keep insertion order, re-inserting moves an entry to the most recent end
+	private LinkedHashMap<String, Long> window = new LinkedHashMap<String, Long>();
+	private LinkedHashMap<String, Long> probation = new LinkedHashMap<String, Long>();
+	private LinkedHashMap<String, Long> protectedSegment = new LinkedHashMap<String, Long>();
+
+	//Which segment a path belongs to, kept while the path is pinned
+	private HashMap<String, Integer> homes = new HashMap<String, Integer>();
+
+	//Latest path moved out of the window that has not been weighed against a main victim yet
+	private String candidate = null;
+
+	private int[][] sketch;
+	private int sketchMask;
+	private int samples = 0;
+
+
+	/**
+	 * CONSTRUCTOR, the sketch width is the expected number of distinct paths
+	*/
+	public TinyLfuPolicy(int expectedPaths) {
+		int width = 1024;
+		while(width < expectedPaths) width <<= 1;
+		sketch = new int[SKETCH_DEPTH][width];
+		sketchMask = width - 1;
+	}
+
+	public synchronized void recordAccess(String path) {
+		int h = path.hashCode();
+		for(int row = 0; row < SKETCH_DEPTH; row++) {
+			int slot = index(h, row);
+			if(sketch[row][slot] < MAX_COUNT) sketch[row][slot]++;
+		}
+
+		//Age every counter once enough samples have been seen
+		if(++samples >= 10 * (sketchMask + 1)) {
+			for(int[] counters : sketch) {
+				for(int i = 0; i < counters.length; i++) counters[i] >>= 1;
+			}
+			samples /= 2;
+		}
+	}
+
+	private int frequency(String path) {
+		int h = path.hashCode();
+		int min = MAX_COUNT;
+		for(int row = 0; row < SKETCH_DEPTH; row++) min = Math.min(min, sketch[row][index(h, row)]);
+		return min;
+	}
+
+	private int index(int h, int row) {
+		h = h * (0x9e3779b9 + 2 * row);
+		h ^= (h >>> 16);
+		return h & sketchMask;
+	}
+
+	public synchronized void pin(String path) {
+		if(path.equals(candidate)) candidate = null;
+		window.remove(path);
+		probation.remove(path);
+		protectedSegment.remove(path);
+	}
+
+	public synchronized void release(String path, long size) {
+		pin(path);
+		Integer home = homes.get(path);
+
+		//New paths start in the window, paths seen again in the main part get protected
+		if(home == null || home == WINDOW) {
+			window.put(path, size);
+			homes.put(path, WINDOW);
+		} else {
+			protectedSegment.put(path, size);
+			homes.put(path, PROTECTED);
+			int mainCount = probation.size() + protectedSegment.size();
+			while(protectedSegment.size() > Math.max(1, mainCount * 4 / 5)) {
+				String demoted = eldest(protectedSegment);
+				probation.put(demoted, protectedSegment.remove(demoted));
+				homes.put(demoted, PROBATION);
+			}
+		}
+
+		//Window overflow moves into probation as a candidate waiting for admission
+		int windowMax = Math.max(1, (window.size() + probation.size() + protectedSegment.size()) / 100);
+		while(window.size() > windowMax) {
+			String overflow = eldest(window);
+			probation.put(overflow, window.remove(overflow));
+			homes.put(overflow, PROBATION);
+			candidate = overflow;
+		}
+	}
+
+	public synchronized String nextVictim() {
+		String victim = !probation.isEmpty() ? eldest(probation) : eldest(protectedSegment);
+		if(victim == null) victim = eldest(window);
+		if(victim == null) return null;
+
+		//The newest candidate only stays if its more popular than the eldest main entry
+		if(candidate != null && !candidate.equals(victim)) {
+			if(frequency(candidate) <= frequency(victim)) victim = candidate;
+			candidate = null;
+		}
+
+		pin(victim);
+		homes.remove(victim);
+		return victim;
+	}
+
+	private String eldest(LinkedHashMap<String, Long> segment) {
+		if(segment.isEmpty()) return null;
+		return segment.keySet().iterator().next();
+	}
+
+	public String name() {
+		return "tinylfu";
+	}
+}
@@ -0,0 +1,323 @@
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Transfer service streams file bodies over a plain socket instead of chunk by chunk RMI.
+ * A session is set up through an RMI call, the peer then connects, sends the 8 byte session
+ * id and the region is moved with FileChannel.transferTo/transferFrom on both ends.
+ * Sessions nobody connects to within the timeout are expired and completed as failed, and so
+ * are transfers that stop making progress for as long.
+*/
+public class TransferService {
+
+	public static final int SEND = 0;
+	public static final int RECEIVE = 1;
+
+	//Result written back once a RECEIVE session has been committed, negative on failure
+	public static final long FAILED = -1;
+
+	private static final long SESSION_TIMEOUT = 60000;
+
+	//Most moved in one transferTo/transferFrom call, so progress is seen between calls
+	private static final long TRANSFER_STEP = 1 << 20;
+
+	/**
+	 * Completion is run exactly once per session, with whether the transfer succeeded.
+	 * What it returns is handed back to the sender of a RECEIVE session, negative on failure.
+	*/
+	public interface Completion {
+		long complete(boolean success);
+	}
+
+	//One pending transfer, a region of a local file and what to do when its done
+	private static class Session {
+		int direction;
+		String path;
+		long offset;
+		long length;
+		Completion completion;
+		long created;
+
+		//Set once a peer connects, last time any bytes moved
+		volatile SocketChannel peer;
+		volatile long lastProgress;
+
+		Session(int direction, String path, long offset, long length, Completion completion) {
+			this.direction = direction;
+			this.path = path;
+			this.offset = offset;
+			this.length = length;
+			this.completion = completion;
+			this.created = System.currentTimeMillis();
+		}
+	}
+
+	private ServerSocketChannel listener;
+	private ConcurrentHashMap<Long, Session> sessions = new ConcurrentHashMap<Long, Session>();
+	private Set<Session> active = Collections.newSetFromMap(new ConcurrentHashMap<Session, Boolean>());
+	private AtomicLong nextSession = new AtomicLong(new Random().nextLong() & 0x7fffffffffffL);
+	private ExecutorService workers;
+
+
+	/**
+	 * CONSTRUCTOR binds the listening socket (0 picks any free port) and starts accepting
+	*/
+	public TransferService(int port) throws IOException {
+		listener = ServerSocketChannel.open();
+		listener.bind(new InetSocketAddress(port));
+		workers = Executors.newCachedThreadPool(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "transfer");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		workers.execute(new Runnable() {
+			public void run() {
+				acceptLoop();
+			}
+		});
+
+		//Expired on a timer, a session left behind must not keep its locks until the next one opens
+		ScheduledExecutorService reaper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "transfer-reaper");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		long period = SESSION_TIMEOUT / 4;
+		reaper.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				expireSessions();
+			}
+		}, period, period, TimeUnit.MILLISECONDS);
+	}
+
+
+	/**
+	 * Port the service is listening on
+	 *
+	 * @param none
+	 * @return port number
+	*/
+	public int getPort() {
+		return listener.socket().getLocalPort();
+	}
+
+
+	/**
+	 * Register a session for a region of a local file
+	 *
+	 * @param SEND or RECEIVE, full path of local file, region offset and length, completion to run
+	 * @return Id the peer has to present when it connects
+	*/
+	public long open(int direction, String path, long offset, long length, Completion completion) {
+		long id = nextSession.incrementAndGet();
+		sessions.put(id, new Session(direction, path, offset, length, completion));
+		return id;
+	}
+
+
+	/**
+	 * Expire sessions nobody connected to so the locks they guard get released. Transfers
+	 * that stalled have their socket closed, which fails them in the thread serving them.
+	 *
+	 * @param none
+	 * @return void.
+	*/
+	private void expireSessions() {
+		long now = System.currentTimeMillis();
+		for(Map.Entry<Long, Session> entry : sessions.entrySet()) {
+			if(now - entry.getValue().created > SESSION_TIMEOUT && sessions.remove(entry.getKey(), entry.getValue())) {
+				runCompletion(entry.getValue(), false);
+			}
+		}
+		for(Session session : active) {
+			if(now - session.lastProgress > SESSION_TIMEOUT && active.remove(session)) {
+				try {
+					session.peer.close();
+				} catch (IOException ie) {
+					//Its failed either way
+				}
+			}
+		}
+	}
+
+
+	private void acceptLoop() {
+		while(listener.isOpen()) {
+			try {
+				final SocketChannel peer = listener.accept();
+				workers.execute(new Runnable() {
+					public void run() {
+						serve(peer);
+					}
+				});
+			} catch (IOException ie) {
+				if(!listener.isOpen()) return;
+			}
+		}
+	}
+
+
+	/**
+	 * Serve one connection: read session id then move the region in the session's direction
+	 *
+	 * @param connected socket
+	 * @return void.
+	*/
+	private void serve(SocketChannel peer) {
+		Session session = null;
+		boolean success = false;
+		try {
+			ByteBuffer idBuf = ByteBuffer.allocate(8);
+			readFully(peer, idBuf);
+			idBuf.flip();
+			session = sessions.remove(idBuf.getLong());
+			if(session == null) return;
+			session.peer = peer;
+			session.lastProgress = System.currentTimeMillis();
+			active.add(session);
+
+			RandomAccessFile raf = new RandomAccessFile(session.path, session.direction == SEND ? "r" : "rw");
+			try {
+				FileChannel file = raf.getChannel();
+				if(session.direction == SEND) sendRegion(file, peer, session.offset, session.length, session);
+				else receiveRegion(peer, file, session.offset, session.length, session);
+			} finally {
+				raf.close();
+			}
+			success = true;
+		} catch (IOException ie) {
+			success = false;
+		} finally {
+			if(session != null) {
+				active.remove(session);
+				long result = runCompletion(session, success);
+				if(session.direction == RECEIVE) writeResult(peer, result);
+			}
+			try {
+				peer.close();
+			} catch (IOException ie) {
+				//Nothing left to do with the socket
+			}
+		}
+	}
+
+
+	private long runCompletion(Session session, boolean success) {
+		if(session.completion == null) return success ? 0 : FAILED;
+		try {
+			return session.completion.complete(success);
+		} catch (Exception e) {
+			return FAILED;
+		}
+	}
+
+
+	private void writeResult(SocketChannel peer, long result) {
+		try {
+			ByteBuffer status = ByteBuffer.allocate(8);
+			status.putLong(result);
+			status.flip();
+			while(status.hasRemaining()) peer.write(status);
+		} catch (IOException ie) {
+			return;
+		}
+	}
+
+
+	/**
+	 * Fetch pulls a region served by a SEND session into a local file
+	 *
+	 * @param host and port of the service, session id, destination channel, where to put it, length
+	 * @return void, raises an exception if the stream ends early
+	*/
+	public static void fetch(String host, int port, long sessionId, FileChannel dest, long position, long length)
+			throws IOException {
+		SocketChannel channel = connect(host, port, sessionId);
+		try {
+			receiveRegion(channel, dest, position, length, null);
+		} finally {
+			channel.close();
+		}
+	}
+
+
+	/**
+	 * Store pushes a region of a local file to a RECEIVE session and waits for the commit
+	 *
+	 * @param host and port of the service, session id, source channel, where to read from, length
+	 * @return What the receiving side's completion returned, negative if it didnt commit
+	*/
+	public static long store(String host, int port, long sessionId, FileChannel source, long position, long length)
+			throws IOException {
+		SocketChannel channel = connect(host, port, sessionId);
+		try {
+			sendRegion(source, channel, position, length, null);
+			ByteBuffer status = ByteBuffer.allocate(8);
+			readFully(channel, status);
+			return status.getLong(0);
+		} finally {
+			channel.close();
+		}
+	}
+
+
+	private static SocketChannel connect(String host, int port, long sessionId) throws IOException {
+		SocketChannel channel = SocketChannel.open(new InetSocketAddress(host, port));
+		channel.socket().setTcpNoDelay(true);
+		ByteBuffer idBuf = ByteBuffer.allocate(8);
+		idBuf.putLong(sessionId);
+		idBuf.flip();
+		while(idBuf.hasRemaining()) channel.write(idBuf);
+		return channel;
+	}
+
+
+	//Session is null on the connecting side, which has no reaper watching it
+	private static void sendRegion(FileChannel file, SocketChannel socket, long offset, long length, Session session)
+			throws IOException {
+		long sent = 0;
+		while(sent < length) {
+			long moved = file.transferTo(offset + sent, Math.min(length - sent, TRANSFER_STEP), socket);
+			if(moved <= 0 && offset + sent >= file.size()) throw new EOFException("File shorter than region");
+			sent += moved;
+			if(moved > 0 && session != null) session.lastProgress = System.currentTimeMillis();
+		}
+	}
+
+
+	private static void receiveRegion(SocketChannel socket, FileChannel file, long offset, long length, Session session)
+			throws IOException {
+		long received = 0;
+		while(received < length) {
+			long moved = file.transferFrom(socket, offset + received, Math.min(length - received, TRANSFER_STEP));
+			if(moved <= 0) throw new EOFException("Stream ended after " + received + " bytes");
+			received += moved;
+			if(session != null) session.lastProgress = System.currentTimeMillis();
+		}
+	}
+
+
+	private static void readFully(SocketChannel socket, ByteBuffer buf) throws IOException {
+		while(buf.hasRemaining()) {
+			if(socket.read(buf) < 0) throw new EOFException("Stream ended early");
+		}
+	}
+}
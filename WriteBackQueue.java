@@ -0,0 +1,209 @@
+
+import java.util.*;
+import java.util.concurrent.ThreadFactory;
+
+
+/**
+ * Write back queue uploads closed versions in the background. Each path has at most one
+ * pending upload: a newer close of the same path replaces the pending one, and when the
+ * newer version was written on top of the pending one their dirty ranges are merged so the
+ * upload can still be a delta. Uploads of one path never overlap, so the server sees the
+ * versions of a path in the order they were closed. The queue holds a bounded number of
+ * paths, submit blocks while its full. A version that keeps failing is handed back to be
+ * kept for a later retry, and its path counts as pending until a newer close replaces it.
+*/
+public class WriteBackQueue {
+
+	private static final int MAX_ATTEMPTS = 3;
+
+	/**
+	 * One closed version waiting to be uploaded
+	*/
+	public static class Pending {
+		public String path;
+		public int version;
+		public int baseVersion;
+		public RangeSet dirty;
+		public long size;
+		int attempts = 0;
+
+		Pending(String path, int version, int baseVersion, RangeSet dirty, long size) {
+			this.path = path;
+			this.version = version;
+			this.baseVersion = baseVersion;
+			this.dirty = dirty;
+			this.size = size;
+		}
+	}
+
+	/**
+	 * Uploader does the actual work for the queue
+	*/
+	public interface Uploader {
+		/**
+		 * Upload a version to the server
+		 *
+		 * @param the pending upload
+		 * @return true if the server has it
+		*/
+		boolean upload(Pending pending);
+
+		/**
+		 * A pending upload was replaced by a newer version and wont be uploaded
+		 *
+		 * @param the pending upload
+		 * @return void.
+		*/
+		void dropped(Pending pending);
+
+		/**
+		 * A pending upload was given up on after failing repeatedly. The server still doesnt
+		 * have the version, so it has to be kept until a later run can upload it.
+		 *
+		 * @param the pending upload
+		 * @return void.
+		*/
+		void failed(Pending pending);
+	}
+
+	private int capacity;
+	private Uploader uploader;
+	private LinkedHashMap<String, Pending> pending = new LinkedHashMap<String, Pending>();
+	private HashSet<String> inFlight = new HashSet<String>();
+	private HashMap<String, Pending> failed = new HashMap<String, Pending>();
+
+
+	/**
+	 * CONSTRUCTOR starts the upload threads
+	*/
+	public WriteBackQueue(int capacity, int threads, Uploader uploader) {
+		this.capacity = Math.max(1, capacity);
+		this.uploader = uploader;
+		ThreadFactory factory = new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "writeback");
+				t.setDaemon(true);
+				return t;
+			}
+		};
+		for(int i = 0; i < Math.max(1, threads); i++) {
+			factory.newThread(new Runnable() {
+				public void run() {
+					uploadLoop();
+				}
+			}).start();
+		}
+	}
+
+
+	/**
+	 * Submit queues a closed version for upload, replacing any pending upload of the path.
+	 * Blocks while the queue is full and the path isnt already in it.
+	 *
+	 * @param path, closed version, version it was written on top of, its dirty ranges or null, size
+	 * @return void.
+	*/
+	public synchronized void submit(String path, int version, int baseVersion, RangeSet dirty, long size)
+			throws InterruptedException {
+		while(!pending.containsKey(path) && pending.size() + inFlight.size() >= capacity) wait();
+
+		Pending next = new Pending(path, version, baseVersion, dirty, size);
+
+		//A newer close has everything the version given up on had, the server gets it instead
+		Pending abandoned = failed.remove(path);
+		if(abandoned != null) uploader.dropped(abandoned);
+
+		Pending older = pending.remove(path);
+		if(older != null) {
+			//Written on top of the pending version: upload both changes as one against its base
+			if(older.version == baseVersion) {
+				next.baseVersion = older.baseVersion;
+				if(older.dirty == null || dirty == null) {
+					next.dirty = null;
+				} else {
+					next.dirty = new RangeSet();
+					next.dirty.addAll(older.dirty);
+					next.dirty.addAll(dirty);
+				}
+			}
+			uploader.dropped(older);
+		}
+		pending.put(path, next);
+		notifyAll();
+	}
+
+
+	/**
+	 * Check whether a path has an upload pending or in flight
+	 *
+	 * @param path
+	 * @return true if the server may not have the latest closed version yet
+	*/
+	public synchronized boolean isPending(String path) {
+		return pending.containsKey(path) || inFlight.contains(path) || failed.containsKey(path);
+	}
+
+
+	/**
+	 * Drain waits until every queued upload has been done or given up on
+	 *
+	 * @param none
+	 * @return Number of versions given up on after failing repeatedly
+	*/
+	public synchronized long drain() throws InterruptedException {
+		while(!pending.isEmpty() || !inFlight.isEmpty()) wait();
+		return failed.size();
+	}
+
+
+	private void uploadLoop() {
+		while(true) {
+			Pending next;
+			try {
+				next = take();
+			} catch (InterruptedException ie) {
+				return;
+			}
+			boolean uploaded = false;
+			try {
+				uploaded = uploader.upload(next);
+			} catch (RuntimeException re) {
+				uploaded = false;
+			}
+			finish(next, uploaded);
+		}
+	}
+
+
+	//Oldest pending upload of a path that isnt already being uploaded
+	private synchronized Pending take() throws InterruptedException {
+		while(true) {
+			for(Iterator<Pending> it = pending.values().iterator(); it.hasNext();) {
+				Pending candidate = it.next();
+				if(inFlight.contains(candidate.path)) continue;
+				it.remove();
+				inFlight.add(candidate.path);
+				return candidate;
+			}
+			wait();
+		}
+	}
+
+
+	private synchronized void finish(Pending done, boolean uploaded) {
+		inFlight.remove(done.path);
+		if(!uploaded) {
+			done.attempts++;
+			//Retry unless a newer version replaced it meanwhile or it keeps failing
+			if(pending.containsKey(done.path)) {
+				uploader.dropped(done);
+			} else if(done.attempts < MAX_ATTEMPTS) {
+				pending.put(done.path, done);
+			} else {
+				failed.put(done.path, done);
+				uploader.failed(done);
+			}
+		}
+		notifyAll();
+	}
+}
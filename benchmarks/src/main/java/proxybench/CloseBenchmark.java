@@ -0,0 +1,96 @@
+package proxybench;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+
+/**
+ * Close benchmark measures closing a written fd, which sends the new version to the server.
+ * An upload has the whole file rewritten, a delta has one small block changed at a random
+ * place so it goes as the dirty ranges only. The writes happen outside the measurement.
+*/
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CloseBenchmark {
+
+	@State(Scope.Benchmark)
+	public static class Upload {
+		@Param({"4096", "1048576", "16777216"})
+		long size;
+
+		int fd;
+		int round;
+		byte[] buffer = new byte[Fixture.LARGE_BUFFER];
+
+		@Setup(Level.Trial)
+		public void setUp() throws Throwable {
+			Fixture.start(1L << 30, 1);
+			Fixture.createFile("upload", size);
+			Fixture.readAll(0, "upload", buffer);
+		}
+
+		@Setup(Level.Invocation)
+		public void rewrite() throws Throwable {
+			fd = Fixture.open(0, "upload", "WRITE");
+			Arrays.fill(buffer, (byte)round++);
+			for(long at = 0; at < size; at += buffer.length) {
+				Fixture.write(0, fd, (at + buffer.length <= size) ? buffer : Arrays.copyOf(buffer, (int)(size - at)));
+			}
+		}
+
+		@TearDown(Level.Trial)
+		public void tearDown() throws Throwable {
+			Fixture.stop();
+		}
+	}
+
+
+	@State(Scope.Benchmark)
+	public static class Delta {
+		@Param({"4096", "1048576", "16777216"})
+		long size;
+
+		int fd;
+		Random random = new Random(Fixture.SEED);
+		byte[] block;
+
+		@Setup(Level.Trial)
+		public void setUp() throws Throwable {
+			Fixture.start(1L << 30, 1);
+			Fixture.createFile("delta", size);
+			Fixture.readAll(0, "delta", new byte[Fixture.LARGE_BUFFER]);
+			block = new byte[(int)Math.min(Fixture.SMALL_BUFFER, size)];
+		}
+
+		@Setup(Level.Invocation)
+		public void change() throws Throwable {
+			fd = Fixture.open(0, "delta", "WRITE");
+			random.nextBytes(block);
+			Fixture.seek(0, fd, (long)(random.nextDouble() * (size - block.length)));
+			Fixture.write(0, fd, block);
+		}
+
+		@TearDown(Level.Trial)
+		public void tearDown() throws Throwable {
+			Fixture.stop();
+		}
+	}
+
+
+	@Benchmark
+	public void closeUpload(Upload state) throws Throwable {
+		Fixture.close(0, state.fd);
+	}
+
+
+	@Benchmark
+	public void closeDelta(Delta state) throws Throwable {
+		Fixture.close(0, state.fd);
+	}
+}
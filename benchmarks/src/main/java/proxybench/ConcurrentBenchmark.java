@@ -0,0 +1,94 @@
+package proxybench;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.BenchmarkParams;
+import org.openjdk.jmh.infra.ThreadParams;
+
+
+/**
+ * Concurrent benchmark has every JMH thread act as a client of its own. Each op opens, reads
+ * all of or writes a block into, and closes either the one shared file or a file of the
+ * client's own. Run with -t to change the number of clients.
+*/
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+public class ConcurrentBenchmark {
+
+	@State(Scope.Benchmark)
+	public static class Shared {
+		@Param({"4096", "1048576", "16777216"})
+		long size;
+
+		@Setup(Level.Trial)
+		public void setUp(BenchmarkParams params) throws Throwable {
+			int clients = params.getThreads();
+			Fixture.start(1L << 30, clients);
+			byte[] buffer = new byte[Fixture.LARGE_BUFFER];
+			Fixture.createFile("shared", size);
+			Fixture.readAll(0, "shared", buffer);
+			for(int client = 0; client < clients; client++) {
+				Fixture.createFile("client" + client, size);
+				Fixture.readAll(client, "client" + client, buffer);
+			}
+		}
+
+		@TearDown(Level.Trial)
+		public void tearDown() throws Throwable {
+			Fixture.stop();
+		}
+	}
+
+
+	@State(Scope.Thread)
+	public static class Client {
+		int client;
+		String own;
+		byte[] buffer = new byte[Fixture.LARGE_BUFFER];
+		byte[] block;
+
+		@Setup(Level.Trial)
+		public void setUp(Shared shared, ThreadParams params) {
+			client = params.getThreadIndex();
+			own = "client" + client;
+			block = Arrays.copyOf(buffer, (int)Math.min(Fixture.SMALL_BUFFER, shared.size));
+		}
+	}
+
+
+	@Benchmark
+	public long readSame(Shared shared, Client state) throws Throwable {
+		return Fixture.readAll(state.client, "shared", state.buffer);
+	}
+
+
+	@Benchmark
+	public long readDistinct(Shared shared, Client state) throws Throwable {
+		return Fixture.readAll(state.client, state.own, state.buffer);
+	}
+
+
+	@Benchmark
+	public void writeSame(Shared shared, Client state) throws Throwable {
+		writeBlock(state, "shared");
+	}
+
+
+	@Benchmark
+	public void writeDistinct(Shared shared, Client state) throws Throwable {
+		writeBlock(state, state.own);
+	}
+
+
+	private static void writeBlock(Client state, String path) throws Throwable {
+		int fd = Fixture.open(state.client, path, "WRITE");
+		Fixture.write(state.client, fd, state.block);
+		Fixture.close(state.client, fd);
+	}
+}
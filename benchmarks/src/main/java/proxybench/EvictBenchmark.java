@@ -0,0 +1,60 @@
+package proxybench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+
+/**
+ * Evict benchmark keeps the cache holding exactly its capacity in files. Every op evicts the
+ * least recently used one, which is read back in afterwards so the cache is full again.
+ * Only sizes that fill the cache with a few thousand files at most are run.
+*/
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class EvictBenchmark {
+
+	@Param({"1048576", "16777216"})
+	long size;
+
+	@Param({"67108864"})
+	long capacity;
+
+	String[] files;
+	int next;
+	byte[] buffer = new byte[Fixture.LARGE_BUFFER];
+
+
+	@Setup(Level.Trial)
+	public void setUp() throws Throwable {
+		Fixture.start(capacity, 1);
+		files = new String[(int)(capacity / size)];
+		for(int i = 0; i < files.length; i++) {
+			files[i] = "evict" + i;
+			Fixture.createFile(files[i], size);
+			Fixture.readAll(0, files[i], buffer);
+		}
+	}
+
+
+	@TearDown(Level.Invocation)
+	public void refill() throws Throwable {
+		Fixture.readAll(0, files[next++ % files.length], buffer);
+	}
+
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws Throwable {
+		Fixture.stop();
+	}
+
+
+	@Benchmark
+	public int evict() throws Throwable {
+		return Fixture.evict(0, size);
+	}
+}
@@ -0,0 +1,108 @@
+package proxybench;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+
+
+/**
+ * Fixture reaches ProxyFixture, which is in the default package and cant be named from
+ * here, through method handles looked up once. Each call is a static invokeExact, which
+ * the JIT inlines like a direct call.
+*/
+final class Fixture {
+
+	static final long SEED = 15440;
+	static final int SMALL_BUFFER = 4096;
+	static final int LARGE_BUFFER = 1 << 20;
+
+	private static final MethodHandle START;
+	private static final MethodHandle STOP;
+	private static final MethodHandle CREATE_FILE;
+	private static final MethodHandle OPEN;
+	private static final MethodHandle CLOSE;
+	private static final MethodHandle READ;
+	private static final MethodHandle WRITE;
+	private static final MethodHandle SEEK;
+	private static final MethodHandle EVICT;
+	private static final MethodHandle NORMALIZE_PATH;
+	private static final MethodHandle READ_ALL;
+
+	static {
+		try {
+			Class<?> fixture = Class.forName("ProxyFixture");
+			MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+			START = lookup.findStatic(fixture, "start", MethodType.methodType(void.class, long.class, int.class));
+			STOP = lookup.findStatic(fixture, "stop", MethodType.methodType(void.class));
+			CREATE_FILE = lookup.findStatic(fixture, "createFile", MethodType.methodType(void.class, String.class, long.class));
+			OPEN = lookup.findStatic(fixture, "open", MethodType.methodType(int.class, int.class, String.class, String.class));
+			CLOSE = lookup.findStatic(fixture, "close", MethodType.methodType(void.class, int.class, int.class));
+			READ = lookup.findStatic(fixture, "read", MethodType.methodType(long.class, int.class, int.class, byte[].class));
+			WRITE = lookup.findStatic(fixture, "write", MethodType.methodType(long.class, int.class, int.class, byte[].class));
+			SEEK = lookup.findStatic(fixture, "seek", MethodType.methodType(long.class, int.class, int.class, long.class));
+			EVICT = lookup.findStatic(fixture, "evict", MethodType.methodType(int.class, int.class, long.class));
+			NORMALIZE_PATH = lookup.findStatic(fixture, "normalizePath", MethodType.methodType(String.class, int.class, String.class));
+			READ_ALL = lookup.findStatic(fixture, "readAll", MethodType.methodType(long.class, int.class, String.class, byte[].class));
+		} catch (ReflectiveOperationException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
+	private Fixture() {
+	}
+
+
+	static void start(long capacity, int clients) throws Throwable {
+		START.invokeExact(capacity, clients);
+	}
+
+
+	static void stop() throws Throwable {
+		STOP.invokeExact();
+	}
+
+
+	static void createFile(String path, long length) throws Throwable {
+		CREATE_FILE.invokeExact(path, length);
+	}
+
+
+	static int open(int client, String path, String option) throws Throwable {
+		return (int) OPEN.invokeExact(client, path, option);
+	}
+
+
+	static void close(int client, int fd) throws Throwable {
+		CLOSE.invokeExact(client, fd);
+	}
+
+
+	static long read(int client, int fd, byte[] buf) throws Throwable {
+		return (long) READ.invokeExact(client, fd, buf);
+	}
+
+
+	static long write(int client, int fd, byte[] buf) throws Throwable {
+		return (long) WRITE.invokeExact(client, fd, buf);
+	}
+
+
+	static long seek(int client, int fd, long position) throws Throwable {
+		return (long) SEEK.invokeExact(client, fd, position);
+	}
+
+
+	static int evict(int client, long bytes) throws Throwable {
+		return (int) EVICT.invokeExact(client, bytes);
+	}
+
+
+	static String normalizePath(int client, String path) throws Throwable {
+		return (String) NORMALIZE_PATH.invokeExact(client, path);
+	}
+
+
+	static long readAll(int client, String path, byte[] buf) throws Throwable {
+		return (long) READ_ALL.invokeExact(client, path, buf);
+	}
+}
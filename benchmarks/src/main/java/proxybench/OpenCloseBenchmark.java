@@ -0,0 +1,75 @@
+package proxybench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+
+/**
+ * Open close benchmark measures an open and close of a file with nothing read or written.
+ * A hit finds the version in the cache, a miss finds the cache emptied before every open so
+ * it pays for the validation and getFileFromServer.
+*/
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class OpenCloseBenchmark {
+
+	@State(Scope.Benchmark)
+	public static class Hit {
+		@Param({"4096", "1048576", "16777216"})
+		long size;
+
+		@Setup(Level.Trial)
+		public void setUp() throws Throwable {
+			Fixture.start(1L << 30, 1);
+			Fixture.createFile("hit", size);
+			Fixture.readAll(0, "hit", new byte[Fixture.LARGE_BUFFER]);
+		}
+
+		@TearDown(Level.Trial)
+		public void tearDown() throws Throwable {
+			Fixture.stop();
+		}
+	}
+
+
+	@State(Scope.Benchmark)
+	public static class Miss {
+		@Param({"4096", "1048576", "16777216"})
+		long size;
+
+		@Param({"67108864", "1073741824"})
+		long capacity;
+
+		@Setup(Level.Trial)
+		public void setUp() throws Throwable {
+			Fixture.start(capacity, 1);
+			Fixture.createFile("miss", size);
+		}
+
+		@Setup(Level.Invocation)
+		public void empty() throws Throwable {
+			Fixture.evict(0, Long.MAX_VALUE);
+		}
+
+		@TearDown(Level.Trial)
+		public void tearDown() throws Throwable {
+			Fixture.stop();
+		}
+	}
+
+
+	@Benchmark
+	public void openCloseHit(Hit state) throws Throwable {
+		Fixture.close(0, Fixture.open(0, "hit", "READ"));
+	}
+
+
+	@Benchmark
+	public void openCloseMiss(Miss state) throws Throwable {
+		Fixture.close(0, Fixture.open(0, "miss", "READ"));
+	}
+}
@@ -0,0 +1,35 @@
+package proxybench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+
+/**
+ * Path benchmark measures normalizePath, run on every open and unlink
+*/
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PathBenchmark {
+
+	@Setup(Level.Trial)
+	public void setUp() throws Throwable {
+		Fixture.start(1L << 30, 1);
+	}
+
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws Throwable {
+		Fixture.stop();
+	}
+
+
+	@Benchmark
+	public String normalizePath() throws Throwable {
+		return Fixture.normalizePath(0, "docs/./drafts/../final/2024/../2025/./report.txt");
+	}
+}
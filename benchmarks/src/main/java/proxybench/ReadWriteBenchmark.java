@@ -0,0 +1,123 @@
+package proxybench;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+
+/**
+ * Read write benchmark measures reads, writes and seeks through one open fd. Reads and
+ * writes go through the file in buffer sized steps and start over at its start instead of
+ * running past the end or growing it.
+*/
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ReadWriteBenchmark {
+
+	@State(Scope.Benchmark)
+	public static class Reader {
+		@Param({"4096", "1048576", "16777216"})
+		long size;
+
+		@Param({"4096", "1048576"})
+		int bufferSize;
+
+		int fd;
+		long position;
+		byte[] buffer;
+
+		@Setup(Level.Trial)
+		public void setUp() throws Throwable {
+			Fixture.start(1L << 30, 1);
+			Fixture.createFile("read", size);
+			fd = Fixture.open(0, "read", "READ");
+			buffer = new byte[bufferSize];
+		}
+
+		@TearDown(Level.Trial)
+		public void tearDown() throws Throwable {
+			Fixture.close(0, fd);
+			Fixture.stop();
+		}
+	}
+
+
+	@State(Scope.Benchmark)
+	public static class Writer {
+		@Param({"4096", "1048576", "16777216"})
+		long size;
+
+		@Param({"4096", "1048576"})
+		int bufferSize;
+
+		int fd;
+		long position;
+		byte[] buffer;
+
+		@Setup(Level.Trial)
+		public void setUp() throws Throwable {
+			Fixture.start(1L << 30, 1);
+			Fixture.createFile("write", size);
+			fd = Fixture.open(0, "write", "WRITE");
+			buffer = new byte[(int)Math.min(bufferSize, size)];
+			new Random(Fixture.SEED).nextBytes(buffer);
+		}
+
+		@TearDown(Level.Trial)
+		public void tearDown() throws Throwable {
+			Fixture.close(0, fd);
+			Fixture.stop();
+		}
+	}
+
+
+	@State(Scope.Benchmark)
+	public static class Seeker {
+		@Param({"4096", "1048576", "16777216"})
+		long size;
+
+		int fd;
+		Random random = new Random(Fixture.SEED);
+
+		@Setup(Level.Trial)
+		public void setUp() throws Throwable {
+			Fixture.start(1L << 30, 1);
+			Fixture.createFile("seek", size);
+			fd = Fixture.open(0, "seek", "READ");
+		}
+
+		@TearDown(Level.Trial)
+		public void tearDown() throws Throwable {
+			Fixture.close(0, fd);
+			Fixture.stop();
+		}
+	}
+
+
+	@Benchmark
+	public long read(Reader state) throws Throwable {
+		if(state.position >= state.size) state.position = Fixture.seek(0, state.fd, 0);
+		long read = Fixture.read(0, state.fd, state.buffer);
+		state.position += read;
+		return read;
+	}
+
+
+	@Benchmark
+	public long write(Writer state) throws Throwable {
+		if(state.position + state.buffer.length > state.size) state.position = Fixture.seek(0, state.fd, 0);
+		long written = Fixture.write(0, state.fd, state.buffer);
+		state.position += written;
+		return written;
+	}
+
+
+	@Benchmark
+	public long lseek(Seeker state) throws Throwable {
+		return Fixture.seek(0, state.fd, (long)(state.random.nextDouble() * state.size));
+	}
+}
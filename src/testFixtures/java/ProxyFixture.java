@@ -0,0 +1,174 @@
+import java.io.*;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.rmi.Naming;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.*;
+
+
+/**
+ * Proxy fixture runs a Server and the proxy in one JVM for the benchmarks module. The server
+ * is bound to a registry on a free port and looked up again, so the proxy reaches it over
+ * loopback RMI the way it would on another box. Every client is a FileHandler of its own.
+ *
+ * The benchmarks live in a package, which cant name classes in the default package, so
+ * everything here takes and returns JDK types only and failures are raised as exceptions
+ * instead of negative return values. Proxy keeps its state in statics, one fixture per JVM.
+*/
+public class ProxyFixture {
+
+	private static final int PROXY_NUMBER = 1;
+	private static final long SEED = 15440;
+
+	private static File root;
+	private static File cache;
+	private static Registry registry;
+	private static Server server;
+	private static Proxy.FileHandler[] clients;
+
+
+	/**
+	 * Start creates the server and cache directories and starts the server and the proxy
+	 *
+	 * @param cache capacity in bytes, number of clients
+	 * @return void, raises an exception if the server cant be bound
+	*/
+	public static synchronized void start(long capacity, int clientCount) throws Exception {
+		if(server != null) throw new IllegalStateException("Fixture already started");
+		root = Files.createTempDirectory("proxybench-root").toFile();
+		cache = Files.createTempDirectory("proxybench-cache").toFile();
+
+		int port;
+		ServerSocket probe = new ServerSocket(0);
+		try {
+			port = probe.getLocalPort();
+		} finally {
+			probe.close();
+		}
+		registry = LocateRegistry.createRegistry(port);
+		server = new Server(root.getPath());
+		Naming.rebind("//127.0.0.1:" + port + "/Server", server);
+		FSInf stub = (FSInf) Naming.lookup("//127.0.0.1:" + port + "/Server");
+		Proxy.startInProcess(stub, "127.0.0.1", cache.getPath(), capacity, PROXY_NUMBER);
+
+		clients = new Proxy.FileHandler[clientCount];
+		for(int i = 0; i < clientCount; i++) clients[i] = new Proxy.FileHandler();
+	}
+
+
+	/**
+	 * Stop unexports the server and registry and deletes both directories
+	 *
+	 * @param none
+	 * @return void.
+	*/
+	public static synchronized void stop() {
+		try {
+			if(server != null) UnicastRemoteObject.unexportObject(server, true);
+			if(registry != null) UnicastRemoteObject.unexportObject(registry, true);
+		} catch (IOException ie) {
+			//Already gone
+		}
+		server = null;
+		registry = null;
+		if(root != null) delete(root);
+		if(cache != null) delete(cache);
+	}
+
+
+	/**
+	 * Create file writes a file straight into the server directory, filled from a fixed seed
+	 *
+	 * @param path relative to the server root, length in bytes
+	 * @return void.
+	*/
+	public static void createFile(String path, long length) throws IOException {
+		byte[] block = new byte[(int)Math.min(length, 1 << 20)];
+		new Random(SEED + path.hashCode()).nextBytes(block);
+		OutputStream out = new BufferedOutputStream(new FileOutputStream(new File(root, path)), 1 << 20);
+		try {
+			for(long written = 0; written < length; written += block.length) {
+				out.write(block, 0, (int)Math.min(block.length, length - written));
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+
+	/**
+	 * Open through a client
+	 *
+	 * @param client, path, READ, WRITE, CREATE or CREATE_NEW
+	 * @return fd, raises an exception if the open failed
+	*/
+	public static int open(int client, String path, String option) throws IOException {
+		int fd = clients[client].open(path, FileHandling.OpenOption.valueOf(option));
+		if(fd < 0) throw new IOException("open " + path + " failed with " + fd);
+		return fd;
+	}
+
+
+	public static void close(int client, int fd) throws IOException {
+		int result = clients[client].close(fd);
+		if(result < 0) throw new IOException("close failed with " + result);
+	}
+
+
+	public static long read(int client, int fd, byte[] buf) throws IOException {
+		long read = clients[client].read(fd, buf);
+		if(read < 0) throw new IOException("read failed with " + read);
+		return read;
+	}
+
+
+	public static long write(int client, int fd, byte[] buf) throws IOException {
+		long written = clients[client].write(fd, buf);
+		if(written < 0) throw new IOException("write failed with " + written);
+		return written;
+	}
+
+
+	public static long seek(int client, int fd, long position) throws IOException {
+		long at = clients[client].lseek(fd, position, FileHandling.LseekOption.FROM_START);
+		if(at < 0) throw new IOException("lseek failed with " + at);
+		return at;
+	}
+
+
+	public static int evict(int client, long bytes) {
+		return clients[client].evict(bytes);
+	}
+
+
+	public static String normalizePath(int client, String path) {
+		return clients[client].normalizePath(path);
+	}
+
+
+	/**
+	 * Read all opens, reads all of and closes a file, which leaves it in the cache
+	 *
+	 * @param client, path, buffer to read through
+	 * @return Bytes read
+	*/
+	public static long readAll(int client, String path, byte[] buf) throws IOException {
+		int fd = open(client, path, "READ");
+		long total = 0;
+		long read;
+		while((read = read(client, fd, buf)) > 0) total += read;
+		close(client, fd);
+		return total;
+	}
+
+
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if(children != null) {
+			for(File child : children) delete(child);
+		}
+		file.delete();
+	}
+}